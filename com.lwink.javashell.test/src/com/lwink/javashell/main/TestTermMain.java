@@ -1,7 +1,5 @@
 package com.lwink.javashell.main;
 
-import java.util.stream.IntStream;
-
 import com.lwink.javashell.terminal.api.Terminal;
 
 public class TestTermMain extends AbstractSshServer
@@ -19,11 +17,11 @@ public class TestTermMain extends AbstractSshServer
 		terminal.enterPrivateMode();
 		terminal.setCursorVisible(false);
 		terminal.moveCursor(0, 0);
-		IntStream.range(0, 10).forEach(i -> terminal.putCharacter(line.charAt(i)));
+		terminal.putString(line);
 		terminal.moveCursor(0, 1);
-		IntStream.range(0, 10).forEach(i -> terminal.putCharacter(line.charAt(i)));
+		terminal.putString(line);
 		terminal.moveCursor(0, 2);
-		IntStream.range(0, 10).forEach(i -> terminal.putCharacter(line.charAt(i)));
+		terminal.putString(line);
 		terminal.moveCursor(5, 1);
 		terminal.eraseCharacters(0);
 		terminal.flush();
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.shell.window;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.lwink.javashell.terminal.DoubleBufferedTerminal;
+import com.lwink.javashell.terminal.DoubleBufferedTerminalBenchmark;
+import com.lwink.javashell.terminal.SshAnsiTerminal;
+import com.lwink.javashell.terminal.TerminalOutputQueue;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+
+/**
+ * Compares keeping the scrollback on the heap in an {@link ArrayDisplayBuffer} with keeping it 
+ * in direct memory in a {@link DirectDisplayBuffer} and compressed in a 
+ * {@link CompressedDisplayBuffer}.  The buffer is filled before each trial so
+ * that adding a line also throws away the oldest one, and the benchmarks measure adding a line, 
+ * drawing a 300x100 screen of scrollback, changing the width and drawing the screen again, and 
+ * changing the width and drawing the oldest screen of the scrollback.
+ * 
+ * The ingest benchmarks add a batch of log lines from a reused StringBuilder and from a char 
+ * array, so nothing is allocated for each line, and report the number of lines added per second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DisplayBufferBenchmark
+{
+  private static final int COLUMNS = 300;
+  private static final int ROWS = 100;
+  private static final int CAPACITY = 1 << 20;
+  private static final int INGEST_LINES = 1000;
+  
+  @Param({"heap", "direct", "compressed"})
+  public String storage;
+  
+  private SshAnsiTerminal ansiTerminal;
+  private DoubleBufferedTerminal terminal;
+  private ArrayDisplayBuffer buffer;
+  private int line;
+  private StringBuilder text = new StringBuilder();
+  private char[] chars = new char[0];
+  
+  @Setup
+  public void setup()
+  {
+    OutputStream discard = new OutputStream()
+    {
+      @Override
+      public void write(int b)
+      {
+      }
+      
+      @Override
+      public void write(byte[] b, int off, int len)
+      {
+      }
+    };
+    ansiTerminal = new SshAnsiTerminal(new ByteArrayInputStream(new byte[0]), discard, 
+        new DoubleBufferedTerminalBenchmark.FixedSizeEnvironment(), () -> {}, OutputOverflowPolicy.BLOCK, 
+        TerminalOutputQueue.DEFAULT_CAPACITY);
+    ansiTerminal.start();
+    terminal = new DoubleBufferedTerminal(ansiTerminal);
+    switch (storage)
+    {
+    case "direct":
+      buffer = new DirectDisplayBuffer(COLUMNS, 0, CAPACITY);
+      break;
+    case "compressed":
+      buffer = new CompressedDisplayBuffer(COLUMNS, 0, CAPACITY);
+      break;
+    default:
+      buffer = new ArrayDisplayBuffer(COLUMNS, 0, CAPACITY);
+      break;
+    }
+    while (buffer.getDiscardedRows() == 0)
+    {
+      append();
+    }
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    buffer.release();
+    ansiTerminal.stop();
+  }
+  
+  @Benchmark
+  public void append()
+  {
+    buffer.addText("log line " + line++ + " with some text after the number so that it fills part of the row\n", null);
+  }
+  
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(INGEST_LINES)
+  public void ingestCharSequence()
+  {
+    for (int i = 0; i < INGEST_LINES; i++)
+    {
+      buffer.addTextLine(nextLine(), null);
+    }
+  }
+  
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  @OperationsPerInvocation(INGEST_LINES)
+  public void ingestChars()
+  {
+    for (int i = 0; i < INGEST_LINES; i++)
+    {
+      StringBuilder next = nextLine().append('\n');
+      if (chars.length < next.length())
+      {
+        chars = new char[next.length() * 2];
+      }
+      next.getChars(0, next.length(), chars, 0);
+      buffer.addText(chars, 0, next.length(), null);
+    }
+  }
+  
+  @Benchmark
+  public void draw()
+  {
+    for (int row = 0; row < ROWS; row++)
+    {
+      terminal.moveCursor(0, row);
+      buffer.drawLineFromEnd(terminal, ROWS - 1 - row);
+    }
+    terminal.flush();
+  }
+  
+  @Benchmark
+  public void reflow()
+  {
+    buffer.resizeWidth(line++ % 2 == 0 ? COLUMNS / 2 : COLUMNS);
+    draw();
+  }
+  
+  @Benchmark
+  public void reflowAndScrollToTop()
+  {
+    buffer.resizeWidth(line++ % 2 == 0 ? COLUMNS / 2 : COLUMNS);
+    drawScreen(0);
+  }
+  
+  /**
+   * @return The next log line in the reused StringBuilder, with a tab in it and no '\n'.
+   */
+  private StringBuilder nextLine()
+  {
+    text.setLength(0);
+    return text.append("log line ").append(line++).append("\twith some text after the number so that it fills part of the row");
+  }
+  
+  private void drawScreen(int firstRow)
+  {
+    for (int row = 0; row < ROWS; row++)
+    {
+      terminal.moveCursor(0, row);
+      buffer.drawLine(terminal, firstRow + row);
+    }
+    terminal.flush();
+  }
+}
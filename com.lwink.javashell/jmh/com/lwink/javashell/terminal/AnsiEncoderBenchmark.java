@@ -0,0 +1,164 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the {@link AnsiEncoder} with the ByteBufferBuilder that SshAnsiTerminal used to
+ * create a new ByteBuffer with for every escape sequence.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class AnsiEncoderBenchmark
+{
+  private static final Charset charset = Charset.forName("utf8");
+  
+  private ByteBuffer buffer;
+  private int row;
+  private int col;
+  
+  @Setup
+  public void setup()
+  {
+    buffer = ByteBuffer.allocate(16 * 1024);
+  }
+  
+  @Benchmark
+  public void builderCursorPosition(Blackhole bh)
+  {
+    nextPosition();
+    ByteBuffer bb = ByteBufferBuilder.create()
+        .csi()
+        .add(String.valueOf(row + 1))
+        .add(';')
+        .add(String.valueOf(col + 1))
+        .add('H')
+        .build();
+    bh.consume(bb);
+  }
+  
+  @Benchmark
+  public void encoderCursorPosition(Blackhole bh)
+  {
+    nextPosition();
+    if (buffer.remaining() < AnsiEncoder.MAX_SEQUENCE_LENGTH)
+    {
+      buffer.clear();
+    }
+    AnsiEncoder.cursorPosition(buffer, row + 1, col + 1);
+    bh.consume(buffer);
+  }
+  
+  @Benchmark
+  public void builderColor(Blackhole bh)
+  {
+    nextPosition();
+    ByteBuffer bb = ByteBufferBuilder.create()
+        .csi()
+        .add(String.valueOf(col % 8 + 30))
+        .add('m')
+        .build();
+    bh.consume(bb);
+  }
+  
+  @Benchmark
+  public void encoderColor(Blackhole bh)
+  {
+    nextPosition();
+    if (buffer.remaining() < AnsiEncoder.MAX_SEQUENCE_LENGTH)
+    {
+      buffer.clear();
+    }
+    AnsiEncoder.sgr(buffer, col % 8 + 30);
+    bh.consume(buffer);
+  }
+  
+  /**
+   * Walks the cursor over a 200x60 screen so the parameters change between calls.
+   */
+  private void nextPosition()
+  {
+    if (++col == 200)
+    {
+      col = 0;
+      if (++row == 60)
+      {
+        row = 0;
+      }
+    }
+  }
+  
+  /**
+   * The builder that was used by SshAnsiTerminal before the AnsiEncoder was added.  It is kept 
+   * here as the baseline for the benchmark.
+   */
+  static class ByteBufferBuilder
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(32);
+    
+    public static ByteBufferBuilder create()
+    {
+      return new ByteBufferBuilder();
+    }
+    
+    public ByteBufferBuilder csi()
+    {
+      add(0x1b);
+      add('[');
+      return this;
+    }
+    
+    public ByteBufferBuilder add(byte b)
+    {
+      buffer.put(b);
+      return this;
+    }
+    
+    public ByteBufferBuilder add(int i)
+    {
+      return add((byte)i);
+    }
+    
+    public ByteBufferBuilder add(char c)
+    {
+      return add((byte)c);
+    }
+    
+    public ByteBufferBuilder add(String s)
+    {
+      buffer.put(s.getBytes(charset));
+      return this;
+    }
+    
+    public ByteBuffer build()
+    {
+      return (ByteBuffer)buffer.flip();
+    }
+  }
+}
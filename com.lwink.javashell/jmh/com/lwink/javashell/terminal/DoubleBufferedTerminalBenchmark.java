@@ -0,0 +1,183 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.Signal;
+import org.apache.sshd.server.SignalListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.lwink.javashell.terminal.api.CursorPosition;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+
+/**
+ * Measures the cost of a flush of the {@link DoubleBufferedTerminal} on a 300x100 screen for
+ * frames that are typical of a shell: nothing changed, a single row was typed into, the whole
+ * screen was redrawn but only one row is actually different, and a log that scrolled by a row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class DoubleBufferedTerminalBenchmark
+{
+  private static final int COLUMNS = 300;
+  private static final int ROWS = 100;
+  
+  private SshAnsiTerminal ansiTerminal;
+  private DoubleBufferedTerminal terminal;
+  private char[] line = new char[COLUMNS];
+  private int frame;
+  
+  @Setup
+  public void setup()
+  {
+    OutputStream discard = new OutputStream()
+    {
+      @Override
+      public void write(int b)
+      {
+      }
+      
+      @Override
+      public void write(byte[] b, int off, int len)
+      {
+      }
+    };
+    ansiTerminal = new SshAnsiTerminal(new ByteArrayInputStream(new byte[0]), discard, new FixedSizeEnvironment(), 
+        () -> {}, OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY, Runnable::run);
+    ansiTerminal.start();
+    terminal = new DoubleBufferedTerminal(ansiTerminal);
+    for (int i = 0; i < COLUMNS; i++)
+    {
+      line[i] = (char)('a' + i % 26);
+    }
+    drawScreen();
+    terminal.flush();
+  }
+  
+  @TearDown
+  public void tearDown()
+  {
+    ansiTerminal.stop();
+  }
+  
+  @Benchmark
+  public void unchangedFrame()
+  {
+    terminal.flush();
+  }
+  
+  @Benchmark
+  public void typedCharacter()
+  {
+    terminal.moveCursor(frame++ % COLUMNS, ROWS - 1);
+    terminal.putCharacter((char)('a' + frame % 26));
+    terminal.flush();
+  }
+  
+  @Benchmark
+  public void redrawnScreenWithOneChangedRow()
+  {
+    drawScreen();
+    terminal.moveCursor(frame++ % COLUMNS, ROWS - 1);
+    terminal.putCharacter((char)('a' + frame % 26));
+    terminal.flush();
+  }
+  
+  @Benchmark
+  public void scrolledLog()
+  {
+    frame++;
+    for (int row = 0; row < ROWS; row++)
+    {
+      terminal.moveCursor(0, row);
+      terminal.putString("log line ");
+      terminal.putString(Integer.toString(frame + row));
+      terminal.eraseLineWithCursor(CursorPosition.AFTER_CURSOR);
+    }
+    terminal.flush();
+  }
+  
+  private void drawScreen()
+  {
+    for (int row = 0; row < ROWS; row++)
+    {
+      terminal.moveCursor(0, row);
+      terminal.putChars(line, 0, COLUMNS);
+    }
+  }
+  
+  /**
+   * An SSH environment that reports a fixed terminal size of 300x100.
+   */
+  public static class FixedSizeEnvironment implements Environment
+  {
+    private Map<String, String> env = new HashMap<>();
+    
+    public FixedSizeEnvironment()
+    {
+      env.put(ENV_COLUMNS, String.valueOf(COLUMNS));
+      env.put(ENV_LINES, String.valueOf(ROWS));
+    }
+    
+    @Override
+    public Map<String, String> getEnv()
+    {
+      return env;
+    }
+
+    @Override
+    public Map<PtyMode, Integer> getPtyModes()
+    {
+      return new HashMap<>();
+    }
+
+    @Override
+    public void addSignalListener(SignalListener listener, Signal... signal)
+    {
+    }
+
+    @Override
+    public void addSignalListener(SignalListener listener, Collection<Signal> signals)
+    {
+    }
+
+    @Override
+    public void addSignalListener(SignalListener listener)
+    {
+    }
+
+    @Override
+    public void removeSignalListener(SignalListener listener)
+    {
+    }
+  }
+}
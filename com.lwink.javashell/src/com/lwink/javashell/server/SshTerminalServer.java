@@ -19,8 +19,11 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.apache.sshd.common.Factory;
@@ -42,7 +45,11 @@ import com.lwink.javashell.server.api.Authenticator;
 import com.lwink.javashell.server.api.TerminalClosedListener;
 import com.lwink.javashell.server.api.TerminalCreatedListener;
 import com.lwink.javashell.server.api.TerminalServer;
+import com.lwink.javashell.shell.api.ScrollbackLimit;
 import com.lwink.javashell.terminal.SshAnsiTerminal;
+import com.lwink.javashell.terminal.TerminalOutputQueue;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.SessionStats;
 import com.lwink.javashell.util.Preconditions;
 
 public class SshTerminalServer implements TerminalServer
@@ -58,12 +65,31 @@ public class SshTerminalServer implements TerminalServer
   private Collection<NamedFactory<KeyExchange>> supportedKeyExchangeAlgorithms;
   private Collection<String> supportedMacs;
   private boolean started;
+  private OutputOverflowPolicy outputOverflowPolicy;
+  private int outputQueueCapacity;
+  private ScrollbackLimit scrollbackLimit;
+  private Map<SshShell, SessionStats> sessionStats = new ConcurrentHashMap<>();
   
   public SshTerminalServer(int port, File keyFile, Authenticator authenticator)
+  {
+  	this(port, keyFile, authenticator, OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY);
+  }
+  
+  public SshTerminalServer(int port, File keyFile, Authenticator authenticator, 
+      OutputOverflowPolicy outputOverflowPolicy, int outputQueueCapacity)
+  {
+  	this(port, keyFile, authenticator, outputOverflowPolicy, outputQueueCapacity, ScrollbackLimit.DEFAULT);
+  }
+  
+  public SshTerminalServer(int port, File keyFile, Authenticator authenticator, 
+      OutputOverflowPolicy outputOverflowPolicy, int outputQueueCapacity, ScrollbackLimit scrollbackLimit)
   {
   	this.port = port;
   	this.keyFile = keyFile;
   	this.authenticator = authenticator;
+  	this.outputOverflowPolicy = Preconditions.checkNotNull(outputOverflowPolicy);
+  	this.outputQueueCapacity = outputQueueCapacity;
+  	this.scrollbackLimit = Preconditions.checkNotNull(scrollbackLimit);
   	this.sshd = SshServer.setUpDefaultServer();
   	this.supportedCiphers = sshd.getCipherFactoriesNames();
   	this.supportedKeyExchangeAlgorithms = sshd.getKeyExchangeFactories();
@@ -149,6 +175,18 @@ public class SshTerminalServer implements TerminalServer
   	return supportedMacs;
 	}
   
+  @Override
+  public Collection<SessionStats> getSessionStats()
+  {
+  	return new ArrayList<>(sessionStats.values());
+  }
+  
+  @Override
+  public ScrollbackLimit getScrollbackLimit()
+  {
+  	return scrollbackLimit;
+  }
+  
   @Override
   public synchronized void waitForStop() throws InterruptedException
   {
@@ -219,8 +257,20 @@ public class SshTerminalServer implements TerminalServer
     @Override
     public void destroy()
     {
-      terminalClosedListener.ifPresent(l -> l.onTerminalClosed(terminal));
-      terminal.stop();
+      if (terminal == null)
+      {
+        return;
+      }
+      try
+      {
+        sessionStats.remove(this);
+        terminalClosedListener.ifPresent(l -> l.onTerminalClosed(terminal));
+      }
+      finally
+      {
+        // Always stop the terminal so its threads end when the channel closes
+        terminal.stop();
+      }
     }
 
     /**
@@ -270,8 +320,9 @@ public class SshTerminalServer implements TerminalServer
     	Runnable runOnExit = () -> {
     		exitCallback.onExit(0, "The terminal has quit");
     	};
-      terminal = new SshAnsiTerminal(inputStream, outputStream, env, runOnExit);
+      terminal = new SshAnsiTerminal(inputStream, outputStream, env, runOnExit, outputOverflowPolicy, outputQueueCapacity);
       terminal.start();
+      sessionStats.put(this, terminal.getSessionStats());
       
       terminalCreatedListener.ifPresent(l -> l.onTerminalCreated(terminal));
     }
@@ -17,6 +17,9 @@ package com.lwink.javashell.server.api;
 
 import java.util.Collection;
 
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+import com.lwink.javashell.terminal.api.SessionStats;
+
 public interface TerminalServer
 {
 	void start(TerminalCreatedListener terminalCreatedListener, TerminalClosedListener terminalClosedListener);
@@ -84,6 +87,22 @@ public interface TerminalServer
 	 */
 	Collection<String> getSupportedMacs();
 
+	/**
+	 * Gets the statistics of every session that is currently open.  The returned objects keep 
+	 * being updated for as long as their sessions are open.
+	 * 
+	 * @return The statistics of the open sessions.
+	 */
+	Collection<SessionStats> getSessionStats();
+	
+	/**
+	 * Gets how much output shells created for this server's terminals should keep for scrolling
+	 * back, for example new InputOutputShell(terminal, fps, server.getScrollbackLimit()).
+	 * 
+	 * @return The scrollback limit the server was built with.
+	 */
+	ScrollbackLimit getScrollbackLimit();
+
 	/**
    * A builder to create a TerminalServer.
    * 
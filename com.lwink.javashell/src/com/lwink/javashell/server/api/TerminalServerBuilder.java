@@ -3,12 +3,18 @@ package com.lwink.javashell.server.api;
 import java.io.File;
 
 import com.lwink.javashell.server.SshTerminalServer;
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+import com.lwink.javashell.terminal.TerminalOutputQueue;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
 
 public class TerminalServerBuilder
 {
 	private File keyFile = new File("ssh-key");
 	private int port = 22;
 	private Authenticator authenticator = (user, password) -> true;
+	private OutputOverflowPolicy outputOverflowPolicy = OutputOverflowPolicy.BLOCK;
+	private int outputQueueCapacity = TerminalOutputQueue.DEFAULT_CAPACITY;
+	private ScrollbackLimit scrollbackLimit = ScrollbackLimit.DEFAULT;
 	
 	/**
 	 * @param keyFile A file to store the server's key pair.
@@ -40,6 +46,39 @@ public class TerminalServerBuilder
 		return this;
 	}
 	
+	/**
+	 * @param outputOverflowPolicy What each terminal does when its client can't keep up with the 
+	 *        output being sent to it.  The default is {@link OutputOverflowPolicy#BLOCK}.
+	 * @return this TerminalServerBuilder
+	 */
+	public TerminalServerBuilder outputOverflowPolicy(OutputOverflowPolicy outputOverflowPolicy)
+	{
+		this.outputOverflowPolicy = outputOverflowPolicy;
+		return this;
+	}
+	
+	/**
+	 * @param outputQueueCapacity The most bytes of output that can be waiting to be sent to each 
+	 *        client before the overflow policy is applied.
+	 * @return this TerminalServerBuilder
+	 */
+	public TerminalServerBuilder outputQueueCapacity(int outputQueueCapacity)
+	{
+		this.outputQueueCapacity = outputQueueCapacity;
+		return this;
+	}
+	
+	/**
+	 * @param scrollbackLimit How much output each shell keeps for scrolling back.  Shells get it from
+	 *        {@link TerminalServer#getScrollbackLimit()}.  The default is {@link ScrollbackLimit#DEFAULT}.
+	 * @return this TerminalServerBuilder
+	 */
+	public TerminalServerBuilder scrollbackLimit(ScrollbackLimit scrollbackLimit)
+	{
+		this.scrollbackLimit = scrollbackLimit;
+		return this;
+	}
+	
 	/**
 	 * Builds a TerminalServer with the settings that have been passed in.
 	 * 
@@ -47,6 +86,6 @@ public class TerminalServerBuilder
 	 */
 	public TerminalServer build()
 	{
-		return new SshTerminalServer(port, keyFile, authenticator);
+		return new SshTerminalServer(port, keyFile, authenticator, outputOverflowPolicy, outputQueueCapacity, scrollbackLimit);
 	}
 }
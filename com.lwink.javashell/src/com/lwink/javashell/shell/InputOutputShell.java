@@ -15,28 +15,58 @@
  **/
 package com.lwink.javashell.shell;
 
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.lwink.javashell.shell.api.InputCallback;
+import com.lwink.javashell.shell.api.ScrollbackLimit;
 import com.lwink.javashell.shell.api.Shell;
 import com.lwink.javashell.shell.api.TextAttributes;
+import com.lwink.javashell.shell.window.ArrayDisplayBuffer;
+import com.lwink.javashell.shell.window.CompressedDisplayBuffer;
+import com.lwink.javashell.shell.window.DirectDisplayBuffer;
 import com.lwink.javashell.shell.window.InputWindow;
 import com.lwink.javashell.shell.window.Window;
 import com.lwink.javashell.terminal.api.KeyPress;
 import com.lwink.javashell.terminal.api.TermSize;
 import com.lwink.javashell.terminal.api.Terminal;
+import com.lwink.javashell.util.Preconditions;
 
 /**
  * Implementation of a simple shell.  This shell has 2 windows, a 1 line input window at the bottom
  * and a multi-line output window on the top.
+ * 
+ * Output added to the shell is not drawn by the thread that adds it.  The main window is marked 
+ * as dirty and redrawn by a render thread at most a fixed number of times per second, so any 
+ * amount of output added in between is drawn in a single frame.  Input from the user is still 
+ * echoed as soon as it is typed.
+ * 
+ * There are two locks.  The lock on the shell only guards the output that is waiting to be added
+ * to the main window and the render schedule, and is never held while drawing.  The render lock 
+ * guards the windows and the terminal, and is held while the render thread draws and waits for 
+ * the client.  Adding output only takes the lock on the shell, so threads adding output don't 
+ * wait for a slow client.  The waiting output is moved into the main window under the render lock
+ * before each frame is drawn.  If more than {@link #MAX_PENDING_CHARS} chars of output pile up 
+ * while a frame is being drawn, the thread adding output moves it into the main window itself, 
+ * which waits for the render lock, so memory use stays bounded when the client stops reading.
+ * The render lock is always taken before the lock on the shell.
  */
 public class InputOutputShell implements Shell
 {
   public static final Logger LOG = LoggerFactory.getLogger(InputOutputShell.class);
   
+  /** The default limit on how many times per second the main window is redrawn */
+  public static final int DEFAULT_MAX_FRAMES_PER_SECOND = 30;
+  
+  /** The most chars of output that can be waiting to be added to the main window */
+  public static final int MAX_PENDING_CHARS = 1 << 20;
+  
   /** The underlying Terminal that this shell sits on top of */
   private Terminal terminal;
   
@@ -60,16 +90,105 @@ public class InputOutputShell implements Shell
   
   private boolean closed = false;
   
+  /** Guards the windows and the terminal, see the class comment */
+  private final Object renderLock = new Object();
+  
+  /** 
+   * Output waiting to be added to the main window, guarded by the lock on the shell.  The other
+   * one is swapped in while the output is being added, so neither is ever reallocated.
+   */
+  private PendingOutput pendingOutput = new PendingOutput();
+  private PendingOutput drainingOutput = new PendingOutput();
+  
+  /** Runs the redraws of the main window */
+  private final ScheduledExecutorService renderExecutor;
+  
+  /** The shortest time allowed between redraws of the main window */
+  private final long frameIntervalNanos;
+  
+  /** true if the main window has changed since it was last drawn */
+  private boolean dirty = false;
+  
+  /** true if a redraw has been scheduled on the render executor but hasn't run yet */
+  private boolean renderScheduled = false;
+  
+  /** The value of System.nanoTime() when the main window was last drawn */
+  private long lastRenderNanos;
+  
   public InputOutputShell(Terminal terminal)
   {
+    this(terminal, DEFAULT_MAX_FRAMES_PER_SECOND);
+  }
+  
+  /**
+   * Create a new shell.
+   * 
+   * @param terminal The terminal to draw the shell on.
+   * @param maxFramesPerSecond The most times per second that the main window will be redrawn
+   *        because output was added.
+   */
+  public InputOutputShell(Terminal terminal, int maxFramesPerSecond)
+  {
+    this(terminal, maxFramesPerSecond, ScrollbackLimit.DEFAULT);
+  }
+  
+  /**
+   * Create a new shell.
+   * 
+   * @param terminal The terminal to draw the shell on.
+   * @param maxFramesPerSecond The most times per second that the main window will be redrawn
+   *        because output was added.
+   * @param scrollbackLimit How much output the main window keeps for scrolling back.
+   */
+  public InputOutputShell(Terminal terminal, int maxFramesPerSecond, ScrollbackLimit scrollbackLimit)
+  {
+    this(terminal, maxFramesPerSecond, scrollbackLimit, Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "shell-render");
+      t.setDaemon(true);
+      return t;
+    }));
+  }
+  
+  /**
+   * Create a new shell whose main window is redrawn by an executor.
+   * 
+   * @param terminal The terminal to draw the shell on.
+   * @param maxFramesPerSecond The most times per second that the main window will be redrawn
+   *        because output was added.
+   * @param scrollbackLimit How much output the main window keeps for scrolling back.
+   * @param renderExecutor Runs the redraws of the main window.  It is shut down when the shell 
+   *        is closed.
+   */
+  protected InputOutputShell(Terminal terminal, int maxFramesPerSecond, ScrollbackLimit scrollbackLimit, 
+      ScheduledExecutorService renderExecutor)
+  {
+    Preconditions.checkArgument(maxFramesPerSecond > 0, "maxFramesPerSecond must be positive");
     this.terminal = terminal;
+    this.frameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxFramesPerSecond;
+    this.lastRenderNanos = System.nanoTime() - frameIntervalNanos;
+    this.renderExecutor = Preconditions.checkNotNull(renderExecutor);
     
     TermSize size = terminal.getTerminalSize();
-    this.mainWindow = new Window(terminal, size.getColumns(), size.getRows() - 1, 0, 0);
+    ArrayDisplayBuffer displayBuffer;
+    if (scrollbackLimit.isOffHeap())
+    {
+      displayBuffer = new DirectDisplayBuffer(size.getColumns(), scrollbackLimit);
+    }
+    else if (scrollbackLimit.isCompressed())
+    {
+      displayBuffer = new CompressedDisplayBuffer(size.getColumns(), scrollbackLimit);
+    }
+    else
+    {
+      displayBuffer = new ArrayDisplayBuffer(size.getColumns(), scrollbackLimit);
+    }
+    this.mainWindow = new Window(terminal, displayBuffer, size.getColumns(), size.getRows() - 1, 0, 0);
     this.inputWindow = new InputWindow(terminal, size.getColumns(), size.getRows() - 1);
     onResize(size);
     terminal.registerResizeObserver(this::onResize);
     terminal.registerKeyPressReceiver(this::onKeyPress);
+    terminal.registerRepaintObserver(this::onRepaintNeeded);
+    terminal.registerClosedListener(t -> onTerminalClosed());
 
 
     terminal.enterPrivateMode();
@@ -81,9 +200,59 @@ public class InputOutputShell implements Shell
   @Override
   public void close()
   {
-  	closed = true;
-    terminal.exitPrivateMode();
-    terminal.stop();
+    synchronized (renderLock)
+    {
+      if (!markClosed())
+      {
+        return;
+      }
+      try
+      {
+        terminal.resetScrollRegion();
+        terminal.exitPrivateMode();
+        terminal.stop();
+      }
+      finally
+      {
+        mainWindow.release();
+      }
+    }
+  }
+  
+  /**
+   * Called when the terminal has stopped without the shell being closed, such as when the client
+   * disconnects.  Nothing more can be drawn, so the scrollback is released straight away rather
+   * than waiting for {@link #close()}.
+   */
+  private void onTerminalClosed()
+  {
+    synchronized (renderLock)
+    {
+      if (markClosed())
+      {
+        mainWindow.release();
+      }
+    }
+  }
+  
+  /**
+   * Marks the shell as closed and stops any redraws.  Must be called holding the render lock.
+   * 
+   * @return false if the shell was already closed.
+   */
+  private boolean markClosed()
+  {
+    synchronized (this)
+    {
+      if (closed)
+      {
+        return false;
+      }
+      closed = true;
+      pendingOutput.clear();
+    }
+    renderExecutor.shutdownNow();
+    return true;
   }
   
   @Override
@@ -92,29 +261,54 @@ public class InputOutputShell implements Shell
     addOutput(string, attributes, true, true);
   }
   
+  /**
+   * {@inheritDoc}
+   * 
+   * The output isn't added to the main window right away either, it is added by the next thread 
+   * to draw, so this doesn't wait for the render thread or the client.  Refreshing doesn't draw 
+   * the window right away.  The window is redrawn on the render thread once the frame interval 
+   * has passed, along with any other output added before then.
+   */
   @Override
   public void addOutput(String string, TextAttributes attributes, boolean addNewLine, boolean refresh)
   {
-  	checkShell();
-  	if (addNewLine)
-  	{
-  		string += '\n';
-  	}
-    mainWindow.addText(string, attributes, false); // Don't refresh here.  We will do so below if needed.
-    inputWindow.resetCursorPosition();
-    if (refresh)
+    boolean backlogged;
+    synchronized (this)
     {
-      refresh();
+      checkShell();
+      pendingOutput.add(string, attributes, addNewLine);
+      if (refresh)
+      {
+        scheduleRender();
+      }
+      backlogged = pendingOutput.chars > MAX_PENDING_CHARS;
+    }
+    
+    if (backlogged)
+    {
+      synchronized (renderLock)
+      {
+        addPendingOutput();
+      }
     }
   }
   
+  /**
+   * Redraws the main window right away.
+   */
   @Override
   public void refresh()
   {
-  	checkShell();
-    mainWindow.refresh();
-    inputWindow.resetCursorPosition();
-    terminal.flush();
+    synchronized (renderLock)
+    {
+      synchronized (this)
+      {
+        checkShell();
+        dirty = false;
+      }
+      addPendingOutput();
+      render(true);
+    }
   }
   
   @Override
@@ -126,10 +320,13 @@ public class InputOutputShell implements Shell
   @Override
 	public void setPrompt(String newPrompt)
 	{
-  	checkShell();
-		inputWindow.setPrompt(newPrompt);
-		inputWindow.refresh();
-		terminal.flush();
+  	synchronized (renderLock)
+  	{
+  	  checkShell();
+  	  inputWindow.setPrompt(newPrompt);
+  	  inputWindow.refresh();
+  	  terminal.flush();
+  	}
 	}
   
   @Override
@@ -152,22 +349,131 @@ public class InputOutputShell implements Shell
   }
   
   /**
-   * Called when there is input ready to be processed
+   * Called when there is input ready to be processed.  The input callback is called without 
+   * holding either lock, so other threads can keep adding output while it runs.
    */
   protected void inputReady()
   { 
-    String input = inputWindow.getWindowContents();
-    commandHistory.add(input);
+    String input;
+    synchronized (renderLock)
+    {
+      input = inputWindow.getWindowContents();
+      commandHistory.add(input);
+    }
+    
     if (inputCallback.isPresent())
     {
       inputCallback.get().inputReady(input, this);
     }
     
-    // Scroll all the way back down.
-    mainWindow.setScrollPosition(0);
-    
-    inputWindow.clearWindowContents();
-    inputWindow.refresh();
+    synchronized (renderLock)
+    {
+      if (!closed)
+      {
+        // Scroll all the way back down.
+        addPendingOutput();
+        mainWindow.setScrollPosition(0);
+        
+        inputWindow.clearWindowContents();
+        inputWindow.refresh();
+      }
+    }
+  }
+  
+  /**
+   * Marks the main window as dirty and makes sure that a redraw is scheduled.  If the main window
+   * hasn't been drawn for a full frame interval, it is drawn right away on the render thread.
+   * The caller must hold the lock on the shell.
+   */
+  private void scheduleRender()
+  {
+    dirty = true;
+    if (!renderScheduled)
+    {
+      renderScheduled = true;
+      long delay = Math.max(0, lastRenderNanos + frameIntervalNanos - System.nanoTime());
+      renderExecutor.schedule(this::renderIfDirty, delay, TimeUnit.NANOSECONDS);
+    }
+  }
+  
+  /**
+   * Runs on the render thread to draw the main window if it has changed.
+   */
+  private void renderIfDirty()
+  {
+    synchronized (renderLock)
+    {
+      synchronized (this)
+      {
+        renderScheduled = false;
+        if (!dirty || closed)
+        {
+          return;
+        }
+        
+        // Cleared before the output is moved into the window, so output added after that marks 
+        // the window dirty again
+        dirty = false;
+      }
+      addPendingOutput();
+      render(false);
+    }
+  }
+  
+  /**
+   * Moves the output waiting to be added into the main window.  The lock on the shell is only 
+   * held while the waiting output is swapped out, so output can be added while this runs.  The
+   * caller must hold the render lock.
+   */
+  private void addPendingOutput()
+  {
+    PendingOutput output;
+    synchronized (this)
+    {
+      output = pendingOutput;
+      pendingOutput = drainingOutput;
+      drainingOutput = output;
+    }
+    for (int i = 0; i < output.count; i++)
+    {
+      if (output.newLines[i])
+      {
+        mainWindow.addTextWithNewLine(output.text[i], output.attributes[i], false);
+      }
+      else
+      {
+        mainWindow.addText(output.text[i], output.attributes[i], false);
+      }
+    }
+    output.clear();
+  }
+  
+  /**
+   * Draws the main window and puts the cursor back in the input window.  The caller must hold 
+   * the render lock.
+   * 
+   * @param full If true, the whole window is redrawn, otherwise only what changed is drawn.
+   */
+  private void render(boolean full)
+  {
+    long start = System.nanoTime();
+    synchronized (this)
+    {
+      lastRenderNanos = start;
+    }
+    terminal.beginFrame();
+    if (full)
+    {
+      mainWindow.refresh();
+    }
+    else
+    {
+      mainWindow.update();
+    }
+    inputWindow.resetCursorPosition();
+    terminal.endFrame();
+    terminal.flush();
+    terminal.getSessionStats().recordFrame(System.nanoTime() - start);
   }
   
   /**
@@ -177,11 +483,44 @@ public class InputOutputShell implements Shell
    */
   protected void onResize(TermSize newSize)
   {
-    LOG.debug("Terminal has been resized {}x{}", newSize.getColumns(), newSize.getRows());
-    columns = newSize.getColumns();
-    rows = newSize.getRows();
-    mainWindow.resize(columns, rows - 1);
-    inputWindow.resize(columns, rows-1);
+    synchronized (renderLock)
+    {
+      if (closed)
+      {
+        return;
+      }
+      LOG.debug("Terminal has been resized {}x{}", newSize.getColumns(), newSize.getRows());
+      columns = newSize.getColumns();
+      rows = newSize.getRows();
+      addPendingOutput();
+      mainWindow.resize(columns, rows - 1);
+      inputWindow.resize(columns, rows-1);
+    }
+  }
+
+  /**
+   * Called by the Terminal when the client's screen has to be completely redrawn.
+   */
+  protected void onRepaintNeeded()
+  {
+    synchronized (renderLock)
+    {
+      if (!closed)
+      {
+        synchronized (this)
+        {
+          dirty = false;
+        }
+        addPendingOutput();
+        long start = System.nanoTime();
+        terminal.beginFrame();
+        mainWindow.refresh();
+        inputWindow.refresh();
+        terminal.endFrame();
+        terminal.flush();
+        terminal.getSessionStats().recordFrame(System.nanoTime() - start);
+      }
+    }
   }
 
   /**
@@ -191,18 +530,34 @@ public class InputOutputShell implements Shell
    */
   protected void onKeyPress(KeyPress keyPress)
   {
-    switch (keyPress.getType())
+    if (keyPress.getType() == KeyPress.Type.NORMAL && (keyPress.getChar() == '\n' || keyPress.getChar() == '\r'))
     {
-    case NORMAL:
-      char c = keyPress.getChar();
-      if (c == '\n' || c == '\r')
-      {
-        inputReady();
-      }
-      else
+      inputReady();
+    }
+    else
+    {
+      synchronized (renderLock)
       {
-        inputWindow.addChar(c).refresh();
+        if (!closed)
+        {
+          addPendingOutput();
+          handleKeyPress(keyPress);
+        }
       }
+    }
+  }
+  
+  /**
+   * Handles all key presses except for enter.  The caller must hold the render lock.
+   * 
+   * @param keyPress Information on the key that was pressed
+   */
+  private void handleKeyPress(KeyPress keyPress)
+  {
+    switch (keyPress.getType())
+    {
+    case NORMAL:
+      inputWindow.addChar(keyPress.getChar()).refresh();
       break;
     case ARROW_LEFT:
     	if (!keyPress.shift() && !keyPress.ctrl())
@@ -279,4 +634,43 @@ public class InputOutputShell implements Shell
   		}
   	}
   }
+  
+  /**
+   * Output that has been added to the shell but not to the main window yet.  The text isn't 
+   * copied, and the arrays are reused, so adding output doesn't allocate once they are big enough.
+   */
+  private static class PendingOutput
+  {
+    private String[] text = new String[16];
+    private TextAttributes[] attributes = new TextAttributes[16];
+    private boolean[] newLines = new boolean[16];
+    private int count;
+    
+    /** The total length of the text */
+    private long chars;
+    
+    private void add(String string, TextAttributes textAttributes, boolean addNewLine)
+    {
+      if (count == text.length)
+      {
+        text = Arrays.copyOf(text, count * 2);
+        attributes = Arrays.copyOf(attributes, count * 2);
+        newLines = Arrays.copyOf(newLines, count * 2);
+      }
+      text[count] = string;
+      attributes[count] = textAttributes;
+      newLines[count] = addNewLine;
+      count++;
+      chars += string.length();
+    }
+    
+    private void clear()
+    {
+      // Let go of the text so it can be collected
+      Arrays.fill(text, 0, count, null);
+      Arrays.fill(attributes, 0, count, null);
+      count = 0;
+      chars = 0;
+    }
+  }
 }
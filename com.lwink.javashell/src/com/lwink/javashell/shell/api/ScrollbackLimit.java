@@ -0,0 +1,126 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.shell.api;
+
+import com.lwink.javashell.util.Preconditions;
+
+/**
+ * Limits how much output a shell keeps for scrolling back.  Scrollback is allocated in chunks as
+ * output is added, so a limit only costs memory once that much output has actually been added.
+ * When the limit is reached the oldest rows are thrown away.  Large limits can be kept 
+ * {@link #offHeap() off the heap}, so that scrollback doesn't add to garbage collection work, or
+ * {@link #compressed() compressed}, so that it takes up less memory.
+ */
+public final class ScrollbackLimit
+{
+	/** The number of cells kept when only the number of lines is limited */
+	public static final int MAX_CELLS = 1 << 24;
+	
+	/** Keeps 128K cells, for example about 1600 full rows of an 80 column terminal */
+	public static final ScrollbackLimit DEFAULT = cells(1 << 17);
+	
+	private final int maxCells;
+	private final int maxLines;
+	private final boolean offHeap;
+	private final boolean compressed;
+	
+	private ScrollbackLimit(int maxCells, int maxLines, boolean offHeap, boolean compressed)
+	{
+		Preconditions.checkArgument(maxCells > 0 && maxCells <= MAX_CELLS, "maxCells must be between 1 and " + MAX_CELLS);
+		Preconditions.checkArgument(maxLines >= 0, "maxLines must not be negative");
+		this.maxCells = maxCells;
+		this.maxLines = maxLines;
+		this.offHeap = offHeap;
+		this.compressed = compressed;
+	}
+	
+	/**
+	 * @param maxCells The most characters to keep, including line breaks.  This is rounded up to a
+	 *        power of two.
+	 * @return A limit on the number of cells.
+	 */
+	public static ScrollbackLimit cells(int maxCells)
+	{
+		return new ScrollbackLimit(maxCells, 0, false, false);
+	}
+	
+	/**
+	 * @param maxLines The most rows to keep.  No more than {@link #MAX_CELLS} cells are kept.
+	 * @return A limit on the number of rows.
+	 */
+	public static ScrollbackLimit lines(int maxLines)
+	{
+		Preconditions.checkArgument(maxLines > 0, "maxLines must be positive");
+		return new ScrollbackLimit(MAX_CELLS, maxLines, false, false);
+	}
+	
+	/**
+	 * @return The most cells to keep.
+	 */
+	public int getMaxCells()
+	{
+		return maxCells;
+	}
+	
+	/**
+	 * @return The most rows to keep, or 0 if the number of rows isn't limited.
+	 */
+	public int getMaxLines()
+	{
+		return maxLines;
+	}
+	
+	/**
+	 * @return The same limit, with the scrollback kept in direct memory outside the Java heap.  
+	 *         The memory is given back when the shell is closed or its terminal stops.
+	 */
+	public ScrollbackLimit offHeap()
+	{
+		return new ScrollbackLimit(maxCells, maxLines, true, false);
+	}
+	
+	/**
+	 * @return The same limit, with the scrollback kept compressed on the heap.  Output that has 
+	 *         scrolled back takes up much less memory, but is decompressed again when it is 
+	 *         scrolled back to.
+	 */
+	public ScrollbackLimit compressed()
+	{
+		return new ScrollbackLimit(maxCells, maxLines, false, true);
+	}
+	
+	/**
+	 * @return true if the scrollback is kept outside the Java heap.
+	 */
+	public boolean isOffHeap()
+	{
+		return offHeap;
+	}
+	
+	/**
+	 * @return true if the scrollback is kept compressed.
+	 */
+	public boolean isCompressed()
+	{
+		return compressed;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return (maxLines > 0 ? maxLines + " lines" : maxCells + " cells") + (offHeap ? " off heap" : "") + (compressed ? " compressed" : "");
+	}
+}
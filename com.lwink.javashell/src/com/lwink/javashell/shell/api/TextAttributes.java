@@ -19,13 +19,15 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.lwink.javashell.terminal.api.PackedColor;
 import com.lwink.javashell.terminal.api.TermColor;
 import com.lwink.javashell.terminal.api.TextStyle;
 
 public class TextAttributes
 {
-	private TermColor fgColor = TermColor.DEFAULT;
-	private TermColor bgColor = TermColor.DEFAULT;
+	/** Colors are stored as {@link PackedColor} values */
+	private int fgColor = PackedColor.DEFAULT;
+	private int bgColor = PackedColor.DEFAULT;
 	private List<TextStyle> styles = new ArrayList<>();
 	
 	public TextAttributes()
@@ -35,11 +37,35 @@ public class TextAttributes
 	
 	public TextAttributes setFgColor(TermColor color)
 	{
-		this.fgColor = color;
+		this.fgColor = color.getPackedColor();
 		return this;
 	}
 	
 	public TextAttributes setBgColor(TermColor color)
+	{
+		this.bgColor = color.getPackedColor();
+		return this;
+	}
+	
+	/**
+	 * Sets the foreground color to any color, including 256 color palette and 24 bit colors.
+	 * 
+	 * @param color A {@link PackedColor}, for example PackedColor.rgb(255, 128, 0).
+	 * @return This TextAttributes.
+	 */
+	public TextAttributes setFgColor(int color)
+	{
+		this.fgColor = color;
+		return this;
+	}
+	
+	/**
+	 * Sets the background color to any color, including 256 color palette and 24 bit colors.
+	 * 
+	 * @param color A {@link PackedColor}, for example PackedColor.indexed(196).
+	 * @return This TextAttributes.
+	 */
+	public TextAttributes setBgColor(int color)
 	{
 		this.bgColor = color;
 		return this;
@@ -52,12 +78,40 @@ public class TextAttributes
 		return this;
 	}
 	
+	/**
+	 * Colors set from the 256 color palette or as RGB are mapped to the nearest basic color, so
+	 * this never returns null.  Use {@link #getPackedFgColor()} to get the exact color.
+	 * 
+	 * @return The foreground color.
+	 */
 	public TermColor getFgColor()
 	{
-		return fgColor;
+		return PackedColor.toNearestTermColor(fgColor);
 	}
 	
+	/**
+	 * Colors set from the 256 color palette or as RGB are mapped to the nearest basic color, so
+	 * this never returns null.  Use {@link #getPackedBgColor()} to get the exact color.
+	 * 
+	 * @return The background color.
+	 */
 	public TermColor getBgColor()
+	{
+		return PackedColor.toNearestTermColor(bgColor);
+	}
+	
+	/**
+	 * @return The foreground color as a {@link PackedColor}.
+	 */
+	public int getPackedFgColor()
+	{
+		return fgColor;
+	}
+	
+	/**
+	 * @return The background color as a {@link PackedColor}.
+	 */
+	public int getPackedBgColor()
 	{
 		return bgColor;
 	}
@@ -77,6 +131,16 @@ public class TextAttributes
 		return new TextAttributes().setBgColor(color);
 	}
 	
+	public static TextAttributes fgColor(int color)
+	{
+		return new TextAttributes().setFgColor(color);
+	}
+	
+	public static TextAttributes bgColor(int color)
+	{
+		return new TextAttributes().setBgColor(color);
+	}
+	
 	public static TextAttributes styles(TextStyle ...styles)
 	{
 		return new TextAttributes().setStyles(styles);
@@ -15,10 +15,12 @@
  **/
 package com.lwink.javashell.shell.window;
 
+import com.lwink.javashell.shell.api.ScrollbackLimit;
 import com.lwink.javashell.shell.api.TextAttributes;
-import com.lwink.javashell.terminal.api.TermColor;
+import com.lwink.javashell.terminal.api.PackedColor;
 import com.lwink.javashell.terminal.api.Terminal;
-import com.lwink.javashell.util.Preconditions;
+import com.lwink.javashell.terminal.api.TextStyle;
+import com.lwink.javashell.util.CharacterWidth;
 
 /**
  * The display buffer implementation.  Internally, everything is stored as an
@@ -27,345 +29,983 @@ import com.lwink.javashell.util.Preconditions;
  * by a true array of values instead of an array of references.  This speeds
  * things up a lot.
  * 
- * Cell format is as follows:
- * [xxxxxxBBBBBFFFFFTTTTTTTTTTTTTTTT]
- * x = Not used.
- * F = Foreground color bits
- * B = Background color bits
- * T = Character bits
+ * Each cell holds the Unicode code point of a character, so characters outside the Basic 
+ * Multilingual Plane take up one cell like any other character.
+ * 
+ * Output usually comes in long stretches that share the same attributes, so attributes aren't
+ * stored in the cells.  They are kept as spans instead, each with the position of the first cell
+ * it applies to, the {@link TextStyle} mask, and the colors packed into a long.  The high 32 
+ * bits hold the foreground {@link PackedColor} and the low 32 bits hold the background.  A new 
+ * span is only started when text is added with different attributes than the span before it.
+ * 
+ * The cells are kept in a ring.  Every cell gets a position that only ever increases, and is 
+ * stored at that position masked to the size of the arrays, which is a power of two.  When the
+ * ring is full the oldest row is thrown away to make room, which only moves the start position, 
+ * so adding text takes the same time no matter how much is in the buffer.  
+ * 
+ * Only the positions that logical lines (the text between two '\n' characters) start at are 
+ * stored, in a ring of their own for the same reason.  How lines wrap into rows depends on the 
+ * width, so the rows are worked out lazily for the current width.  The row that every 64th 
+ * line starts on is cached, along with the length of the longest line in each group of 64, so 
+ * a group of lines that all fit in the width can be counted as one row each without looking at
+ * them.  The cache is anchored at the end of the buffer: changing the width empties it except
+ * for the last group, and it only grows back towards the start as rows further back are asked 
+ * for.  Showing the last screen after a resize only wraps about a screen of rows, no matter how 
+ * much scrollback there is.
+ * 
+ * Finding a row that is already in the cache only needs a binary search over the cached groups 
+ * and a walk through one group.  The first time a row further back than the cache is asked for,
+ * the groups between it and the cache are wrapped first, so that costs time in proportion to 
+ * how far back the row is.  Counting rows from the start, as {@link #drawLine(Terminal, int)} and
+ * {@link #getNumberOfRowsWithContent()} do, wraps every row in the buffer the first time after a
+ * resize, while {@link #drawLineFromEnd(Terminal, int)} and 
+ * {@link #getNumberOfRowsWithContent(int)} only wrap the rows they count back over.
+ * 
+ * Wide characters take up two columns and combining marks take up none, see 
+ * {@link CharacterWidth}.  Each entry of the line index also records whether the line before it
+ * only has characters that are one column wide, so most lines can still be wrapped by dividing 
+ * their length by the width, and only lines with other characters have to be walked through.
+ * 
+ * The ring is split into fixed size chunks that are only allocated when text first reaches them,
+ * so a buffer only takes up as much memory as the output that has been added to it, up to its 
+ * {@link ScrollbackLimit}.  Subclasses can keep the chunks and the line index somewhere else by 
+ * overriding the methods that read and write them, see {@link DirectDisplayBuffer}.
  */
 public class ArrayDisplayBuffer implements DisplayBuffer
 {
-  private int[] buffer;
-  private int cellCount;
-  private int[] lineIndexes;
-  private int lineInsertIndex;
+  /** The line index is split into blocks of 1 << LINE_BLOCK_SHIFT entries for the wrap cache */
+  private static final int LINE_BLOCK_SHIFT = 6;
+  private static final int LINE_BLOCK_SIZE = 1 << LINE_BLOCK_SHIFT;
+  private static final int LINE_BLOCK_MASK = LINE_BLOCK_SIZE - 1;
+  
+  /** Set in the line index entry of a line if the line before it has characters that aren't one column wide */
+  private static final long MIXED_WIDTH_FLAG = 1L << 63;
+  
+  /** Tab characters are expanded with spaces to the next multiple of this many columns */
+  private static final int TAB_STOP = 8;
+  
+  /** The number of cells in a chunk is 1 << CHUNK_SHIFT */
+  protected static final int CHUNK_SHIFT = 12;
+  protected static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  protected static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  
+  /** The chunks of cells, a chunk is null until a cell in it is written */
+  private int[][] cellChunks;
+  
+  /** The number of cells kept, a power of two.  The cell at a position is at position & cellMask */
+  protected final int capacity;
+  protected final int cellMask;
+  
+  /** The most rows to keep, or 0 if only the number of cells is limited */
+  private int maxLines;
+  
+  /** The position of the oldest cell, and of the next cell to be added */
+  private long startPosition;
+  private long endPosition;
+  
+  /** 
+   * The position that each line starts at.  Line l is at index (firstLine + l) & lineMask, and 
+   * the index has lineMask + 1 entries, or none until the second line is started.  The last line
+   * is the one text is being added to, and is empty if the text ends with a '\n'.
+   */
+  private long[] lineStarts;
+  private int lineMask = -1;
+  private int firstLine;
+  private int lineCount;
+  
+  /** 
+   * The wrap cache.  Every row has an id, which stays the same as text is added and old rows are
+   * thrown away, so only the ids of the rows that were there before a resize change.  A line whose 
+   * index entry is the first of a block is a block line, and line 0 is always treated as one.  For
+   * the block lines from cacheFrom to cacheTo, blockRows holds the id of the first row of the 
+   * line, except for line 0 whose id is held by firstRowId.  Lines that end with a '\n' never 
+   * change, so the entries stay valid until the width changes.
+   */
+  private long[] blockRows;
+  private int cacheFrom;
+  private int cacheTo;
+  private long firstRowId;
+  
+  /** The number of columns of the longest line that has ended in each block of the line index */
+  private int[] blockMaxLengths;
+  
+  /** Whether every character of the last line is one column wide, and its number of columns */
+  private boolean lastLineNarrow = true;
+  private long lastLineColumns;
+  
+  /** 
+   * The attribute spans.  Span s is at index (firstSpan + s) & spanMask.  Span 0 may start 
+   * before the start position, and there is always at least one span.
+   */
+  private long[] spanStarts = new long[16];
+  private int[] spanStyles = new int[16];
+  private long[] spanColors = new long[16];
+  private int spanMask = 15;
+  private int firstSpan;
+  private int spanCount = 1;
+  
+  private long discardedRows;
   private int width;
+  private int layoutVersion;
   
+  /** Reused to hold the characters of a line while it is being drawn */
+  private char[] lineChars = new char[0];
+  
+  public ArrayDisplayBuffer(int width, ScrollbackLimit limit)
+  {
+    this(width, limit.getMaxLines(), limit.getMaxCells());
+  }
+  
+  /**
+   * Creates a display buffer that keeps the default number of cells.
+   * 
+   * @param width The width in columns.
+   * @param numberOfLines The most rows to keep, or 0 to only limit the number of cells.
+   */
   public ArrayDisplayBuffer(int width, int numberOfLines)
   {
-    this.buffer = new int[100000];
-    this.cellCount = 0;
-    this.lineIndexes = new int[100];
-    this.lineInsertIndex = 0;
-    this.width = width;
+    this(width, numberOfLines, ScrollbackLimit.DEFAULT.getMaxCells());
+  }
+  
+  /**
+   * Creates a display buffer that keeps a given number of cells.
+   * 
+   * @param width The width in columns.
+   * @param numberOfLines The most rows to keep, or 0 to only limit the number of cells.
+   * @param capacity The number of cells to keep.  It is rounded up to a power of two.
+   */
+  public ArrayDisplayBuffer(int width, int numberOfLines, int capacity)
+  {
+    this.capacity = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.cellMask = this.capacity - 1;
+    this.maxLines = numberOfLines;
+    this.lineCount = 1;
+    this.width = Math.max(1, width);
+  }
+  
+  @Override
+  public void addText(CharSequence text, TextAttributes attributes)
+  {
+    setAttributes(attributes);
+    appendText(text);
+    discardExtraRows();
   }
   
   @Override
-  public void addText(String text, TextAttributes attributes)
+  public void addText(char[] chars, int offset, int length, TextAttributes attributes)
   {
-  	// This is a pretty crude way of handling tab characters.  A better approach would be to
-  	// align tab stops on a particular column.
-  	text = text.replaceAll("\t", "  ");
-  	
-    if (cellCount + text.length() > buffer.length)
+    setAttributes(attributes);
+    appendText(chars, offset, length);
+    discardExtraRows();
+  }
+  
+  @Override
+  public void addTextLine(CharSequence text, TextAttributes attributes)
+  {
+    setAttributes(attributes);
+    appendText(text);
+    addCharToBuffer('\n');
+    discardExtraRows();
+  }
+  
+  /**
+   * Adds the characters of some text to the buffer in a single pass, without copying it.
+   * 
+   * @param text The text to add.
+   */
+  private void appendText(CharSequence text)
+  {
+    int length = text.length();
+    for (int i = 0; i < length; i++)
     {
-      rollBuffer();
-      lineInsertIndex = 0; // This forces us to recalculate all the line indexes instead of just
-                           // the current line
-      
-      // If we still don't have enough room for the text, just truncate it.
-      if (cellCount + text.length() > buffer.length)
+      char c = text.charAt(i);
+      if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1)))
       {
-        text = text.substring(0, buffer.length - cellCount);
+        addCharToBuffer(Character.toCodePoint(c, text.charAt(++i)));
+      }
+      else
+      {
+        addCharToBuffer(c);
       }
     }
-    
-    int cellAttributes = attributes != null  ? getCellAttributes(attributes) : 0;
-    
-    // Add the characters to the buffer
-    text.chars().forEach(c -> addCharToBuffer(c, cellAttributes));
-    
-    // Recalulate the line indexes starting at the current line
-    recalculateLineIndexes(width, lineInsertIndex);
   }
   
-  @Override
-  public void addTextLine(String text, TextAttributes attributes)
+  /**
+   * Adds a range of chars to the buffer in a single pass, without copying it.
+   * 
+   * @param chars The chars to add.
+   * @param offset The index of the first char to add.
+   * @param length The number of chars to add.
+   */
+  private void appendText(char[] chars, int offset, int length)
   {
-    addText(text + '\n', attributes);
+    int end = offset + length;
+    for (int i = offset; i < end; i++)
+    {
+      char c = chars[i];
+      if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1]))
+      {
+        addCharToBuffer(Character.toCodePoint(c, chars[++i]));
+      }
+      else
+      {
+        addCharToBuffer(c);
+      }
+    }
+  }
+  
+  /**
+   * Sets the attributes of the characters that are added after this.
+   * 
+   * @param attributes The attributes, or null for the default attributes.
+   */
+  private void setAttributes(TextAttributes attributes)
+  {
+    int styles = attributes != null ? TextStyle.toMask(attributes.getTextStyles()) : 0;
+    long colors = attributes != null ? getCellColors(attributes) : 0;
+    setAttributes(styles, colors);
   }
   
   @Override
   public void drawLine(Terminal terminal, int bufferRow)
   {
-    int count = getVisibleCharsOnLine(bufferRow);
-    int index = lineIndexes[bufferRow];
-    int fgColor = -1;  // Default to something impossible
-    int bgColor = -1;
-    
-    for (int i = 0; i < count; i++)
-    {
-      int cell = buffer[index++];
-      char c = getCharFromCell(cell);
-      if (c == (char)0)
-        c = ' ';
-      int newFgColor = (cell & 0x001F0000) >> 16;
-    	int newBgColor = (cell & 0x03E00000) >> 21;
-      if (fgColor != newFgColor)
-      {
-      	terminal.setForegroundColor(toTermColor(newFgColor));
-      	fgColor = newFgColor;
-      }
-      if (bgColor != newBgColor)
+    drawRow(terminal, getRowIdOfLine(0) + bufferRow);
+  }
+  
+  @Override
+  public void drawLineFromEnd(Terminal terminal, int rowsFromEnd)
+  {
+    drawRow(terminal, getEndRowId() - 1 - rowsFromEnd);
+  }
+  
+  /**
+   * Draws a row of the buffer to the terminal.
+   * 
+   * @param terminal The terminal to draw to, with the cursor at the start of the row.
+   * @param rowId The id of the row, which must be in the buffer.
+   */
+  private void drawRow(Terminal terminal, long rowId)
+  {
+    int line = getLineOfRowId(rowId);
+    int rowInLine = (int)(rowId - getRowIdOfLine(line));
+    long contentEnd = getLineContentEnd(line);
+    long position;
+    long end;
+    if (isNarrow(line))
+    {
+      position = getLineStart(line) + (long)rowInLine * width;
+      end = Math.min(position + width, contentEnd);
+    }
+    else
+    {
+      position = getLineStart(line);
+      for (int i = 0; i < rowInLine; i++)
       {
-      	terminal.setBackgroundColor(toTermColor(newBgColor));
-      	bgColor = newBgColor;
+        position = getRowEnd(position, contentEnd);
       }
-
-      if (c != '\n')
+      end = getRowEnd(position, contentEnd);
+    }
+    int count = (int)Math.max(0, end - position);
+    int columns = 0;
+    
+    // Each character can take up to two chars once it is turned back into UTF-16
+    if (lineChars.length < count * 2)
+    {
+      lineChars = new char[count * 2];
+    }
+    
+    // The characters of each span are written to the terminal with a single call, after the 
+    // attributes of the span are set.
+    int span = getSpanAt(position);
+    while (position < end)
+    {
+      long spanEnd = span < spanCount - 1 ? getSpanStart(span + 1) : end;
+      int index = getSpanIndex(span++);
+      terminal.setForegroundColor((int)(spanColors[index] >>> 32));
+      terminal.setBackgroundColor((int)spanColors[index]);
+      terminal.setTextStyles(spanStyles[index]);
+      
+      int runLength = 0;
+      for (long runEnd = Math.min(end, spanEnd); position < runEnd; position++)
       {
-      	terminal.putCharacter(c);
+        int c = getCell(position);
+        runLength += Character.toChars(c == 0 ? ' ' : c, lineChars, runLength);
+        columns += CharacterWidth.of(c);
       }
+      terminal.putChars(lineChars, 0, runLength);
     }
-    terminal.eraseCharacters(width - count);
+    terminal.eraseCharacters(Math.max(0, width - columns));
   }
   
   @Override
   public void resizeWidth(int newWidth)
   { 
-    recalculateLineIndexes(newWidth, 0);
-    
-    this.width = newWidth;
+    long lastLineRowId = getRowIdOfLine(lineCount - 1);
+    this.width = Math.max(1, newWidth);
+    anchorCacheAtEnd(lastLineRowId);
+    discardExtraRows();
+    layoutVersion++;
+  }
+  
+  /**
+   * Sets the attributes of the characters that are added after this, starting a new span if 
+   * they are different from the attributes of the last span.
+   * 
+   * @param styles The {@link TextStyle} mask.
+   * @param colors The packed foreground and background colors.
+   */
+  protected void setAttributes(int styles, long colors)
+  {
+    int last = getSpanIndex(spanCount - 1);
+    if (spanStarts[last] == endPosition && spanCount > 1)
+    {
+      // Nothing was added with the attributes of the last span, so it is replaced
+      last = getSpanIndex(--spanCount - 1);
+    }
+    if (spanStyles[last] == styles && spanColors[last] == colors)
+    {
+      return;
+    }
+    if (spanStarts[last] != endPosition)
+    {
+      if (spanCount > spanMask)
+      {
+        growSpans();
+      }
+      last = getSpanIndex(spanCount++);
+      spanStarts[last] = endPosition;
+    }
+    spanStyles[last] = styles;
+    spanColors[last] = colors;
   }
   
   /**
-   * Adds a character to the internal buffer if the character is allowable.
+   * Adds a character to the internal buffer if the character is allowable.  If the buffer is 
+   * full, the oldest row is thrown away first.  A tab is replaced with spaces up to the next 
+   * tab stop of the line.
    * 
-   * @param c The character to add.
-   * @param attributes The attributes to attach to the character.
+   * @param c The code point of the character to add.
    */
-  protected void addCharToBuffer(int c, int attributes)
+  protected void addCharToBuffer(int c)
   {
-  	if (c < 32)
+  	if (c < 32 || (c >= 0x7F && c < 0xA0))
   	{
   		// Negative or a control character
+  		if (c == '\t')
+  		{
+  		  for (int spaces = TAB_STOP - (int)(lastLineColumns % TAB_STOP); spaces > 0; spaces--)
+  		  {
+  		    addCharToBuffer(' ');
+  		  }
+  		  return;
+  		}
   		if (c != 0x0A) // We allow '\n' since that is used to indicate a EOL
   		{
   			return; // Do nothing since this character is not allowed
   		}
   	}
-  	buffer[cellCount++] = c | attributes;
+  	if (endPosition - startPosition == capacity)
+  	{
+  	  discardOldestRow();
+  	}
+  	putCell(endPosition++, c);
+  	if (c == '\n')
+  	{
+  	  newLine(endPosition);
+  	}
+  	else
+  	{
+  	  int columns = CharacterWidth.of(c);
+  	  lastLineNarrow &= columns == 1;
+  	  lastLineColumns += columns;
+  	}
   }
   
   /**
-   * Rolls the buffer by cutting off the oldest 10% of the characters and moving the rest of
-   * the characters to the beginning of the buffer.  This makes room for new characters in the
-   * buffer.
+   * Throws away the oldest rows until no more than the line limit are left.
    */
-  protected void rollBuffer()
+  protected void discardExtraRows()
   {
-    int rollPoint = (int)(buffer.length * 0.1); // Roll at 10%
-    int cellIndex = 0;
-    for (int i = rollPoint; i < cellCount; i++)
+    while (maxLines > 0 && getNumberOfRowsWithContent(maxLines + 1) > maxLines)
     {
-      buffer[cellIndex++] = buffer[i];
+      discardOldestRow();
     }
-    cellCount = cellIndex;
-    recalculateLineIndexes(width, 0);
   }
   
   /**
-   * Recalculate the indexes of the line markers.  
-   * 
-   * This function will modify the lineIndexes member to fill out the proper indexes into
-   * the buffer member.
-   * @param width The width of the terminal
-   * @param startLineIndex The line at which to start the calculation.
+   * Throws away the oldest row to make room for new characters.  If there is only one line and
+   * it fits in a row, the oldest character of it is thrown away instead, which moves the rest of
+   * its characters.
    */
-  protected void recalculateLineIndexes(int width, int startLineIndex)
+  protected void discardOldestRow()
   {
-    if (startLineIndex > lineInsertIndex)
+    if (lineCount == 1 && getRowsInLine(0) <= 1)
     {
-      // We can't start the recalculation at a line that doesn't exist
-      throw new RuntimeException("Attempting to start recalculating lines at line " + startLineIndex + 
-          " when there are only " + lineInsertIndex + " total lines!");
+      startPosition++;
+      layoutVersion++;
     }
-    lineInsertIndex = startLineIndex;
-    int cellIndex = lineIndexes[startLineIndex];
-    int col = 0;
-    boolean foundNewline = false;
-    boolean reachedEndOfWidth = false;
-    while (cellIndex < cellCount)
+    else
     {
-    	int cell = buffer[cellIndex];
-      char c = getCharFromCell(cell);
-      
-      // We want to draw a new line if our previous character was a newline or if
-      // we have run out of room to draw the next character.
-      if (foundNewline || reachedEndOfWidth && c != '\n')
-      {
-      	foundNewline = false;
-      	reachedEndOfWidth = false;
-        newLine(cellIndex);
-        col = 0;
-      }
-      
-      if (c == '\n')
+      if (getRowsInLine(0) > 1)
       {
-        foundNewline = true;
+        // Only the first row of the line goes, so the line now starts at its second row
+        startPosition = isNarrow(0) ? startPosition + width : getRowEnd(startPosition, getLineContentEnd(0));
+        firstRowId++;
       }
-      else if (++col >= width)
+      else
       {
-        reachedEndOfWidth = true;
+        // Line 1 becomes line 0, so its id moves to firstRowId if it is cached
+        if (cacheFrom == 0)
+        {
+          firstRowId++;
+        }
+        else if (cacheFrom == 1)
+        {
+          firstRowId = getCachedRowId(1);
+        }
+        cacheFrom = Math.max(0, cacheFrom - 1);
+        cacheTo = Math.max(0, cacheTo - 1);
+        startPosition = getLineStart(1);
+        firstLine = (firstLine + 1) & lineMask;
+        lineCount--;
       }
-      cellIndex++;
+      discardedRows++;
+    }
+    
+    // Drop the spans that only applied to the thrown away cells
+    while (spanCount > 1 && getSpanStart(1) <= startPosition)
+    {
+      firstSpan = (firstSpan + 1) & spanMask;
+      spanCount--;
     }
   }
 
+  /**
+   * {@inheritDoc}  After a resize, this wraps every row in the buffer.
+   */
   @Override
   public int getNumberOfRowsWithContent()
   {
-    // If the current line is empty, then we don't want to count it.
-    if (lineIndexes[lineInsertIndex] == cellCount - 1)
+    return (int)(getEndRowId() - getRowIdOfLine(0));
+  }
+  
+  @Override
+  public int getNumberOfRowsWithContent(int limit)
+  {
+    long endRowId = getEndRowId();
+    while (cacheFrom > 0 && getCachedRowId(cacheFrom) > endRowId - limit)
     {
-      return lineInsertIndex;
+      wrapPreviousBlock();
+    }
+    return cacheFrom > 0 ? limit : (int)Math.min(limit, endRowId - firstRowId);
+  }
+  
+  @Override
+  public long getAddedRows()
+  {
+    return getEndRowId();
+  }
+  
+  @Override
+  public int getLayoutVersion()
+  {
+    return layoutVersion;
+  }
+  
+  @Override
+  public long getDiscardedRows()
+  {
+    return discardedRows;
+  }
+  
+  /**
+   * Returns the number of rows a line takes up at the current width.  Every line that ends with
+   * a '\n' takes up at least one row, even if it is empty.
+   * 
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The number of rows.
+   */
+  protected int getRowsInLine(int line)
+  {
+    long start = getLineStart(line);
+    long end = getLineContentEnd(line);
+    int rows;
+    if (isNarrow(line))
+    {
+      rows = (int)((end - start + width - 1) / width);
     }
     else
     {
-      return lineInsertIndex + 1;
+      rows = 0;
+      for (long position = start; position < end; position = getRowEnd(position, end))
+      {
+        rows++;
+      }
     }
+    return line < lineCount - 1 ? Math.max(1, rows) : rows;
   }
   
-  protected int getVisibleCharsOnLine(int lineIndex)
+  /**
+   * Returns where the row that starts at a position ends.  A character that doesn't fit in the 
+   * rest of the row starts the next one, unless it is the only character of the row.
+   * 
+   * @param position The position of the first cell of the row.
+   * @param end The position just after the last character of the line.
+   * @return The position of the first cell of the next row, or the end of the line.
+   */
+  protected long getRowEnd(long position, long end)
   {
-    if (lineIndex > lineInsertIndex)
+    int columns = 0;
+    for (; position < end; position++)
     {
-      throw new RuntimeException("Invalid line number: " + lineIndex);
+      int characterWidth = CharacterWidth.of(getCell(position));
+      if (columns + characterWidth > width && columns > 0)
+      {
+        break;
+      }
+      columns += characterWidth;
     }
-    
-    int count;
-    int lineBeginIndex;
-    int lineEndIndex;
-    
-    lineBeginIndex = lineIndexes[lineIndex];
-    
-    if (lineIndex == lineInsertIndex)
+    return position;
+  }
+  
+  /**
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return Whether every character of the line is one column wide.
+   */
+  protected boolean isNarrow(int line)
+  {
+    if (line == lineCount - 1)
     {
-      // This is the last line
-      lineEndIndex = cellCount;
+      return lastLineNarrow;
     }
-    else
+    return (readLineIndex(getLineSlot(line + 1)) & MIXED_WIDTH_FLAG) == 0;
+  }
+  
+  /**
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The number of columns the line takes up if it isn't wrapped.
+   */
+  private long getLineColumns(int line)
+  {
+    long start = getLineStart(line);
+    long end = getLineContentEnd(line);
+    if (isNarrow(line))
     {
-      lineEndIndex = lineIndexes[lineIndex + 1];
+      return end - start;
     }
-    
-    count = lineEndIndex - lineBeginIndex;
-    
-    // If the last character in the line is a newline character, then we don't 
-    // want to count it.
-    if (count > 0 && getCharFromCell(buffer[lineEndIndex - 1]) == '\n')
+    long columns = 0;
+    for (long position = start; position < end; position++)
+    {
+      columns += CharacterWidth.of(getCell(position));
+    }
+    return columns;
+  }
+  
+  /**
+   * @return The id of the row after the last row of the buffer.
+   */
+  private long getEndRowId()
+  {
+    int last = lineCount - 1;
+    return getRowIdOfLine(last) + getRowsInLine(last);
+  }
+  
+  /**
+   * Returns the id of the row that a line starts on, wrapping the lines between it and the 
+   * cache if they haven't been wrapped at the current width yet.
+   * 
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The id of the first row of the line.
+   */
+  private long getRowIdOfLine(int line)
+  {
+    int blockLine = Math.max(0, line - (getLineSlot(line) & LINE_BLOCK_MASK));
+    while (cacheFrom > blockLine)
+    {
+      wrapPreviousBlock();
+    }
+    extendCacheTo(blockLine);
+    long rowId = getCachedRowId(blockLine);
+    for (int l = blockLine; l < line; l++)
+    {
+      rowId += getRowsInLine(l);
+    }
+    return rowId;
+  }
+  
+  /**
+   * Returns the line that a row is part of.
+   * 
+   * @param rowId The id of a row in the buffer.
+   * @return The line the row is on.
+   */
+  private int getLineOfRowId(long rowId)
+  {
+    // Wrap lines until the cache covers the row
+    extendCacheTo(lineCount - 1);
+    while (cacheFrom > 0 && getCachedRowId(cacheFrom) > rowId)
     {
-      count--;
+      wrapPreviousBlock();
     }
     
-    if (count < 0)
+    // Search for the last block line that starts at or before the row.  Block line b of the 
+    // cache is cacheFrom for b = 0, and after that every LINE_BLOCK_SIZE lines from the next one.
+    int secondBlockLine = getNextBlockLine(cacheFrom);
+    int low = 0;
+    int high = cacheTo == cacheFrom ? 0 : (cacheTo - secondBlockLine) / LINE_BLOCK_SIZE + 1;
+    while (low < high)
     {
-      throw new RuntimeException("Got a negative cell count on line: " + lineIndex);
+      int mid = (low + high + 1) >>> 1;
+      if (getCachedRowId(secondBlockLine + (mid - 1) * LINE_BLOCK_SIZE) <= rowId)
+      {
+        low = mid;
+      }
+      else
+      {
+        high = mid - 1;
+      }
     }
     
-    return count;
+    // Then walk through the block to the line
+    int line = low == 0 ? cacheFrom : secondBlockLine + (low - 1) * LINE_BLOCK_SIZE;
+    long rows = getCachedRowId(line);
+    while (line < lineCount - 1)
+    {
+      rows += getRowsInLine(line);
+      if (rows > rowId)
+      {
+        break;
+      }
+      line++;
+    }
+    return line;
   }
   
-  protected void newLine(int bufferIndex)
+  /**
+   * Empties the wrap cache except for the block the last line is in.
+   * 
+   * @param lastLineRowId The id the first row of the last line gets.
+   */
+  private void anchorCacheAtEnd(long lastLineRowId)
   {
-    if (++lineInsertIndex >= lineIndexes.length)
+    int last = lineCount - 1;
+    int blockLine = Math.max(0, last - (getLineSlot(last) & LINE_BLOCK_MASK));
+    long rowId = lastLineRowId;
+    for (int l = blockLine; l < last; l++)
     {
-      growLineIndexeBuffer();
+      rowId -= getRowsInLine(l);
     }
-    lineIndexes[lineInsertIndex] = bufferIndex;
+    cacheFrom = blockLine;
+    cacheTo = blockLine;
+    setCachedRowId(blockLine, rowId);
   }
   
-  protected void growLineIndexeBuffer()
+  /**
+   * Wraps the lines after the cache until it reaches the last block line at or before a line.
+   * 
+   * @param line The line, where 0 is the oldest line in the buffer.
+   */
+  private void extendCacheTo(int line)
   {
-    int[] newLineIndexes = new int[lineIndexes.length + 100];
-    for (int i = 0; i < lineIndexes.length; i++)
+    for (int next = getNextBlockLine(cacheTo); next <= line; next = getNextBlockLine(cacheTo))
     {
-      newLineIndexes[i] = lineIndexes[i];
+      setCachedRowId(next, getCachedRowId(cacheTo) + countRows(cacheTo, next));
+      cacheTo = next;
     }
-    lineIndexes = newLineIndexes;
   }
   
   /**
-   * Convert color codes in the display buffer cells to TermColor enumeration values.
+   * Wraps the block of lines before the cache and adds its first line to the cache.  The first 
+   * line of the cache must not be line 0.
+   */
+  private void wrapPreviousBlock()
+  {
+    int previous = Math.max(0, cacheFrom - LINE_BLOCK_SIZE);
+    setCachedRowId(previous, getCachedRowId(cacheFrom) - countRows(previous, cacheFrom));
+    cacheFrom = previous;
+  }
+  
+  /**
+   * Counts the rows of the lines between two block lines that are next to each other.
    * 
-   * @param color Integer value of color codes in display buffer.
-   * @return Corresponding TermColor.
+   * @param from The first line.
+   * @param to The line after the last line, which must have ended.
+   * @return The number of rows.
    */
-  private TermColor toTermColor(int color)
+  private long countRows(int from, int to)
   {
-  	// The color values do not match the ANSI escape code values.  This is because I wanted
-  	// 0 to be the default color.
-  	switch (color)
-  	{
-  	case 1:
-  		return TermColor.BLACK;
-  	case 2:
-  		return TermColor.RED;
-  	case 3:
-  		return TermColor.GREEN;
-  	case 4:
-  		return TermColor.YELLOW;
-  	case 5:
-  		return TermColor.BLUE;
-  	case 6:
-  		return TermColor.MAGENTA;
-  	case 7:
-  	  return TermColor.CYAN;
-  	case 8:
-  		return TermColor.WHITE;
-  	}
-  	return TermColor.DEFAULT;
+    int slot = getLineSlot(from);
+    if (to - from == LINE_BLOCK_SIZE && (slot & LINE_BLOCK_MASK) == 0 && blockMaxLengths[slot >>> LINE_BLOCK_SHIFT] <= width)
+    {
+      // Every line of the block fits in a row
+      return LINE_BLOCK_SIZE;
+    }
+    long rows = 0;
+    for (int l = from; l < to; l++)
+    {
+      rows += getRowsInLine(l);
+    }
+    return rows;
+  }
+  
+  /**
+   * @param line Line 0 or a block line.
+   * @return The block line after it.
+   */
+  private int getNextBlockLine(int line)
+  {
+    return line + LINE_BLOCK_SIZE - (getLineSlot(line) & LINE_BLOCK_MASK);
   }
   
   /**
-   * Converts a TermColor to the value used to represent that color in the buffer.  This is the opposite function as
-   * {@link #toTermColor(int)}.
+   * @param blockLine Line 0 or a block line in the cache.
+   * @return The id of the first row of the line.
+   */
+  private long getCachedRowId(int blockLine)
+  {
+    return blockLine == 0 ? firstRowId : blockRows[getLineSlot(blockLine) >>> LINE_BLOCK_SHIFT];
+  }
+  
+  private void setCachedRowId(int blockLine, long rowId)
+  {
+    if (blockLine == 0)
+    {
+      firstRowId = rowId;
+    }
+    else
+    {
+      blockRows[getLineSlot(blockLine) >>> LINE_BLOCK_SHIFT] = rowId;
+    }
+  }
+  
+  /**
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The index of the line in the line index.
+   */
+  private int getLineSlot(int line)
+  {
+    return (firstLine + line) & lineMask;
+  }
+  
+  /**
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The position just after the last character of the line, not counting its '\n'.
+   */
+  protected long getLineContentEnd(int line)
+  {
+    return line == lineCount - 1 ? endPosition : getLineStart(line + 1) - 1;
+  }
+  
+  @Override
+  public void release()
+  {
+    cellChunks = null;
+    lineStarts = null;
+    blockRows = null;
+    blockMaxLengths = null;
+  }
+  
+  /**
+   * Returns the cell at a position.
    * 
-   * @param color Color to convert.
-   * @return Integer value to store in array buffer.
+   * @param position The position of the cell, which must be in the buffer.
+   * @return The cell.
    */
-  private int toBufferColor(TermColor color)
+  protected int getCell(long position)
   {
-  	switch (color)
-  	{
-  	case BLACK:
-  		return 1;
-  	case RED:
-  		return 2;
-  	case GREEN:
-  		return 3;
-  	case YELLOW:
-  		return 4;
-  	case BLUE:
-  		return 5;
-  	case MAGENTA:
-  		return 6;
-  	case CYAN:
-  		return 7;
-  	case WHITE:
-  		return 8;
-  	default:
-  		return 0;
-  	}
+    int index = (int)position & cellMask;
+    return cellChunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
   }
   
-  private int getCellAttributes(TextAttributes attributes)
+  /**
+   * Stores a cell, allocating the chunk it is in if this is the first time the chunk is used.
+   * 
+   * @param position The position of the cell.
+   * @param cell The cell.
+   */
+  protected void putCell(long position, int cell)
+  {
+    int index = (int)position & cellMask;
+    int chunk = index >>> CHUNK_SHIFT;
+    if (cellChunks == null)
+    {
+      cellChunks = new int[getChunkCount()][];
+    }
+    if (cellChunks[chunk] == null)
+    {
+      cellChunks[chunk] = new int[getChunkSize()];
+    }
+    cellChunks[chunk][index & CHUNK_MASK] = cell;
+  }
+  
+  /**
+   * @return The number of chunks the ring is split into.
+   */
+  protected int getChunkCount()
+  {
+    return (capacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+  }
+  
+  /**
+   * @return The number of cells in each chunk.
+   */
+  protected int getChunkSize()
+  {
+    return Math.min(CHUNK_SIZE, capacity);
+  }
+  
+  /**
+   * Replaces the line index with an empty one.
+   * 
+   * @param size The number of entries in the new index.
+   */
+  protected void allocateLineIndex(int size)
+  {
+    lineStarts = new long[size];
+  }
+  
+  protected long readLineIndex(int index)
+  {
+    return lineStarts[index];
+  }
+  
+  protected void writeLineIndex(int index, long position)
+  {
+    lineStarts[index] = position;
+  }
+  
+  /**
+   * Returns the position of the first cell of a line.  The oldest line always starts at the start 
+   * position, even when part of it has been thrown away.
+   * 
+   * @param line The line, where 0 is the oldest line in the buffer.
+   * @return The position of the line.
+   */
+  protected long getLineStart(int line)
   {
-  	int cellAttributes = 0;
-  	int fgPart = toBufferColor(attributes.getFgColor());
-  	int bgPart = toBufferColor(attributes.getBgColor());
-  	
-  	// See the comments for this class to understand why the following shifting
-  	// takes place.
-  	cellAttributes |= (fgPart << 16);
-  	cellAttributes |= (bgPart << 21);
-  	
-  	return cellAttributes;
+    return line == 0 ? startPosition : readLineIndex(getLineSlot(line)) & ~MIXED_WIDTH_FLAG;
+  }
+  
+  /**
+   * Ends the last line and starts a new one.
+   * 
+   * @param position The position of the first cell of the new line, just after the '\n'.
+   */
+  protected void newLine(long position)
+  {
+    if (lineCount > lineMask)
+    {
+      growLineIndexeBuffer();
+    }
+    int last = lineCount - 1;
+    updateBlockMaxLength(last, lastLineNarrow ? position - 1 - getLineStart(last) : lastLineColumns);
+    writeLineIndex(getLineSlot(lineCount++), lastLineNarrow ? position : position | MIXED_WIDTH_FLAG);
+    lastLineNarrow = true;
+    lastLineColumns = 0;
+  }
+  
+  /**
+   * Records the number of columns of a line that has ended in the block it is in.  Lines end in order, so 
+   * the first line of a block starts the block over.
+   */
+  private void updateBlockMaxLength(int line, long columns)
+  {
+    int slot = getLineSlot(line);
+    int max = (slot & LINE_BLOCK_MASK) == 0 ? 0 : blockMaxLengths[slot >>> LINE_BLOCK_SHIFT];
+    blockMaxLengths[slot >>> LINE_BLOCK_SHIFT] = (int)Math.min(Integer.MAX_VALUE, Math.max(max, columns));
+  }
+  
+  /**
+   * Doubles the size of the line index, unwrapping it so the oldest line is at the start.  The 
+   * lines are in different blocks afterwards, so the wrap cache is started again at the end, 
+   * keeping the ids of the rows, and the longest line of each block is found again.
+   */
+  protected void growLineIndexeBuffer()
+  {
+    long lastLineRowId = getRowIdOfLine(lineCount - 1);
+    long[] lines = new long[lineCount];
+    for (int i = 1; i < lineCount; i++)
+    {
+      // The raw entries are copied so the width flags are kept
+      lines[i] = readLineIndex(getLineSlot(i));
+    }
+    int size = Math.max(128, (lineMask + 1) * 2);
+    allocateLineIndex(size);
+    lineMask = size - 1;
+    firstLine = 0;
+    for (int i = 1; i < lineCount; i++)
+    {
+      writeLineIndex(i, lines[i]);
+    }
+    
+    blockRows = new long[size >>> LINE_BLOCK_SHIFT];
+    blockMaxLengths = new int[size >>> LINE_BLOCK_SHIFT];
+    for (int i = 0; i < lineCount - 1; i++)
+    {
+      updateBlockMaxLength(i, getLineColumns(i));
+    }
+    anchorCacheAtEnd(lastLineRowId);
+  }
+  
+  /**
+   * Returns the span that applies to a position.
+   * 
+   * @param position A position in the buffer.
+   * @return The last span that starts at or before the position.
+   */
+  private int getSpanAt(long position)
+  {
+    int low = 0;
+    int high = spanCount - 1;
+    while (low < high)
+    {
+      int mid = (low + high + 1) >>> 1;
+      if (getSpanStart(mid) <= position)
+      {
+        low = mid;
+      }
+      else
+      {
+        high = mid - 1;
+      }
+    }
+    return low;
+  }
+  
+  private long getSpanStart(int span)
+  {
+    return spanStarts[getSpanIndex(span)];
+  }
+  
+  private int getSpanIndex(int span)
+  {
+    return (firstSpan + span) & spanMask;
+  }
+  
+  /**
+   * Doubles the size of the span ring, unwrapping it so the oldest span is at the start.
+   */
+  private void growSpans()
+  {
+    long[] starts = new long[spanStarts.length * 2];
+    int[] styles = new int[starts.length];
+    long[] colors = new long[starts.length];
+    for (int i = 0; i < spanCount; i++)
+    {
+      int index = getSpanIndex(i);
+      starts[i] = spanStarts[index];
+      styles[i] = spanStyles[index];
+      colors[i] = spanColors[index];
+    }
+    spanStarts = starts;
+    spanStyles = styles;
+    spanColors = colors;
+    spanMask = starts.length - 1;
+    firstSpan = 0;
   }
   
-  private char getCharFromCell(int cell)
+  private long getCellColors(TextAttributes attributes)
   {
-  	return (char)(0x0000FFFF & cell);
+    return ((long)attributes.getPackedFgColor() << 32) | (attributes.getPackedBgColor() & 0xFFFFFFFFL);
   }
 }
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.shell.window;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+
+/**
+ * A display buffer that keeps the chunks of its ring compressed.  Most scrollback is never looked
+ * at again after it scrolls off the screen, so only the chunk that text is being added to is 
+ * kept as an array.  When text moves on to the next chunk, the one before it is sealed by 
+ * compressing it with a {@link Deflater}.  For typical log output this takes a small fraction of 
+ * the 4 bytes per cell that {@link ArrayDisplayBuffer} uses.
+ * 
+ * Sealed chunks are decompressed when they are drawn, into a small cache of the chunks that were
+ * used most recently, so scrolling around in old output only decompresses each chunk once.
+ */
+public class CompressedDisplayBuffer extends ArrayDisplayBuffer
+{
+  /** The number of decompressed chunks that are cached */
+  private static final int CACHE_SIZE = 8;
+  
+  /** The sealed chunks, or null for chunks that have never been sealed */
+  private byte[][] sealedChunks;
+  
+  /** The chunk text is being added to, which is never sealed */
+  private int writeChunk = -1;
+  private int[] writeCells;
+  
+  /** The decompressed chunks, and the last time each one was used */
+  private int[] cachedChunks = new int[CACHE_SIZE];
+  private int[][] cachedCells = new int[CACHE_SIZE][];
+  private long[] cacheUses = new long[CACHE_SIZE];
+  private long useCount;
+  
+  /** The chunk that was read last, which is usually the one the next read is in */
+  private int readChunk = -1;
+  private int[] readCells;
+  
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+  private byte[] raw;
+  private byte[] compressed;
+  private long sealedBytes;
+  
+  public CompressedDisplayBuffer(int width, ScrollbackLimit limit)
+  {
+    super(width, limit);
+    Arrays.fill(cachedChunks, -1);
+  }
+  
+  /**
+   * Creates a display buffer that keeps a given number of cells.
+   * 
+   * @param width The width in columns.
+   * @param numberOfLines The most rows to keep, or 0 to only limit the number of cells.
+   * @param capacity The number of cells to keep.  It is rounded up to a power of two.
+   */
+  public CompressedDisplayBuffer(int width, int numberOfLines, int capacity)
+  {
+    super(width, numberOfLines, capacity);
+    Arrays.fill(cachedChunks, -1);
+  }
+  
+  /**
+   * @return The number of bytes used to hold the cells, sealed and not.
+   */
+  public long getStoredBytes()
+  {
+    return sealedBytes + (writeCells != null ? (long)writeCells.length * Integer.BYTES : 0);
+  }
+  
+  @Override
+  public void release()
+  {
+    sealedChunks = null;
+    writeCells = null;
+    cachedCells = new int[CACHE_SIZE][];
+    Arrays.fill(cachedChunks, -1);
+    readChunk = -1;
+    readCells = null;
+    raw = null;
+    compressed = null;
+    sealedBytes = 0;
+    deflater.end();
+    inflater.end();
+    super.release();
+  }
+  
+  @Override
+  protected int getCell(long position)
+  {
+    int index = (int)position & cellMask;
+    readChunk(index >>> CHUNK_SHIFT);
+    return readCells[index & CHUNK_MASK];
+  }
+  
+  @Override
+  protected void putCell(long position, int cell)
+  {
+    int index = (int)position & cellMask;
+    int chunk = index >>> CHUNK_SHIFT;
+    if (chunk != writeChunk)
+    {
+      startWriting(chunk);
+    }
+    writeCells[index & CHUNK_MASK] = cell;
+  }
+  
+  /**
+   * Seals the chunk that was being written and makes another one the write chunk.  When the ring
+   * wraps, the new write chunk can still hold the oldest cells, so it is decompressed first.
+   * 
+   * @param chunk The new write chunk.
+   */
+  private void startWriting(int chunk)
+  {
+    if (writeCells == null)
+    {
+      sealedChunks = new byte[getChunkCount()][];
+      writeCells = new int[getChunkSize()];
+      raw = new byte[writeCells.length * Integer.BYTES];
+      compressed = new byte[raw.length];
+    }
+    else
+    {
+      seal(writeChunk);
+    }
+    
+    evict(chunk);
+    if (sealedChunks[chunk] != null)
+    {
+      inflate(sealedChunks[chunk], writeCells);
+      sealedBytes -= sealedChunks[chunk].length;
+      sealedChunks[chunk] = null;
+    }
+    writeChunk = chunk;
+    readChunk = -1;
+  }
+  
+  /**
+   * Compresses the write chunk and stores it as a sealed chunk.
+   * 
+   * @param chunk The write chunk.
+   */
+  private void seal(int chunk)
+  {
+    ByteBuffer.wrap(raw).asIntBuffer().put(writeCells);
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished())
+    {
+      if (length == compressed.length)
+      {
+        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+      }
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    sealedChunks[chunk] = Arrays.copyOf(compressed, length);
+    sealedBytes += length;
+    evict(chunk);
+  }
+  
+  /**
+   * Decompresses a sealed chunk.
+   * 
+   * @param sealed The sealed chunk.
+   * @param cells Filled with the cells of the chunk.
+   */
+  private void inflate(byte[] sealed, int[] cells)
+  {
+    inflater.reset();
+    inflater.setInput(sealed);
+    try
+    {
+      inflater.inflate(raw);
+    }
+    catch (DataFormatException e)
+    {
+      throw new IllegalStateException("Sealed chunk is corrupt", e);
+    }
+    ByteBuffer.wrap(raw).asIntBuffer().get(cells);
+  }
+  
+  /**
+   * Makes a chunk the one that reads come from, decompressing it if it isn't the write chunk or 
+   * in the cache.  The chunk used the longest time ago is replaced in the cache.
+   * 
+   * @param chunk The chunk to read.
+   */
+  private void readChunk(int chunk)
+  {
+    if (chunk == readChunk)
+    {
+      return;
+    }
+    readChunk = chunk;
+    if (chunk == writeChunk)
+    {
+      readCells = writeCells;
+      return;
+    }
+    
+    int slot = 0;
+    for (int i = 0; i < CACHE_SIZE; i++)
+    {
+      if (cachedChunks[i] == chunk)
+      {
+        slot = i;
+        break;
+      }
+      if (cacheUses[i] < cacheUses[slot])
+      {
+        slot = i;
+      }
+    }
+    if (cachedChunks[slot] != chunk)
+    {
+      if (cachedCells[slot] == null)
+      {
+        cachedCells[slot] = new int[writeCells.length];
+      }
+      inflate(sealedChunks[chunk], cachedCells[slot]);
+      cachedChunks[slot] = chunk;
+    }
+    cacheUses[slot] = ++useCount;
+    readCells = cachedCells[slot];
+  }
+  
+  /**
+   * Removes a chunk from the cache because it is about to change.
+   * 
+   * @param chunk The chunk.
+   */
+  private void evict(int chunk)
+  {
+    for (int i = 0; i < CACHE_SIZE; i++)
+    {
+      if (cachedChunks[i] == chunk)
+      {
+        cachedChunks[i] = -1;
+        cacheUses[i] = 0;
+      }
+    }
+    if (readChunk == chunk)
+    {
+      readChunk = -1;
+    }
+  }
+}
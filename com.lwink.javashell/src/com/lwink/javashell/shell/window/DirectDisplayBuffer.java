@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.shell.window;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+import com.lwink.javashell.util.DirectMemory;
+
+/**
+ * A display buffer that keeps its cells and line index in direct memory outside the Java heap.  
+ * A large scrollback held in arrays is copied around by the garbage collector for as long as the
+ * shell is open, while direct memory is never scanned or moved, so this keeps pause times down 
+ * when the scrollback is large.  
+ * 
+ * Each chunk of the ring is a direct buffer of cells.  The attribute spans stay on the heap, since
+ * there are usually few of them.  The memory is only given back when {@link #release()} is called,
+ * which the shell does when it is closed or when its terminal stops, such as on a disconnect.
+ */
+public class DirectDisplayBuffer extends ArrayDisplayBuffer
+{
+  private ByteBuffer[] chunks;
+  private IntBuffer[] cellChunks;
+  private ByteBuffer lineIndexBuffer;
+  private LongBuffer lineIndex;
+  
+  public DirectDisplayBuffer(int width, ScrollbackLimit limit)
+  {
+    super(width, limit);
+  }
+  
+  /**
+   * Creates a display buffer that keeps a given number of cells.
+   * 
+   * @param width The width in columns.
+   * @param numberOfLines The most rows to keep, or 0 to only limit the number of cells.
+   * @param capacity The number of cells to keep.  It is rounded up to a power of two.
+   */
+  public DirectDisplayBuffer(int width, int numberOfLines, int capacity)
+  {
+    super(width, numberOfLines, capacity);
+  }
+  
+  @Override
+  public void release()
+  {
+    if (chunks != null)
+    {
+      for (ByteBuffer chunk : chunks)
+      {
+        DirectMemory.free(chunk);
+      }
+    }
+    DirectMemory.free(lineIndexBuffer);
+    chunks = null;
+    cellChunks = null;
+    lineIndexBuffer = null;
+    lineIndex = null;
+    super.release();
+  }
+  
+  @Override
+  protected int getCell(long position)
+  {
+    int index = (int)position & cellMask;
+    return cellChunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+  }
+  
+  @Override
+  protected void putCell(long position, int cell)
+  {
+    int index = (int)position & cellMask;
+    int chunk = index >>> CHUNK_SHIFT;
+    if (chunks == null)
+    {
+      chunks = new ByteBuffer[getChunkCount()];
+      cellChunks = new IntBuffer[chunks.length];
+    }
+    if (chunks[chunk] == null)
+    {
+      chunks[chunk] = ByteBuffer.allocateDirect(getChunkSize() * Integer.BYTES).order(ByteOrder.nativeOrder());
+      cellChunks[chunk] = chunks[chunk].asIntBuffer();
+    }
+    cellChunks[chunk].put(index & CHUNK_MASK, cell);
+  }
+  
+  @Override
+  protected void allocateLineIndex(int size)
+  {
+    DirectMemory.free(lineIndexBuffer);
+    lineIndexBuffer = ByteBuffer.allocateDirect(size * Long.BYTES).order(ByteOrder.nativeOrder());
+    lineIndex = lineIndexBuffer.asLongBuffer();
+  }
+  
+  @Override
+  protected long readLineIndex(int index)
+  {
+    return lineIndex.get(index);
+  }
+  
+  @Override
+  protected void writeLineIndex(int index, long position)
+  {
+    lineIndex.put(index, position);
+  }
+}
@@ -32,7 +32,17 @@ public interface DisplayBuffer
 	 * @param text The text to add to the buffer.
 	 * @param attributes Attributes of the text being added
 	 */
-  public void addText(String text, TextAttributes attributes);
+  public void addText(CharSequence text, TextAttributes attributes);
+  
+  /**
+   * Adds a range of chars to the end of the display buffer.
+   * 
+   * @param chars The chars to add to the buffer.
+   * @param offset The index of the first char to add.
+   * @param length The number of chars to add.
+   * @param attributes Attributes of the text being added
+   */
+  public void addText(char[] chars, int offset, int length, TextAttributes attributes);
   
   /**
    * Adds text to the end of the display buffer followed by a new line
@@ -40,7 +50,7 @@ public interface DisplayBuffer
    * @param text The text to add to the buffer
    * @param attributes Attributes of the text being added
    */
-  public void addTextLine(String text, TextAttributes attributes);
+  public void addTextLine(CharSequence text, TextAttributes attributes);
   
   /**
    * Changes the width of the display buffer.  This will cause the rows
@@ -59,10 +69,66 @@ public interface DisplayBuffer
    */
   public void drawLine(Terminal terminal, int bufferRow);
   
+  /**
+   * Draw a row of text to the terminal, counting rows back from the end of the buffer.  Unlike
+   * {@link #drawLine(Terminal, int)}, this doesn't need to know how many rows come before the row,
+   * so it stays cheap near the end of the buffer after the width changes.
+   * 
+   * @param terminal The terminal to draw to.  This function assumes that 
+   *        the cursor is already at the correct position.
+   * @param rowsFromEnd The number of rows after the row to draw, so 0 draws the last row.  It 
+   *        must be less than the number of rows with content.
+   */
+  public void drawLineFromEnd(Terminal terminal, int rowsFromEnd);
+  
   /**
    * Returns the number of lines in the buffer with valid content.
    * 
    * @return The number of lines in the buffer with content.
    */
   public int getNumberOfRowsWithContent();
+  
+  /**
+   * Returns the number of rows with content, but stops counting at a limit.  Only the rows from
+   * the end of the buffer up to the limit have to be counted, so this can be much cheaper than 
+   * {@link #getNumberOfRowsWithContent()} after the width changes.
+   * 
+   * @param limit The most rows to count.
+   * @return The number of rows with content, or limit if there are at least that many.
+   */
+  public int getNumberOfRowsWithContent(int limit);
+  
+  /**
+   * Returns a number that goes up by n whenever n rows are added to the end of the buffer, so 
+   * rows that were counted back from the end are now n rows further back.  It can only be 
+   * compared with values from the same layout version.
+   * 
+   * @return The number of rows added to the buffer.
+   */
+  public long getAddedRows();
+  
+  /**
+   * Returns a number that changes whenever rows that are already in the buffer change or move,
+   * for example when the width changes or old text is thrown away.  As long as it stays the same, 
+   * adding text only adds rows to the end of the buffer or adds characters to the last row.
+   * 
+   * @return The layout version of the buffer.
+   */
+  public int getLayoutVersion();
+  
+  /**
+   * Returns the number of rows that have been thrown away from the start of the buffer to make
+   * room for new text.  When it goes up by n, the rows that were left moved up by n, so row r is
+   * now row r - n.
+   * 
+   * @return The number of rows thrown away since the buffer was created.
+   */
+  public long getDiscardedRows();
+  
+  /**
+   * Frees the memory used to hold the text of the buffer.  Buffers that keep their text outside 
+   * the Java heap only give it back when they are released, so this should be called once the 
+   * terminal the buffer is shown on has closed.  The buffer must not be used afterwards.
+   */
+  public void release();
 }
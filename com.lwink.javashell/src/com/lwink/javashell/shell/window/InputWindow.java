@@ -15,10 +15,9 @@
  **/
 package com.lwink.javashell.shell.window;
 
-import java.util.stream.IntStream;
-
 import com.lwink.javashell.terminal.api.CursorPosition;
 import com.lwink.javashell.terminal.api.Terminal;
+import com.lwink.javashell.util.CharacterWidth;
 
 public class InputWindow
 {
@@ -28,9 +27,10 @@ public class InputWindow
   private StringBuilder buffer;
   
   /**
-   * This holds the cursor position in the user input area (not including the prompt area).  So if
-   * the total window with is 10 and the prompt length is 3, this variable can hold values from 
-   * 0 to 6.
+   * This holds the cursor position in the user input area (not including the prompt area), as
+   * the number of chars after visiblePos.  So if the total window with is 10, the prompt length is
+   * 3 and every character is one column wide, this variable can hold values from 0 to 6.  Wide
+   * characters take up two columns, see {@link CharacterWidth}.
    */
   private int bufferCursorPos;
   
@@ -47,6 +47,9 @@ public class InputWindow
   private Terminal terminal;
   private String prompt;
   
+  /** Holds the visible characters while the window is drawn */
+  private char[] drawBuffer = new char[0];
+  
   public InputWindow(Terminal terminal, int width, int row)
   {
     buffer = new StringBuilder(100);
@@ -74,19 +77,10 @@ public class InputWindow
    */
   public void cursorLeft()
   {
-    if (bufferCursorPos > 0)
+    int cursor = visiblePos + bufferCursorPos;
+    if (cursor > 0)
     {
-    	--bufferCursorPos;
-      resetCursorPosition();
-      terminal.flush();
-    }
-    else
-    {
-      if (visiblePos > 0)
-      {
-        visiblePos--;
-        refresh();
-      }
+      moveCursor(buffer.offsetByCodePoints(cursor, -1));
     }
   }
   
@@ -95,27 +89,57 @@ public class InputWindow
    */
   public void cursorRight()
   {
-    if (bufferCursorPos + visiblePos >= buffer.length())
+    int cursor = visiblePos + bufferCursorPos;
+    if (cursor >= buffer.length())
     {
       // The cursor is already at the end of the input.  We could sound a bell or flash the 
       // screen here if needed.
       return;
     }
-    
-    if (prompt.length() + bufferCursorPos + 1 == width)
+    moveCursor(buffer.offsetByCodePoints(cursor, 1));
+  }
+  
+  /**
+   * Moves the cursor to a position in the buffer, redrawing the window if it had to be scrolled
+   * to keep the cursor in view.
+   * 
+   * @param cursor The index in the buffer to move the cursor to.
+   */
+  private void moveCursor(int cursor)
+  {
+    if (setCursor(cursor))
     {
-      // The cursor is already in the last cell, so we need to "scroll" to the right
-      visiblePos++;
       refresh();
     }
     else
     {
-    	++bufferCursorPos;
       resetCursorPosition();
       terminal.flush();
     }
   }
   
+  /**
+   * Sets the cursor to a position in the buffer.  If the cursor would be past the last cell of 
+   * the window, the window is "scrolled" to the right just enough to bring it back into view.
+   * 
+   * @param cursor The index in the buffer to set the cursor to.
+   * @return Whether the window was scrolled.
+   */
+  private boolean setCursor(int cursor)
+  {
+    int oldVisiblePos = visiblePos;
+    visiblePos = Math.min(visiblePos, cursor);
+    int columns = getPromptColumns() + CharacterWidth.of(buffer, visiblePos, cursor);
+    while (columns >= width && visiblePos < cursor)
+    {
+      int next = buffer.offsetByCodePoints(visiblePos, 1);
+      columns -= CharacterWidth.of(buffer, visiblePos, next);
+      visiblePos = next;
+    }
+    bufferCursorPos = cursor - visiblePos;
+    return visiblePos != oldVisiblePos;
+  }
+  
   /**
    * Add a new character to the input window buffer.  The character will be placed at the
    * cursor position.  {@link #refresh()} needs to be called for the updated state to
@@ -182,18 +206,13 @@ public class InputWindow
    */
   public InputWindow deleteCharBehindCursorPos()
   {
-    int deletePos = bufferCursorPos + visiblePos - 1; // -1 because we delete the character behind the cursor
-    if (buffer.length() > deletePos && deletePos >= 0)
+    int cursor = bufferCursorPos + visiblePos;
+    if (buffer.length() >= cursor && cursor > 0)
     {
-      buffer.deleteCharAt(deletePos);
-      if (bufferCursorPos > 0)
-      {
-        bufferCursorPos--;
-      }
-      else if (visiblePos > 0)
-      {
-        visiblePos--;
-      }
+      // Both chars of a surrogate pair are deleted
+      int deletePos = buffer.offsetByCodePoints(cursor, -1);
+      buffer.delete(deletePos, cursor);
+      setCursor(deletePos);
     }
     return this;
   }
@@ -211,8 +230,8 @@ public class InputWindow
       this.width = width;
       this.row = row;
       
-      visiblePos = Math.max(buffer.length() - width + 1, 0);
-      bufferCursorPos = Math.min(buffer.length(), width - 1);
+      visiblePos = 0;
+      setCursor(buffer.length());
       refresh();
     }
   }
@@ -222,31 +241,34 @@ public class InputWindow
    */
   public void refresh()
   {
-  	terminal.resetColorToDefaults();
+    terminal.beginFrame();
+  	terminal.resetAttributes();
     terminal.setCursorVisible(false);
     terminal.moveCursor(col, row);
     
-    // First draw the prompt
-    int promptVisibleChars = Math.min(prompt.length(), width - 1);
-		IntStream.range(0, promptVisibleChars)
-					   .map(prompt::charAt)
-		         .forEach(c -> terminal.putCharacter((char) c));
-
-    // This variable holds the number of visible characters.  The minus 1 at the end is
-    // so that there is room for the cursor at the end of the buffer
-    int bufferVisibleChars = Math.min(buffer.length(), width - promptVisibleChars - 1);
-
-    if (bufferVisibleChars > 0)
-		{
-			IntStream.range(visiblePos, bufferVisibleChars + visiblePos)
-			         .map(buffer::charAt)
-					     .forEach(c -> terminal.putCharacter((char) c));
-		}
+    // The prompt and the visible characters fill all but the last column, so that there is 
+    // room for the cursor at the end of the buffer
+    int promptVisibleChars = CharacterWidth.fit(prompt, 0, prompt.length(), width - 1);
+    int promptColumns = CharacterWidth.of(prompt, 0, promptVisibleChars);
+    int bufferVisibleChars = 
+        CharacterWidth.fit(buffer, visiblePos, buffer.length(), width - promptColumns - 1) - visiblePos;
+    
+    if (drawBuffer.length < promptVisibleChars + bufferVisibleChars)
+    {
+      drawBuffer = new char[Math.max(width, promptVisibleChars + bufferVisibleChars)];
+    }
+    prompt.getChars(0, promptVisibleChars, drawBuffer, 0);
+    buffer.getChars(visiblePos, bufferVisibleChars + visiblePos, drawBuffer, promptVisibleChars);
+    
+    // Draw the prompt and the visible part of the input all at once
+    terminal.putChars(drawBuffer, 0, promptVisibleChars + bufferVisibleChars);
+    
     // Erase everything after the cursor's current position
     terminal.eraseLineWithCursor(CursorPosition.AFTER_CURSOR);
     
     resetCursorPosition();
     terminal.setCursorVisible(true);
+    terminal.endFrame();
     terminal.flush();
   }
   
@@ -273,9 +295,8 @@ public class InputWindow
    */
   public void moveCursorToEndOfLine()
   {
-  	int maxBufferCursorPos = width - prompt.length() - 1;
-  	bufferCursorPos = Math.min(buffer.length(), maxBufferCursorPos);
-  	visiblePos = Math.max(0, buffer.length() - bufferCursorPos);
+  	visiblePos = 0;
+  	setCursor(buffer.length());
     refresh();
   }
   
@@ -286,7 +307,15 @@ public class InputWindow
    */
   private int getTerminalCursorCol()
   {
-  	return col + bufferCursorPos + prompt.length();
+  	return col + getPromptColumns() + CharacterWidth.of(buffer, visiblePos, visiblePos + bufferCursorPos);
+  }
+  
+  /**
+   * @return The number of columns the prompt takes up.
+   */
+  private int getPromptColumns()
+  {
+    return CharacterWidth.of(prompt, 0, prompt.length());
   }
 
 }
@@ -15,6 +15,7 @@
  **/
 package com.lwink.javashell.shell.window;
 
+import com.lwink.javashell.shell.api.ScrollbackLimit;
 import com.lwink.javashell.shell.api.TextAttributes;
 import com.lwink.javashell.terminal.api.Terminal;
 
@@ -39,6 +40,19 @@ public class Window
   /** The number of rows that is scrolled back.  A value of zero means no scrolling */
   private int scrollPosition;
   
+  /** 
+   * What the screen shows if drawn is true.  It shows the display buffer scrolled back 
+   * drawnScrollPosition rows, from when drawnAddedRows rows had been added to it, the layout 
+   * version was drawnLayoutVersion and drawnDiscardedRows rows had been thrown away.  
+   * drawnStartShown is true if the first row of the buffer was on the screen.
+   */
+  private boolean drawn;
+  private int drawnScrollPosition;
+  private long drawnAddedRows;
+  private boolean drawnStartShown;
+  private int drawnLayoutVersion;
+  private long drawnDiscardedRows;
+  
   /**
    * Create a new window on a terminal.
    * 
@@ -53,6 +67,22 @@ public class Window
    *        window at the very top (first row) of the terminal.
    */
   public Window(Terminal terminal, int width, int height, int leftPosition, int topPosition)
+  {
+    this(terminal, new ArrayDisplayBuffer(width, ScrollbackLimit.DEFAULT), width, height, leftPosition, topPosition);
+  }
+  
+  /**
+   * Create a new window on a terminal that keeps its text in the given display buffer.
+   * 
+   * @param terminal The owning terminal.
+   * @param displayBuffer The buffer to keep the text of the window in.  It must have the same 
+   *        width as the window.
+   * @param width The width of the new window.
+   * @param height The height of the new window.
+   * @param leftPosition The terminal column to create the window in.
+   * @param topPosition The terminal row to create the window in.
+   */
+  public Window(Terminal terminal, DisplayBuffer displayBuffer, int width, int height, int leftPosition, int topPosition)
   {
     this.terminal = terminal;
     this.width = width;
@@ -60,7 +90,7 @@ public class Window
     this.leftPosition = leftPosition;
     this.topPosition = topPosition;
     this.scrollPosition = 0;
-    this.displayBuffer = new ArrayDisplayBuffer(width, 10);
+    this.displayBuffer = displayBuffer;
   }
   
   /**
@@ -70,14 +100,25 @@ public class Window
    * @param attributes The attributes to associate with the text.
    * @param refresh If true, the window will refresh.
    */
-  public void addText(String text, TextAttributes attributes, boolean refresh)
+  public void addText(CharSequence text, TextAttributes attributes, boolean refresh)
   {
     displayBuffer.addText(text, attributes);
-    if (scrollPosition == 0 && refresh)
-    {
-      // Redraw the window only if we are not scrolled.
-      refresh();
-    }
+    updateAfterAdd(refresh);
+  }
+  
+  /**
+   * Add a range of chars to the window.
+   * 
+   * @param chars The chars to add.
+   * @param offset The index of the first char to add.
+   * @param length The number of chars to add.
+   * @param attributes The attributes to associate with the text.
+   * @param refresh If true, the window will refresh.
+   */
+  public void addText(char[] chars, int offset, int length, TextAttributes attributes, boolean refresh)
+  {
+    displayBuffer.addText(chars, offset, length, attributes);
+    updateAfterAdd(refresh);
   }
   
   /**
@@ -87,9 +128,24 @@ public class Window
    * @param attributes The attributes to associate with the text.
    * @param refresh If true, the window will refresh.
    */
-  public void addTextWithNewLine(String text, TextAttributes attributes, boolean refresh)
+  public void addTextWithNewLine(CharSequence text, TextAttributes attributes, boolean refresh)
   {
-    addText(text + '\n', attributes, refresh);
+    displayBuffer.addTextLine(text, attributes);
+    updateAfterAdd(refresh);
+  }
+  
+  /**
+   * Draws the text that was just added, unless the window is scrolled.
+   * 
+   * @param refresh If true, the window will refresh.
+   */
+  private void updateAfterAdd(boolean refresh)
+  {
+    if (scrollPosition == 0 && refresh)
+    {
+      // Redraw the window only if we are not scrolled.
+      update();
+    }
   }
   
   /**
@@ -99,12 +155,12 @@ public class Window
    */
   public void scrollUp(int numRows)
   {
-  	int maxScroll = getMaxScrollPosition();
+  	int maxScroll = getMaxScrollPosition(addRows(scrollPosition, numRows));
   	int scrollAmount = Math.min(numRows, maxScroll - scrollPosition);
   	if (scrollAmount > 0)
   	{
   		scrollPosition += scrollAmount;
-  		refresh();
+  		update();
   	}
   }
   
@@ -116,7 +172,7 @@ public class Window
   public void scrollDown(int numRows)
   {
   	scrollPosition = Math.max(0, scrollPosition - numRows);
-  	refresh();
+  	update();
   }
   
   /**
@@ -129,11 +185,11 @@ public class Window
   public void setScrollPosition(int newScrollPosition)
   {
   	newScrollPosition = Math.max(0, newScrollPosition);
-  	newScrollPosition = Math.min(getMaxScrollPosition(), newScrollPosition);
+  	newScrollPosition = Math.min(getMaxScrollPosition(newScrollPosition), newScrollPosition);
   	if (this.scrollPosition != newScrollPosition)
   	{
   		this.scrollPosition = newScrollPosition;
-  		refresh();
+  		update();
   	}
   }
   
@@ -170,46 +226,169 @@ public class Window
     refresh();
   }
   
+  /**
+   * Frees the memory held by the window's display buffer.  The window must not be used afterwards.
+   */
+  public void release()
+  {
+    displayBuffer.release();
+  }
+  
+  /**
+   * Draws what has changed since the window was last drawn.  When text has been added to the end
+   * of the display buffer, or the window has been scrolled, the rows that are still visible are 
+   * moved with the terminal's scroll region and only the rows that weren't on the screen before 
+   * are drawn.  This makes adding or scrolling by a line cost about the same no matter how tall 
+   * the window is.  If that isn't possible, the whole window is redrawn.
+   * 
+   * Rows are counted back from the end of the display buffer, so only the rows near the end have
+   * to be laid out, no matter how much scrollback there is.
+   */
+  public void update()
+  {
+    int limit = addRows(height, scrollPosition);
+    int rows = displayBuffer.getNumberOfRowsWithContent(limit);
+    boolean startShown = rows < limit;
+    
+    // Everything drawn moved up by the rows added to the end of the buffer.  Rows thrown away from 
+    // the start of the buffer only matter if the start is on the screen.
+    long added = displayBuffer.getAddedRows() - drawnAddedRows;
+    long shift = added + drawnScrollPosition - scrollPosition;
+    boolean discarded = displayBuffer.getDiscardedRows() != drawnDiscardedRows;
+    if (!drawn || displayBuffer.getLayoutVersion() != drawnLayoutVersion || added < 0 || 
+        (discarded && (startShown || drawnStartShown)) || Math.abs(shift) >= height || !isFullWidth())
+    {
+      refresh();
+      return;
+    }
+    
+    terminal.beginFrame();
+    terminal.setCursorVisible(false);
+    if (shift != 0)
+    {
+      terminal.setScrollRegion(topPosition, topPosition + height - 1);
+    }
+    
+    // Rows that were on the screen before are scrolled into their new place, leaving the rows that
+    // weren't on the screen blank so they can be drawn.  The rows added to the end of the buffer 
+    // are always among them.
+    int firstNewRow = 0;
+    int lastNewRow = -1;
+    if (shift > 0)
+    {
+      terminal.scrollUp((int)shift);
+      firstNewRow = height - (int)shift;
+      lastNewRow = height - 1;
+    }
+    else if (shift < 0)
+    {
+      terminal.scrollDown((int)-shift);
+      lastNewRow = (int)-shift - 1;
+    }
+    for (int i = firstNewRow; i <= lastNewRow; i++)
+    {
+      drawRow(i, rows);
+    }
+    
+    // The row that was last in the buffer is drawn again if it is still on the screen, since text
+    // may have been added to the end of it.
+    long lastDrawnRow = height - 1 + scrollPosition - added;
+    if (lastDrawnRow >= 0 && lastDrawnRow < height && (lastDrawnRow < firstNewRow || lastDrawnRow > lastNewRow))
+    {
+      drawRow((int)lastDrawnRow, rows);
+    }
+    terminal.setCursorVisible(true);
+    terminal.endFrame();
+    terminal.flush();
+    
+    drawnScrollPosition = scrollPosition;
+    drawnAddedRows += added;
+    drawnStartShown = startShown;
+    drawnDiscardedRows = displayBuffer.getDiscardedRows();
+  }
+  
   /**
    * Completely redraws the window.
    */
   public void refresh()
   {
-  	// First make the cursor invisible so that it's not seen while the screen is drawn
+    // Draw everything as a single frame, and make the cursor invisible so that it's not seen 
+    // while the screen is drawn on clients that don't support frames.
+    terminal.beginFrame();
     terminal.setCursorVisible(false);
     
-    // bufferStartRow is the row into the display buffer that is the first to be displayed
-    // at the top of the window.  Note that this can be a negative number if the window is
-    // larger than the number of rows in the buffer.
-    int bufferStartRow = displayBuffer.getNumberOfRowsWithContent() - height - scrollPosition;
+    // Only the rows that can be on the screen are counted.  If there are fewer, the rows at the 
+    // top of the window are left blank.
+    int limit = addRows(height, scrollPosition);
+    int rows = displayBuffer.getNumberOfRowsWithContent(limit);
     
     // Go through the window line by line from the top of the window to the bottom and
     // draw each line from the buffer.
     for (int i = 0; i < height; i++)
     {
-      terminal.moveCursor(leftPosition, i + topPosition);
-      int bufferRow = bufferStartRow + i;
-      if (bufferRow >= 0)
-      {
-        displayBuffer.drawLine(terminal, bufferRow);
-      }
-      else
-      {
-        // No data to fill this row, so make it blank
-      	terminal.eraseCharacters(width);
-      }
+      drawRow(i, rows);
     }
     terminal.setCursorVisible(true);
+    terminal.endFrame();
     terminal.flush();
+    
+    drawn = true;
+    drawnScrollPosition = scrollPosition;
+    drawnAddedRows = displayBuffer.getAddedRows();
+    drawnStartShown = rows < limit;
+    drawnLayoutVersion = displayBuffer.getLayoutVersion();
+    drawnDiscardedRows = displayBuffer.getDiscardedRows();
   }
   
   /**
-   * Returns the max scroll position.
+   * Draws a row of the display buffer on a row of the window.
    * 
-   * @return The maximum scroll position
+   * @param windowRow The row of the window to draw on.
+   * @param rows The number of rows in the display buffer, counted up to at least the rows on the
+   *        screen.  If the window row is above the first row of the buffer it is left blank.
+   */
+  private void drawRow(int windowRow, int rows)
+  {
+    terminal.moveCursor(leftPosition, windowRow + topPosition);
+    int rowsFromEnd = height - 1 - windowRow + scrollPosition;
+    if (rowsFromEnd < rows)
+    {
+      displayBuffer.drawLineFromEnd(terminal, rowsFromEnd);
+    }
+    else
+    {
+      // No data to fill this row, so make it blank
+      terminal.eraseCharacters(width);
+    }
+  }
+  
+  /**
+   * Returns true if the window takes up the full width of the terminal.  Only then can the 
+   * terminal scroll the window's rows without moving anything outside of the window.
+   * 
+   * @return true if the window is as wide as the terminal.
+   */
+  protected boolean isFullWidth()
+  {
+    return leftPosition == 0 && width >= terminal.getTerminalSize().getColumns();
+  }
+  
+  /**
+   * Returns the max scroll position, without counting rows further back than needed.
+   * 
+   * @param limit The largest scroll position the caller is interested in.
+   * @return The maximum scroll position, or limit if it is at least that.
+   */
+  protected int getMaxScrollPosition(int limit)
+  {
+  	return Math.max(0, displayBuffer.getNumberOfRowsWithContent(addRows(height, limit)) - height);
+  }
+  
+  /**
+   * Adds two numbers of rows without going past Integer.MAX_VALUE.
    */
-  protected int getMaxScrollPosition()
+  private static int addRows(int rows1, int rows2)
   {
-  	return Math.max(0, displayBuffer.getNumberOfRowsWithContent() - height);
+    return (int)Math.min(Integer.MAX_VALUE, (long)rows1 + rows2);
   }
 }
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes ANSI escape sequences directly into a caller supplied ByteBuffer.  Nothing is allocated
+ * while encoding, numeric parameters are converted to ASCII digits using precomputed tables
+ * instead of going through a String.
+ *
+ * The caller is responsible for making sure the buffer has enough room for the sequence being
+ * written.  No sequence written by this class is longer than {@link #MAX_SEQUENCE_LENGTH} bytes.
+ */
+public final class AnsiEncoder
+{
+  /** The maximum number of bytes any single sequence from this class can take */
+  public static final int MAX_SEQUENCE_LENGTH = 128;
+
+  public static final byte ESC = 0x1b;
+  public static final byte BEL = 0x07;
+
+  /** The tens digit of every number from 0 to 99 */
+  private static final byte[] DIGIT_TENS = new byte[100];
+
+  /** The ones digit of every number from 0 to 99 */
+  private static final byte[] DIGIT_ONES = new byte[100];
+
+  static
+  {
+    for (int i = 0; i < 100; i++)
+    {
+      DIGIT_TENS[i] = (byte)('0' + i / 10);
+      DIGIT_ONES[i] = (byte)('0' + i % 10);
+    }
+  }
+
+  private AnsiEncoder()
+  {
+  }
+
+  /**
+   * Writes the Control Sequence Introducer (ESC [).
+   *
+   * @param buf The buffer to write to.
+   */
+  public static void csi(ByteBuffer buf)
+  {
+    buf.put(ESC);
+    buf.put((byte)'[');
+  }
+
+  /**
+   * Writes a sequence with a single numeric parameter, for example ESC [ 5 X.
+   *
+   * @param buf The buffer to write to.
+   * @param param The numeric parameter.
+   * @param finalByte The character that ends the sequence.
+   */
+  public static void csi(ByteBuffer buf, int param, char finalByte)
+  {
+    csi(buf);
+    putInt(buf, param);
+    buf.put((byte)finalByte);
+  }
+
+  /**
+   * Writes a sequence with two numeric parameters, for example ESC [ 10 ; 20 H.
+   *
+   * @param buf The buffer to write to.
+   * @param param1 The first numeric parameter.
+   * @param param2 The second numeric parameter.
+   * @param finalByte The character that ends the sequence.
+   */
+  public static void csi(ByteBuffer buf, int param1, int param2, char finalByte)
+  {
+    csi(buf);
+    putInt(buf, param1);
+    buf.put((byte)';');
+    putInt(buf, param2);
+    buf.put((byte)finalByte);
+  }
+
+  /**
+   * Writes a sequence whose numeric parameter defaults to 1, such as the relative cursor movement
+   * sequences.  The parameter is left out when it is 1 to save bytes.
+   *
+   * @param buf The buffer to write to.
+   * @param count The numeric parameter.
+   * @param finalByte The character that ends the sequence.
+   */
+  public static void csiCount(ByteBuffer buf, int count, char finalByte)
+  {
+    csi(buf);
+    if (count != 1)
+    {
+      putInt(buf, count);
+    }
+    buf.put((byte)finalByte);
+  }
+
+  /**
+   * Returns the number of bytes that {@link #csiCount(ByteBuffer, int, char)} would write.
+   *
+   * @param count The numeric parameter.
+   * @return The length of the sequence in bytes.
+   */
+  public static int csiCountLength(int count)
+  {
+    return count == 1 ? 3 : 3 + digitCount(count);
+  }
+
+  /**
+   * Writes a Cursor Position (CUP) sequence.
+   *
+   * @param buf The buffer to write to.
+   * @param row The 1 based row to move to.
+   * @param col The 1 based column to move to.
+   */
+  public static void cursorPosition(ByteBuffer buf, int row, int col)
+  {
+    csi(buf, row, col, 'H');
+  }
+
+  /**
+   * Returns the number of bytes that {@link #cursorPosition(ByteBuffer, int, int)} would write.
+   *
+   * @param row The 1 based row.
+   * @param col The 1 based column.
+   * @return The length of the sequence in bytes.
+   */
+  public static int cursorPositionLength(int row, int col)
+  {
+    return 4 + digitCount(row) + digitCount(col);
+  }
+
+  /**
+   * Writes a sequence to set or reset a DEC private mode, for example ESC [ ? 25 h.
+   *
+   * @param buf The buffer to write to.
+   * @param mode The private mode number.
+   * @param set true to set (enable) the mode, false to reset (disable) it.
+   */
+  public static void privateMode(ByteBuffer buf, int mode, boolean set)
+  {
+    csi(buf);
+    buf.put((byte)'?');
+    putInt(buf, mode);
+    buf.put(set ? (byte)'h' : (byte)'l');
+  }
+
+  /**
+   * Writes a Select Graphic Rendition sequence with a single parameter.
+   *
+   * @param buf The buffer to write to.
+   * @param param The SGR parameter.
+   */
+  public static void sgr(ByteBuffer buf, int param)
+  {
+    csi(buf, param, 'm');
+  }
+
+  /**
+   * Writes a Select Graphic Rendition sequence with several parameters, for example ESC [ 1 ; 31 m.
+   *
+   * @param buf The buffer to write to.
+   * @param params The SGR parameters.
+   * @param count The number of parameters to use from the params array.
+   */
+  public static void sgr(ByteBuffer buf, int[] params, int count)
+  {
+    csi(buf);
+    for (int i = 0; i < count; i++)
+    {
+      if (i > 0)
+      {
+        buf.put((byte)';');
+      }
+      putInt(buf, params[i]);
+    }
+    buf.put((byte)'m');
+  }
+
+  /**
+   * Returns the number of bytes that {@link #sgr(ByteBuffer, int[], int)} would write.
+   *
+   * @param params The SGR parameters.
+   * @param count The number of parameters to use from the params array.
+   * @return The length of the sequence in bytes.
+   */
+  public static int sgrLength(int[] params, int count)
+  {
+    int length = 3 + Math.max(0, count - 1);
+    for (int i = 0; i < count; i++)
+    {
+      length += digitCount(params[i]);
+    }
+    return length;
+  }
+
+  /**
+   * Writes the ASCII digits of a non-negative integer.
+   *
+   * @param buf The buffer to write to.
+   * @param value The value to write.  Must not be negative.
+   */
+  public static void putInt(ByteBuffer buf, int value)
+  {
+    if (value < 100)
+    {
+      // Nearly every parameter sent to a terminal is a row, column or color, so handle small
+      // values without any loops.
+      if (value >= 10)
+      {
+        buf.put(DIGIT_TENS[value]);
+      }
+      else if (value < 0)
+      {
+        throw new IllegalArgumentException("Negative escape sequence parameter: " + value);
+      }
+      buf.put(DIGIT_ONES[value]);
+      return;
+    }
+
+    int digits = digitCount(value);
+    int end = buf.position() + digits;
+    int pos = end;
+
+    // Write two digits at a time from the least significant end
+    while (value >= 100)
+    {
+      int q = value / 100;
+      int r = value - q * 100;
+      value = q;
+      buf.put(--pos, DIGIT_ONES[r]);
+      buf.put(--pos, DIGIT_TENS[r]);
+    }
+    buf.put(--pos, DIGIT_ONES[value]);
+    if (value >= 10)
+    {
+      buf.put(--pos, DIGIT_TENS[value]);
+    }
+    buf.position(end);
+  }
+
+  /**
+   * Returns the number of decimal digits in a non-negative integer.
+   *
+   * @param value The value to count the digits of.
+   * @return The number of digits.
+   */
+  public static int digitCount(int value)
+  {
+    int digits = 1;
+    while (value >= 10)
+    {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+import java.util.Map;
+
+import org.apache.sshd.server.Environment;
+
+/**
+ * The number of colors that a client's terminal can display.
+ */
+public enum ColorDepth
+{
+  /** The 8 basic colors and their bright versions */
+  COLORS_16,
+  /** The 256 color palette */
+  COLORS_256,
+  /** 24 bit RGB colors */
+  TRUE_COLOR;
+  
+  /**
+   * Guesses the color depth of a client's terminal from its environment variables.
+   * 
+   * @param env The environment sent by the client.
+   * @return The color depth the terminal most likely supports.
+   */
+  public static ColorDepth fromEnvironment(Map<String, String> env)
+  {
+    String colorTerm = env.get("COLORTERM");
+    String term = env.get(Environment.ENV_TERM);
+    
+    if ("truecolor".equals(colorTerm) || "24bit".equals(colorTerm) || (term != null && term.endsWith("-direct")))
+    {
+      return TRUE_COLOR;
+    }
+    if (term != null && term.contains("256color"))
+    {
+      return COLORS_256;
+    }
+    return COLORS_16;
+  }
+}
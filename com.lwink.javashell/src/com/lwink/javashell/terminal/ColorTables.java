@@ -0,0 +1,181 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+/**
+ * Precomputed tables to find the nearest color for terminals that can't display all colors.
+ * Lookups are simple array reads so converting colors while drawing costs next to nothing.
+ */
+public final class ColorTables
+{
+  /** The RGB value of each of the 256 palette colors, using the xterm defaults */
+  static final int[] PALETTE = new int[256];
+  
+  /** Nearest palette index (16-255) for RGB colors with 5 bits per component */
+  private static final byte[] RGB_TO_256 = new byte[32 * 32 * 32];
+  
+  /** Nearest of the first 16 palette colors for each palette color */
+  private static final byte[] INDEX_TO_16 = new byte[256];
+  
+  /** Nearest of the 8 basic colors for each palette color, bright colors map to their basic one */
+  private static final byte[] INDEX_TO_8 = new byte[256];
+  
+  /** The levels of each component used by the 6x6x6 color cube */
+  private static final int[] CUBE_LEVELS = { 0, 95, 135, 175, 215, 255 };
+  
+  private static final int[] BASIC_16 = {
+      0x000000, 0xcd0000, 0x00cd00, 0xcdcd00, 0x0000ee, 0xcd00cd, 0x00cdcd, 0xe5e5e5,
+      0x7f7f7f, 0xff0000, 0x00ff00, 0xffff00, 0x5c5cff, 0xff00ff, 0x00ffff, 0xffffff };
+  
+  static
+  {
+    System.arraycopy(BASIC_16, 0, PALETTE, 0, 16);
+    for (int i = 16; i < 232; i++)
+    {
+      int c = i - 16;
+      PALETTE[i] = (CUBE_LEVELS[c / 36] << 16) | (CUBE_LEVELS[(c / 6) % 6] << 8) | CUBE_LEVELS[c % 6];
+    }
+    for (int i = 232; i < 256; i++)
+    {
+      int level = 8 + (i - 232) * 10;
+      PALETTE[i] = (level << 16) | (level << 8) | level;
+    }
+    
+    for (int i = 0; i < RGB_TO_256.length; i++)
+    {
+      RGB_TO_256[i] = (byte)nearest256(expand5(i >> 10), expand5((i >> 5) & 0x1F), expand5(i & 0x1F));
+    }
+    
+    for (int i = 0; i < 256; i++)
+    {
+      INDEX_TO_16[i] = (byte)nearest(PALETTE[i], 0, 16);
+      INDEX_TO_8[i] = (byte)(i < 16 ? i & 7 : nearest(PALETTE[i], 0, 8));
+    }
+  }
+  
+  private ColorTables()
+  {
+  }
+  
+  /**
+   * Finds the nearest palette color to a RGB color.
+   * 
+   * @param rgb Color in 0xRRGGBB form.
+   * @return A palette index from 16 to 255.
+   */
+  static int rgbTo256(int rgb)
+  {
+    int index = ((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x03E0) | ((rgb >> 3) & 0x001F);
+    return RGB_TO_256[index] & 0xFF;
+  }
+  
+  /**
+   * Finds the nearest of the 16 basic colors to a palette color.
+   * 
+   * @param index A palette index from 0 to 255.
+   * @return A palette index from 0 to 15.
+   */
+  static int indexTo16(int index)
+  {
+    return INDEX_TO_16[index];
+  }
+  
+  /**
+   * Finds the nearest of the 8 basic colors to a palette color.  Bright colors (8-15) become 
+   * their basic version.
+   * 
+   * @param index A palette index from 0 to 255.
+   * @return A palette index from 0 to 7.
+   */
+  public static int indexTo8(int index)
+  {
+    return INDEX_TO_8[index];
+  }
+  
+  /**
+   * Finds the nearest of the 8 basic colors to a RGB color.  This searches the colors rather 
+   * than reading a table, so it shouldn't be used while drawing.
+   * 
+   * @param rgb Color in 0xRRGGBB form.
+   * @return A palette index from 0 to 7.
+   */
+  public static int rgbTo8(int rgb)
+  {
+    return nearest(rgb & 0xFFFFFF, 0, 8);
+  }
+  
+  /**
+   * Finds the nearest color in the color cube or the gray ramp.  The cube is searched one 
+   * component at a time, so this does not need to check every palette color.
+   */
+  private static int nearest256(int r, int g, int b)
+  {
+    int cube = 16 + 36 * nearestLevel(r) + 6 * nearestLevel(g) + nearestLevel(b);
+    
+    int average = (r + g + b) / 3;
+    int grayStep = Math.max(0, Math.min(23, (average - 3) / 10));
+    int gray = 232 + grayStep;
+    
+    int rgb = (r << 16) | (g << 8) | b;
+    return distance(rgb, PALETTE[gray]) < distance(rgb, PALETTE[cube]) ? gray : cube;
+  }
+  
+  private static int nearestLevel(int component)
+  {
+    int best = 0;
+    for (int i = 1; i < CUBE_LEVELS.length; i++)
+    {
+      if (Math.abs(CUBE_LEVELS[i] - component) < Math.abs(CUBE_LEVELS[best] - component))
+      {
+        best = i;
+      }
+    }
+    return best;
+  }
+  
+  private static int nearest(int rgb, int from, int to)
+  {
+    int best = from;
+    for (int i = from + 1; i < to; i++)
+    {
+      if (distance(rgb, PALETTE[i]) < distance(rgb, PALETTE[best]))
+      {
+        best = i;
+      }
+    }
+    return best;
+  }
+  
+  /**
+   * The squared distance between two colors, weighted roughly by how sensitive the eye is to
+   * each component.
+   */
+  private static int distance(int rgb1, int rgb2)
+  {
+    int dr = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+    int dg = ((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF);
+    int db = (rgb1 & 0xFF) - (rgb2 & 0xFF);
+    return 3 * dr * dr + 4 * dg * dg + 2 * db * db;
+  }
+  
+  /**
+   * Expands a 5 bit color component to 8 bits.
+   */
+  private static int expand5(int component)
+  {
+    return (component << 3) | (component >> 2);
+  }
+}
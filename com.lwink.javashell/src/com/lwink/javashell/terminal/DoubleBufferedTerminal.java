@@ -15,35 +15,153 @@
  **/
 package com.lwink.javashell.terminal;
 
+import java.text.Normalizer;
 import java.util.Arrays;
-import java.util.stream.IntStream;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
 
+import com.lwink.javashell.server.api.TerminalClosedListener;
 import com.lwink.javashell.terminal.api.CursorPosition;
 import com.lwink.javashell.terminal.api.KeyPressReceiver;
+import com.lwink.javashell.terminal.api.PackedColor;
+import com.lwink.javashell.terminal.api.RepaintObserver;
 import com.lwink.javashell.terminal.api.ResizeObserver;
+import com.lwink.javashell.terminal.api.SessionStats;
 import com.lwink.javashell.terminal.api.TermColor;
 import com.lwink.javashell.terminal.api.TermSize;
 import com.lwink.javashell.terminal.api.Terminal;
+import com.lwink.javashell.terminal.api.TextStyle;
+import com.lwink.javashell.util.CharacterWidth;
 
 /**
  * This class creates a buffer on top of an existing Terminal.  It adds efficiency to the
  * terminal because it will only write to areas of the screen that require it.
+ * 
+ * Everything drawn is recorded in a back buffer instead of being sent to the underlying terminal.
+ * When {@link #flush()} is called, the back buffer is compared with a front buffer holding what 
+ * the client is showing, and only the runs of cells that changed are drawn.  Redrawing a whole 
+ * window when only a few characters changed then costs about as much as drawing those characters.
+ * 
+ * Cells are packed into an int:
+ * [xxxxxxSSSSSTTTTTTTTTTTTTTTTTTTTT]
+ * x = Not used.
+ * S = Text style bits (a {@link TextStyle} mask)
+ * T = The code point of the character
+ * 
+ * A character that is two columns wide (see {@link CharacterWidth}) takes up two cells, and the 
+ * second one holds {@link #WIDE_TAIL} instead of a code point.  Drawing over either half of a
+ * wide character blanks the other half, the same as terminals do.  A combining mark is joined
+ * with the character before it if Unicode has a precomposed character for the pair, and is 
+ * dropped otherwise, since a cell only holds one code point.  Control characters would move the 
+ * client's cursor rather than fill a cell, so they are dropped too, except for a tab, which is 
+ * stored as spaces up to the next tab stop.
+ * 
+ * The colors of each cell are kept in a parallel array of longs, the high 32 bits hold the 
+ * foreground {@link PackedColor} and the low 32 bits hold the background.
+ * 
+ * Each buffer is a single flat array with the rows laid out one after another, so diffing walks 
+ * memory in order and scrolling or resizing is done with bulk copies.  The arrays are only 
+ * replaced when the screen grows past their size, so a burst of resizes doesn't allocate.
+ * 
+ * Every write marks its row dirty, and rows that haven't been written since the last flush are 
+ * known to match the front buffer, so a flush only compares the dirty rows.
+ * 
+ * Each row of the front buffer also has a hash.  When content moved up or down the screen, for
+ * example when a log is being tailed, a flush finds the rows of the back buffer that match rows
+ * of the front buffer at a different position.  The client is then scrolled with a scroll region
+ * and only the rows that are really new are drawn, instead of every row that moved.
  */
 public class DoubleBufferedTerminal implements Terminal, ResizeObserver
 {
+  private static final int STYLE_SHIFT = 21;
+  private static final int CHARACTER_MASK = (1 << STYLE_SHIFT) - 1;
+  
+  /** The character of the cell taken up by the second half of a wide character */
+  private static final int WIDE_TAIL = Character.MAX_CODE_POINT + 1;
+  
+  /** A cell value that never matches a real cell, used to force cells to be drawn again */
+  private static final int INVALID_CELL = -1;
+  
+  /** 
+   * Changed runs of cells separated by fewer unchanged cells than this are drawn as a single run,
+   * since drawing the unchanged cells is about as cheap as moving the cursor over them.
+   */
+  private static final int MAX_GAP = 4;
+  
+  /** Scrolling the client is only worth it when it saves drawing at least this many rows */
+  private static final int MIN_SCROLL_ROWS = 3;
+  
+  /** Tab stops are every this many columns */
+  private static final int TAB_STOP = 8;
+  
   private Terminal terminal;
   private TermSize termSize;
-  private int[][] buffer;
-  private int[][] current;
+  private int rows;
+  private int columns;
+  
+  /** The screen as it is being drawn, the cell at a row and column is at row * columns + column */
+  private int[] buffer;
+  private long[] bufferColors;
+  
+  /** The screen as the client is showing it */
+  private int[] current;
+  private long[] currentColors;
+  
+  /** The rows of the back buffer that may be different from the front buffer */
+  private BitSet dirtyRows = new BitSet();
+  
+  /** The hash of each row of the front buffer, and of each dirty row of the back buffer */
+  private int[] currentHashes;
+  private int[] bufferHashes;
+  
+  /** Reused by scroll detection */
+  private int[] hashTableKeys = new int[0];
+  private int[] hashTableRows = new int[0];
+  private int[] shiftVotes = new int[0];
+  
   private int cursorRow;
   private int cursorCol;
+  private boolean cursorVisible = true;
+  
+  /** The attributes that characters are drawn with */
+  private int fgColor = PackedColor.DEFAULT;
+  private int bgColor = PackedColor.DEFAULT;
+  private int styles = 0;
+  
+  /** The rows that scroll, inclusive */
+  private int scrollTop;
+  private int scrollBottom;
+  
+  /** Set when the screen was cleared since the last flush, along with the color it was cleared to */
+  private boolean clearPending;
+  private int clearColor;
+  
+  private Set<ResizeObserver> resizeObservers = new HashSet<>();
+  
+  /** Reused to hold the characters of a run while it is being drawn */
+  private char[] runChars = new char[0];
+  
+  /** The first half of a surrogate pair whose second half hasn't been put yet, or 0 */
+  private char highSurrogate;
   
   public DoubleBufferedTerminal(Terminal underlyingTerminal)
   {
     this.terminal = underlyingTerminal;
     this.termSize = terminal.getTerminalSize();
-    this.buffer = new int[termSize.getRows()][termSize.getColumns()];
-    this.current = new int[termSize.getRows()][termSize.getColumns()];
+    this.rows = termSize.getRows();
+    this.columns = termSize.getColumns();
+    this.buffer = new int[rows * columns];
+    this.bufferColors = new long[rows * columns];
+    this.current = new int[rows * columns];
+    this.currentColors = new long[rows * columns];
+    this.currentHashes = new int[rows];
+    this.bufferHashes = new int[rows];
+    this.scrollBottom = rows - 1;
+    fillBlank(buffer, bufferColors, 0, rows * columns, PackedColor.DEFAULT);
+    
+    // We don't know what the client is showing yet
+    invalidate();
     terminal.registerResizeObserver(this);
   }
   
@@ -54,59 +172,293 @@ public class DoubleBufferedTerminal implements Terminal, ResizeObserver
   }
 
   @Override
-  public TermSize getTerminalSize()
+  public synchronized TermSize getTerminalSize()
   {
-    return terminal.getTerminalSize();
+    return termSize;
   }
 
+  /**
+   * Registers an observer to be notified when the terminal is resized.  Observers are notified 
+   * after the buffers have been resized, so they can draw the screen again right away.
+   */
+  @Override
+  public synchronized void registerResizeObserver(ResizeObserver observer)
+  {
+    resizeObservers.add(observer);
+  }
+  
+  @Override
+  public SessionStats getSessionStats()
+  {
+    return terminal.getSessionStats();
+  }
+  
+  @Override
+  public void registerRepaintObserver(RepaintObserver observer)
+  {
+    terminal.registerRepaintObserver(observer);
+  }
+  
+  @Override
+  public void registerClosedListener(TerminalClosedListener listener)
+  {
+    terminal.registerClosedListener(t -> listener.onTerminalClosed(this));
+  }
+  
+  @Override
+  public synchronized void setScrollRegion(int top, int bottom)
+  {
+    scrollTop = Math.max(0, top);
+    scrollBottom = Math.min(rows - 1, bottom);
+    cursorRow = 0;
+    cursorCol = 0;
+  }
+  
   @Override
-  public void registerResizeObserver(ResizeObserver observer)
+  public synchronized void resetScrollRegion()
+  {
+    setScrollRegion(0, rows - 1);
+  }
+  
+  @Override
+  public synchronized void scrollUp(int numRows)
+  {
+    numRows = Math.min(numRows, scrollBottom - scrollTop + 1);
+    if (numRows <= 0)
+    {
+      return;
+    }
+    
+    int moved = (scrollBottom - scrollTop + 1 - numRows) * columns;
+    System.arraycopy(buffer, (scrollTop + numRows) * columns, buffer, scrollTop * columns, moved);
+    System.arraycopy(bufferColors, (scrollTop + numRows) * columns, bufferColors, scrollTop * columns, moved);
+    fillBlank(buffer, bufferColors, scrollTop * columns + moved, (scrollBottom + 1) * columns, bgColor);
+    dirtyRows.set(scrollTop, scrollBottom + 1);
+  }
+  
+  @Override
+  public synchronized void scrollDown(int numRows)
+  {
+    numRows = Math.min(numRows, scrollBottom - scrollTop + 1);
+    if (numRows <= 0)
+    {
+      return;
+    }
+    
+    int moved = (scrollBottom - scrollTop + 1 - numRows) * columns;
+    System.arraycopy(buffer, scrollTop * columns, buffer, (scrollTop + numRows) * columns, moved);
+    System.arraycopy(bufferColors, scrollTop * columns, bufferColors, (scrollTop + numRows) * columns, moved);
+    fillBlank(buffer, bufferColors, scrollTop * columns, (scrollTop + numRows) * columns, bgColor);
+    dirtyRows.set(scrollTop, scrollBottom + 1);
+  }
+  
+  /**
+   * Frames don't need to be passed on since nothing is drawn until the terminal is flushed, and 
+   * everything drawn by a flush is put in a single frame.
+   */
+  @Override
+  public void beginFrame()
+  {
+  }
+  
+  @Override
+  public void endFrame()
   {
-    terminal.registerResizeObserver(observer);
   }
 
   @Override
-  public void moveCursor(int col, int row)
+  public synchronized void moveCursor(int col, int row)
   {
     cursorRow = row;
     cursorCol = col;
-    terminal.moveCursor(col, row);
   }
 
   @Override
-  public void setCursorVisible(boolean visible)
+  public synchronized void setCursorVisible(boolean visible)
   {
-    terminal.setCursorVisible(visible);
+    cursorVisible = visible;
   }
 
   @Override
-  public void putCharacter(char c)
+  public synchronized void putCharacter(char c)
   {
-    buffer[cursorRow][cursorCol++] = c;
+    if (Character.isHighSurrogate(c))
+    {
+      highSurrogate = c;
+      return;
+    }
+    int codePoint = Character.isLowSurrogate(c) && highSurrogate != 0 ? Character.toCodePoint(highSurrogate, c) : c;
+    highSurrogate = 0;
+    
+    if (Character.isISOControl(codePoint))
+    {
+      if (codePoint == '\t')
+      {
+        for (int spaces = TAB_STOP - Math.floorMod(cursorCol, TAB_STOP); spaces > 0; spaces--)
+        {
+          putCharacter(' ');
+        }
+      }
+      return;
+    }
+    
+    int width = CharacterWidth.of(codePoint);
+    if (width == 0)
+    {
+      combineWithPreviousCell(codePoint);
+      return;
+    }
+    width = Math.max(1, width);
+    
+    // Characters that don't fit on the screen are dropped
+    if (cursorRow >= 0 && cursorRow < rows && cursorCol >= 0 && cursorCol < columns)
+    {
+      int rowStart = cursorRow * columns;
+      int index = rowStart + cursorCol;
+      int end = Math.min(index + width, rowStart + columns);
+      blankSplitWideCharacters(rowStart, index, end);
+      
+      // A wide character that doesn't fit at the end of the row is left out
+      long colors = ((long)fgColor << 32) | (bgColor & 0xFFFFFFFFL);
+      buffer[index] = (end - index < width ? ' ' : codePoint) | (styles << STYLE_SHIFT);
+      bufferColors[index] = colors;
+      if (index + 1 < end)
+      {
+        buffer[index + 1] = WIDE_TAIL | (styles << STYLE_SHIFT);
+        bufferColors[index + 1] = colors;
+      }
+      dirtyRows.set(cursorRow);
+    }
+    cursorCol += width;
+  }
+  
+  /**
+   * Joins a combining mark with the character in the cell before the cursor, if there is a 
+   * precomposed character for the pair.
+   * 
+   * @param mark The code point of the combining mark.
+   */
+  private void combineWithPreviousCell(int mark)
+  {
+    if (cursorRow < 0 || cursorRow >= rows || cursorCol <= 0 || cursorCol > columns)
+    {
+      return;
+    }
+    int index = cursorRow * columns + cursorCol - 1;
+    if ((buffer[index] & CHARACTER_MASK) == WIDE_TAIL)
+    {
+      index--;
+    }
+    int base = buffer[index] & CHARACTER_MASK;
+    String composed = Normalizer.normalize(new StringBuilder(4).appendCodePoint(base).appendCodePoint(mark), Normalizer.Form.NFC);
+    if (composed.codePointCount(0, composed.length()) == 1 && CharacterWidth.of(composed.codePointAt(0)) == CharacterWidth.of(base))
+    {
+      buffer[index] = composed.codePointAt(0) | (buffer[index] & ~CHARACTER_MASK);
+      dirtyRows.set(cursorRow);
+    }
+  }
+  
+  /**
+   * Blanks the halves of wide characters that are left behind when a range of cells in a row is
+   * drawn over, the same as terminals do.
+   * 
+   * @param rowStart The index of the first cell of the row.
+   * @param from The index of the first cell of the range.
+   * @param to The index after the last cell of the range.
+   */
+  private void blankSplitWideCharacters(int rowStart, int from, int to)
+  {
+    if (from > rowStart && from < rowStart + columns && (buffer[from] & CHARACTER_MASK) == WIDE_TAIL)
+    {
+      buffer[from - 1] = ' ' | (buffer[from - 1] & ~CHARACTER_MASK);
+    }
+    if (to > rowStart && to < rowStart + columns && (buffer[to] & CHARACTER_MASK) == WIDE_TAIL)
+    {
+      buffer[to] = ' ' | (buffer[to] & ~CHARACTER_MASK);
+    }
+  }
+  
+  @Override
+  public synchronized void putString(CharSequence s)
+  {
+    for (int i = 0; i < s.length(); i++)
+    {
+      putCharacter(s.charAt(i));
+    }
+  }
+  
+  @Override
+  public synchronized void putChars(char[] chars, int offset, int length)
+  {
+    for (int i = offset; i < offset + length; i++)
+    {
+      putCharacter(chars[i]);
+    }
   }
 
   @Override
-  public void clearScreen()
+  public synchronized void clearScreen()
   {
-    IntStream.range(0, termSize.getRows())
-      .forEach(r -> Arrays.fill(buffer[r], 0));
+    fillBlank(buffer, bufferColors, 0, rows * columns, bgColor);
+    dirtyRows.set(0, rows);
+    
+    // Clearing the client's screen is cheaper than drawing blanks over everything on it
+    clearPending = true;
+    clearColor = bgColor;
   }
 
   @Override
-  public void enterPrivateMode()
+  public synchronized void enterPrivateMode()
   {
     terminal.enterPrivateMode();
+    invalidate();
   }
 
   @Override
-  public void exitPrivateMode()
+  public synchronized void exitPrivateMode()
   {
     terminal.exitPrivateMode();
+    invalidate();
   }
 
+  /**
+   * Draws everything that changed since the last flush to the underlying terminal and flushes it.
+   */
   @Override
-  public void flush()
+  public synchronized void flush()
   {
+    for (int r = dirtyRows.nextSetBit(0); r >= 0 && r < rows; r = dirtyRows.nextSetBit(r + 1))
+    {
+      bufferHashes[r] = rowHash(buffer, bufferColors, r * columns, (r + 1) * columns);
+    }
+    
+    terminal.beginFrame();
+    if (clearPending && countClearedCells() > columns)
+    {
+      terminal.resetAttributes();
+      terminal.setBackgroundColor(clearColor);
+      terminal.clearScreen();
+      fillBlank(current, currentColors, 0, rows * columns, clearColor);
+      Arrays.fill(currentHashes, 0, rows, rowHash(current, currentColors, 0, columns));
+    }
+    else if (!clearPending)
+    {
+      scrollChangedRegion();
+    }
+    clearPending = false;
+    
+    for (int r = dirtyRows.nextSetBit(0); r >= 0 && r < rows; r = dirtyRows.nextSetBit(r + 1))
+    {
+      drawChanges(r);
+    }
+    dirtyRows.clear();
+    
+    if (cursorRow >= 0 && cursorRow < rows && cursorCol >= 0 && cursorCol < columns)
+    {
+      terminal.moveCursor(cursorCol, cursorRow);
+    }
+    terminal.setCursorVisible(cursorVisible);
+    terminal.endFrame();
     terminal.flush();
   }
 
@@ -117,18 +469,27 @@ public class DoubleBufferedTerminal implements Terminal, ResizeObserver
   }
 
   @Override
-  public void eraseLineWithCursor(CursorPosition where)
+  public synchronized void eraseLineWithCursor(CursorPosition where)
   {
+    if (cursorRow < 0 || cursorRow >= rows)
+    {
+      return;
+    }
+    
+    dirtyRows.set(cursorRow);
+    int rowStart = cursorRow * columns;
     switch (where)
     {
     case BEFORE_CURSOR:
-      IntStream.range(0, cursorCol + 1).forEach(c -> buffer[cursorRow][c] = 0);
+      blankSplitWideCharacters(rowStart, rowStart, rowStart + Math.min(cursorCol + 1, columns));
+      fillBlank(buffer, bufferColors, rowStart, rowStart + Math.min(cursorCol + 1, columns), bgColor);
       break;
     case AFTER_CURSOR:
-      IntStream.range(cursorCol, termSize.getColumns()).forEach(c -> buffer[cursorRow][c] = 0);
+      blankSplitWideCharacters(rowStart, rowStart + Math.min(cursorCol, columns), rowStart + columns);
+      fillBlank(buffer, bufferColors, rowStart + Math.min(cursorCol, columns), rowStart + columns, bgColor);
       break;
     case BEFORE_AND_AFTER:
-      IntStream.range(0, termSize.getColumns()).forEach(c -> buffer[cursorRow][c] = 0);
+      fillBlank(buffer, bufferColors, rowStart, rowStart + columns, bgColor);
       break;
     }
   }
@@ -136,48 +497,108 @@ public class DoubleBufferedTerminal implements Terminal, ResizeObserver
   @Override
   public void setForegroundColor(TermColor color)
   {
-    // TODO Auto-generated method stub
+    setForegroundColor(color.getPackedColor());
   }
 
   @Override
   public void setBackgroundColor(TermColor color)
   {
-    // TODO Auto-generated method stub
-    
+    setBackgroundColor(color.getPackedColor());
   }
 
   @Override
-  public void resetAttributes()
+  public synchronized void setForegroundColor(int color)
   {
-    // TODO Auto-generated method stub
-    
+    fgColor = color;
   }
 
   @Override
-  public void resetColorToDefaults()
+  public synchronized void setBackgroundColor(int color)
   {
-    // TODO Auto-generated method stub
-    
+    bgColor = color;
+  }
+
+  @Override
+  public synchronized void setTextStyles(int styles)
+  {
+    this.styles = styles & TextStyle.ALL_STYLES;
+  }
+
+  @Override
+  public synchronized void resetAttributes()
+  {
+    fgColor = PackedColor.DEFAULT;
+    bgColor = PackedColor.DEFAULT;
+    styles = 0;
+  }
+
+  @Override
+  public synchronized void resetColorToDefaults()
+  {
+    fgColor = PackedColor.DEFAULT;
+    bgColor = PackedColor.DEFAULT;
   }
 
+  /**
+   * Called by the underlying terminal when it is resized.  The part of the screen that is still 
+   * visible is kept in the back buffer, but the client may have moved everything around, so the
+   * whole screen is drawn on the next flush.
+   */
   @Override
   public void onResize(TermSize terminalSize)
   {
-    int minRows = Math.min(terminalSize.getRows(), termSize.getRows());
-    
-    int newBuffer[][] = new int[terminalSize.getRows()][];
-    int newCurrent[][] = new int[terminalSize.getRows()][];
-    
-    IntStream.range(0, minRows)
-        .forEach(r -> Arrays.copyOf(buffer[r], terminalSize.getColumns()));
-    
-    IntStream.range(0, minRows)
-        .forEach(r -> Arrays.copyOf(current[r], terminalSize.getColumns()));
-    
-    this.buffer = newBuffer;
-    this.current = newCurrent;
+    synchronized (this)
+    {
+      int newRows = terminalSize.getRows();
+      int newColumns = terminalSize.getColumns();
+      int size = newRows * newColumns;
+      int minRows = Math.min(newRows, rows);
+      int minColumns = Math.min(newColumns, columns);
+      
+      // The rows are moved within the same array when it is big enough.  Rows move towards the 
+      // start of the array when the screen gets narrower, so they are copied from the top down,
+      // and the other way around when it gets wider so no row is overwritten before it is copied.
+      int[] newBuffer = buffer.length >= size ? buffer : new int[size];
+      long[] newBufferColors = bufferColors.length >= size ? bufferColors : new long[size];
+      for (int i = 0; i < minRows; i++)
+      {
+        int r = newColumns <= columns ? i : minRows - 1 - i;
+        System.arraycopy(buffer, r * columns, newBuffer, r * newColumns, minColumns);
+        System.arraycopy(bufferColors, r * columns, newBufferColors, r * newColumns, minColumns);
+        int last = r * newColumns + minColumns - 1;
+        if (minColumns > 0 && CharacterWidth.of(newBuffer[last] & CHARACTER_MASK) == 2)
+        {
+          // The second half of the wide character at the end of the row was cut off
+          newBuffer[last] = ' ' | (newBuffer[last] & ~CHARACTER_MASK);
+        }
+        fillBlank(newBuffer, newBufferColors, r * newColumns + minColumns, (r + 1) * newColumns, PackedColor.DEFAULT);
+      }
+      fillBlank(newBuffer, newBufferColors, minRows * newColumns, size, PackedColor.DEFAULT);
+      
+      this.buffer = newBuffer;
+      this.bufferColors = newBufferColors;
+      if (current.length < size)
+      {
+        this.current = new int[size];
+        this.currentColors = new long[size];
+      }
+      if (currentHashes.length < newRows)
+      {
+        this.currentHashes = new int[newRows];
+        this.bufferHashes = new int[newRows];
+      }
+      this.rows = newRows;
+      this.columns = newColumns;
+      this.termSize = terminalSize;
+      this.scrollTop = 0;
+      this.scrollBottom = newRows - 1;
+      invalidate();
+    }
     
-    this.termSize = terminalSize;
+    for (ResizeObserver obs : resizeObservers)
+    {
+      obs.onResize(terminalSize);
+    }
   }
 
 	@Override
@@ -187,16 +608,401 @@ public class DoubleBufferedTerminal implements Terminal, ResizeObserver
 	}
 
 	@Override
-	public void eraseCharacters(int numChars)
+	public synchronized void eraseCharacters(int numChars)
 	{
-		// TODO Auto-generated method stub
-		
+		if (cursorRow >= 0 && cursorRow < rows && cursorCol < columns)
+		{
+			int rowStart = cursorRow * columns;
+			blankSplitWideCharacters(rowStart, rowStart + cursorCol, rowStart + Math.min(columns, cursorCol + numChars));
+			fillBlank(buffer, bufferColors, rowStart + cursorCol, rowStart + Math.min(columns, cursorCol + numChars), bgColor);
+			dirtyRows.set(cursorRow);
+		}
 	}
 
+	/**
+	 * Deletes characters starting at the cursor, the characters after them are shifted left and 
+	 * blanks are added at the end of the row.
+	 */
 	@Override
-	public void deleteCharacters(int numChars)
+	public synchronized void deleteCharacters(int numChars)
 	{
-		// TODO Auto-generated method stub
+		if (cursorRow < 0 || cursorRow >= rows || cursorCol >= columns || numChars <= 0)
+		{
+			return;
+		}
+		numChars = Math.min(numChars, columns - cursorCol);
+		int index = cursorRow * columns + cursorCol;
+		int rowEnd = (cursorRow + 1) * columns;
+		blankSplitWideCharacters(rowEnd - columns, index, index + numChars);
+		System.arraycopy(buffer, index + numChars, buffer, index, rowEnd - index - numChars);
+		System.arraycopy(bufferColors, index + numChars, bufferColors, index, rowEnd - index - numChars);
+		fillBlank(buffer, bufferColors, rowEnd - numChars, rowEnd, bgColor);
+		dirtyRows.set(cursorRow);
+	}
+	
+	/**
+	 * Draws the runs of cells in a row that are different from what the client is showing, then
+	 * updates the front buffer to match.  The caller must hold the lock on this terminal.
+	 * 
+	 * @param row The row to draw.
+	 */
+	private void drawChanges(int row)
+	{
+		int rowStart = row * columns;
+		int rowEnd = rowStart + columns;
+		int start = mismatch(buffer, bufferColors, current, currentColors, rowStart, rowEnd);
+		if (start == rowEnd)
+		{
+			return;
+		}
+		while (start < rowEnd)
+		{
+			// A run never starts or ends in the middle of a wide character
+			if (start > rowStart && (buffer[start] & CHARACTER_MASK) == WIDE_TAIL)
+			{
+				start--;
+			}
+			
+			// Find the end of the run, allowing short gaps of unchanged cells
+			int end = endOfRun(match(buffer, bufferColors, current, currentColors, start + 1, rowEnd), rowEnd);
+			int nextStart = mismatch(buffer, bufferColors, current, currentColors, end, rowEnd);
+			while (nextStart < rowEnd && nextStart - end < MAX_GAP)
+			{
+				end = endOfRun(match(buffer, bufferColors, current, currentColors, nextStart + 1, rowEnd), rowEnd);
+				nextStart = mismatch(buffer, bufferColors, current, currentColors, end, rowEnd);
+			}
+			drawRun(row, start - rowStart, end - rowStart);
+			start = nextStart;
+		}
 		
+		System.arraycopy(buffer, rowStart, current, rowStart, columns);
+		System.arraycopy(bufferColors, rowStart, currentColors, rowStart, columns);
+		currentHashes[row] = bufferHashes[row];
+	}
+	
+	/**
+	 * @param end The index after the last changed cell of a run.
+	 * @param rowEnd The index after the last cell of the row.
+	 * @return The end of the run, moved past the second half of a wide character it would split.
+	 */
+	private int endOfRun(int end, int rowEnd)
+	{
+		return end < rowEnd && (buffer[end] & CHARACTER_MASK) == WIDE_TAIL ? end + 1 : end;
+	}
+	
+	/**
+	 * Looks for a block of rows in the back buffer that the front buffer is showing at a different
+	 * position.  If one is found that is worth it, the client is scrolled to move the rows into 
+	 * place and the front buffer is shifted to match, so the rows don't have to be drawn again.
+	 * This is a simpler take on the hashmap scrolling done by ncurses: rows are matched by hash, 
+	 * each matched row votes for the distance it moved, and the longest block of rows that moved
+	 * by the winning distance is scrolled.  A hash collision only means some rows get drawn over,
+	 * since the rows are still diffed after scrolling.  The caller must hold the lock on this 
+	 * terminal.
+	 */
+	private void scrollChangedRegion()
+	{
+		// Rows that aren't dirty match the front buffer so they have the same hash
+		int changed = 0;
+		for (int r = 0; r < rows; r++)
+		{
+			if (!dirtyRows.get(r))
+			{
+				bufferHashes[r] = currentHashes[r];
+			}
+			else if (bufferHashes[r] != currentHashes[r])
+			{
+				changed++;
+			}
+		}
+		if (changed < MIN_SCROLL_ROWS)
+		{
+			return;
+		}
+		if (shiftVotes.length < rows * 2)
+		{
+			shiftVotes = new int[rows * 2];
+		}
+		
+		// Each changed row that the client is showing somewhere else votes for how far it moved
+		buildHashTable();
+		Arrays.fill(shiftVotes, 0);
+		int bestShift = 0;
+		for (int r = 0; r < rows; r++)
+		{
+			if (bufferHashes[r] != currentHashes[r])
+			{
+				int from = findRow(bufferHashes[r]);
+				if (from >= 0 && ++shiftVotes[from - r + rows] > shiftVotes[bestShift + rows])
+				{
+					bestShift = from - r;
+				}
+			}
+		}
+		if (bestShift == 0 || shiftVotes[bestShift + rows] < MIN_SCROLL_ROWS)
+		{
+			return;
+		}
+		
+		// Find the block of rows that moved by that distance and saves the most drawing
+		int first = Math.max(0, -bestShift);
+		int last = Math.min(rows, rows - bestShift);
+		int bestTop = 0;
+		int bestBottom = -1;
+		int bestSaved = 0;
+		int top = first;
+		int saved = 0;
+		for (int r = first; r <= last; r++)
+		{
+			if (r < last && bufferHashes[r] == currentHashes[r + bestShift])
+			{
+				if (bufferHashes[r] != currentHashes[r])
+				{
+					saved++;
+				}
+				continue;
+			}
+			if (saved > bestSaved)
+			{
+				bestSaved = saved;
+				bestTop = top;
+				bestBottom = r - 1;
+			}
+			top = r + 1;
+			saved = 0;
+		}
+		if (bestSaved < MIN_SCROLL_ROWS)
+		{
+			return;
+		}
+		
+		// The region covers the rows where the block ends up and the rows it came from
+		int regionTop = Math.min(bestTop, bestTop + bestShift);
+		int regionBottom = Math.max(bestBottom, bestBottom + bestShift);
+		if (regionTop == 0 && regionBottom == rows - 1)
+		{
+			terminal.resetScrollRegion();
+		}
+		else
+		{
+			terminal.setScrollRegion(regionTop, regionBottom);
+		}
+		if (bestShift > 0)
+		{
+			terminal.scrollUp(bestShift);
+		}
+		else
+		{
+			terminal.scrollDown(-bestShift);
+		}
+		terminal.resetScrollRegion();
+		shiftFront(regionTop, regionBottom, bestShift);
+	}
+	
+	/**
+	 * Shifts rows of the front buffer the same way the client scrolled them.  The rows that were
+	 * scrolled in are unknown since the client fills them with whatever background color it was 
+	 * using.
+	 * 
+	 * @param top The first row of the scroll region.
+	 * @param bottom The last row of the scroll region.
+	 * @param shift The number of rows the content moved up, negative if it moved down.
+	 */
+	private void shiftFront(int top, int bottom, int shift)
+	{
+		int moved = bottom - top + 1 - Math.abs(shift);
+		int from = shift > 0 ? top + shift : top;
+		int to = shift > 0 ? top : top - shift;
+		System.arraycopy(current, from * columns, current, to * columns, moved * columns);
+		System.arraycopy(currentColors, from * columns, currentColors, to * columns, moved * columns);
+		System.arraycopy(currentHashes, from, currentHashes, to, moved);
+		
+		int exposedTop = shift > 0 ? top + moved : top;
+		int exposedBottom = exposedTop + Math.abs(shift);
+		Arrays.fill(current, exposedTop * columns, exposedBottom * columns, INVALID_CELL);
+		Arrays.fill(currentHashes, exposedTop, exposedBottom, rowHash(current, currentColors, exposedTop * columns, (exposedTop + 1) * columns));
+		dirtyRows.set(top, bottom + 1);
+	}
+	
+	/**
+	 * Fills an open addressing hash table that maps the hash of each row of the front buffer to
+	 * the row.  Hashes that appear on more than one row, like blank rows, can't be used to tell 
+	 * where a row moved, so they map to -1.
+	 */
+	private void buildHashTable()
+	{
+		int size = Integer.highestOneBit(rows * 2) * 2;
+		if (hashTableKeys.length != size)
+		{
+			hashTableKeys = new int[size];
+			hashTableRows = new int[size];
+		}
+		Arrays.fill(hashTableRows, -2);
+		for (int r = 0; r < rows; r++)
+		{
+			int slot = findSlot(currentHashes[r]);
+			hashTableKeys[slot] = currentHashes[r];
+			hashTableRows[slot] = hashTableRows[slot] == -2 ? r : -1;
+		}
+	}
+	
+	/**
+	 * @return The row of the front buffer with a hash, or a negative number if there isn't exactly 
+	 * one.
+	 */
+	private int findRow(int hash)
+	{
+		return hashTableRows[findSlot(hash)];
+	}
+	
+	private int findSlot(int hash)
+	{
+		int mask = hashTableKeys.length - 1;
+		int slot = (hash * 0x9E3779B9) >>> 16 & mask;
+		while (hashTableRows[slot] != -2 && hashTableKeys[slot] != hash)
+		{
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int rowHash(int[] cells, long[] colors, int from, int to)
+	{
+		int hash = 1;
+		for (int c = from; c < to; c++)
+		{
+			// Only one multiply depends on the previous cell, which keeps this loop fast
+			long color = colors[c] * 0x9E3779B97F4A7C15L;
+			hash = 31 * hash + (cells[c] ^ (int)(color >>> 32));
+		}
+		return hash;
+	}
+	
+	/**
+	 * Finds the first cell in a range of a row that differs between two buffers.  This does the 
+	 * same job as Arrays.mismatch, which isn't available on Java 8.  The loops are kept simple so 
+	 * the JIT can unroll them.
+	 * 
+	 * @return The index of the first different cell, or to if all of the cells match.
+	 */
+	private static int mismatch(int[] a, long[] aColors, int[] b, long[] bColors, int from, int to)
+	{
+		int c = from;
+		while (c < to && a[c] == b[c] && aColors[c] == bColors[c])
+		{
+			c++;
+		}
+		return c;
+	}
+	
+	/**
+	 * Finds the first cell in a range of a row that is the same in two buffers.
+	 * 
+	 * @return The index of the first matching cell, or to if all of the cells differ.
+	 */
+	private static int match(int[] a, long[] aColors, int[] b, long[] bColors, int from, int to)
+	{
+		int c = from;
+		while (c < to && (a[c] != b[c] || aColors[c] != bColors[c]))
+		{
+			c++;
+		}
+		return c;
+	}
+	
+	/**
+	 * Draws a run of cells from the back buffer, setting the attributes each time they change.
+	 * 
+	 * @param row The row the cells are on.
+	 * @param start The first column of the run.
+	 * @param end The column after the last one in the run.
+	 */
+	private void drawRun(int row, int start, int end)
+	{
+		// Each cell can take up to two chars once it is turned back into UTF-16
+		if (runChars.length < columns * 2)
+		{
+			runChars = new char[columns * 2];
+		}
+		int rowStart = row * columns;
+		
+		terminal.moveCursor(start, row);
+		int count = 0;
+		int runStyles = -1;
+		long runColors = -1;
+		for (int c = rowStart + start; c < rowStart + end; c++)
+		{
+			int cellStyles = buffer[c] >>> STYLE_SHIFT;
+			if (cellStyles != runStyles || bufferColors[c] != runColors)
+			{
+				terminal.putChars(runChars, 0, count);
+				count = 0;
+				runStyles = cellStyles;
+				runColors = bufferColors[c];
+				terminal.setForegroundColor((int)(runColors >>> 32));
+				terminal.setBackgroundColor((int)runColors);
+				terminal.setTextStyles(runStyles);
+			}
+			int character = buffer[c] & CHARACTER_MASK;
+			if (character != WIDE_TAIL)
+			{
+				count += Character.toChars(character, runChars, count);
+			}
+		}
+		terminal.putChars(runChars, 0, count);
+	}
+	
+	/**
+	 * Counts the cells the client is showing that have been cleared and not drawn over since.  When
+	 * only a few cells were cleared it is cheaper to draw blanks over them than to clear the whole 
+	 * screen and draw everything else again.
+	 * 
+	 * @return The number of cells to be blanked.
+	 */
+	private int countClearedCells()
+	{
+		int blank = ' ';
+		long blankColors = ((long)PackedColor.DEFAULT << 32) | (clearColor & 0xFFFFFFFFL);
+		int count = 0;
+		for (int r = dirtyRows.nextSetBit(0); r >= 0 && r < rows; r = dirtyRows.nextSetBit(r + 1))
+		{
+			for (int c = r * columns; c < (r + 1) * columns; c++)
+			{
+				if (buffer[c] == blank && bufferColors[c] == blankColors && (current[c] != blank || currentColors[c] != blankColors))
+				{
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Forgets what the client is showing, so the whole screen is drawn on the next flush.  The 
+	 * caller must hold the lock on this terminal.
+	 */
+	private void invalidate()
+	{
+		Arrays.fill(current, INVALID_CELL);
+		Arrays.fill(currentHashes, rowHash(current, currentColors, 0, columns));
+		dirtyRows.set(0, rows);
+	}
+	
+	/**
+	 * Fills a range of cells with blanks.
+	 * 
+	 * @param cells The cells of a buffer.
+	 * @param colors The colors of the buffer.
+	 * @param from The index of the first cell to fill.
+	 * @param to The index after the last cell to fill.
+	 * @param background The background color of the blank cells.
+	 */
+	private static void fillBlank(int[] cells, long[] colors, int from, int to, int background)
+	{
+		if (from < to)
+		{
+		  Arrays.fill(cells, from, to, ' ');
+		  Arrays.fill(colors, from, to, ((long)PackedColor.DEFAULT << 32) | (background & 0xFFFFFFFFL));
+		}
 	}
 }
@@ -15,59 +15,214 @@
  **/
 package com.lwink.javashell.terminal;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.apache.sshd.server.Environment;
 import org.apache.sshd.server.Signal;
 import org.apache.sshd.server.SignalListener;
 
+import com.lwink.javashell.server.api.TerminalClosedListener;
 import com.lwink.javashell.terminal.api.CursorPosition;
 import com.lwink.javashell.terminal.api.KeyPress;
 import com.lwink.javashell.terminal.api.KeyPressReceiver;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.PackedColor;
+import com.lwink.javashell.terminal.api.RepaintObserver;
 import com.lwink.javashell.terminal.api.ResizeObserver;
+import com.lwink.javashell.terminal.api.SessionStats;
+import com.lwink.javashell.terminal.api.SessionStats.SequenceType;
 import com.lwink.javashell.terminal.api.TermColor;
 import com.lwink.javashell.terminal.api.TermSize;
 import com.lwink.javashell.terminal.api.Terminal;
+import com.lwink.javashell.terminal.api.TextStyle;
+import com.lwink.javashell.util.CharacterWidth;
 import com.lwink.javashell.util.Preconditions;
 
 public class SshAnsiTerminal implements Terminal, SignalListener
 {
-  private OutputStream outputStream;
+  /** Size of the per-session buffer that terminal output is collected in before being written */
+  private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+  
+  /** The number of characters that are written to the output buffer at a time */
+  private static final int ENCODE_CHUNK_SIZE = 256;
+  
+  /** Value of the cursor position when we don't know where the client's cursor is */
+  private static final int UNKNOWN = -1;
+  
+  private static final byte BACKSPACE = 0x08;
+  
+  /** The DEC private mode that tells the client to hold off on drawing until the mode is reset */
+  private static final int SYNCHRONIZED_OUTPUT = 2026;
+  
+  /** The length of the sequence that sets or resets {@link #SYNCHRONIZED_OUTPUT} */
+  private static final int SYNCHRONIZED_OUTPUT_LENGTH = 8;
+  
+  /** The most parameters that can be in a SGR sequence written by this class */
+  private static final int MAX_SGR_PARAMS = 20;
+  
+  /** The base SGR parameters for foreground and background colors */
+  private static final int FOREGROUND = 30;
+  private static final int BACKGROUND = 40;
+  
+  private static final TextStyle[] STYLES = TextStyle.values();
+  
   private Environment sshEnv;
   private Set<ResizeObserver> resizeObservers = new HashSet<>();
+  private Set<RepaintObserver> repaintObservers = new HashSet<>();
+  private Set<TerminalClosedListener> closedListeners = new HashSet<>();
+  
+  /** Set once the closed listeners have been notified, they are only notified the first time the terminal stops */
+  private boolean closedNotified;
   private static final Charset charset = Charset.forName("utf8");
-  private WritableByteChannel writeChannel;
+  private final TerminalOutputQueue outputQueue;
+  private final SessionStats stats;
   private final TerminalInputReader inputReader;
   private Optional<KeyPressReceiver> keyPressReceiver = Optional.empty();
-  private Runnable runOnExit = () -> {};
+  private final Runnable runOnExit;
   private boolean running;
-  private TermColor fgColor = TermColor.DEFAULT;
-  private TermColor bgColor = TermColor.DEFAULT;
+  
+  /** 
+   * The text attributes that the next characters should be drawn with.  They are not sent to the
+   * client until something is drawn.
+   */
+  private int fgColor = PackedColor.DEFAULT;
+  private int bgColor = PackedColor.DEFAULT;
+  private int styles = 0;
+  
+  /** The text attributes that the client's terminal is using, only valid if sentAttributesKnown is true */
+  private int sentFgColor;
+  private int sentBgColor;
+  private int sentStyles;
+  private boolean sentAttributesKnown;
+  
+  /** Scratch space to build SGR parameters in */
+  private final int[] sgrParams = new int[MAX_SGR_PARAMS];
+  private final int[] sgrResetParams = new int[MAX_SGR_PARAMS];
+  
+  /** The colors that the client can display.  Colors are converted to the nearest one it supports. */
+  private final ColorDepth colorDepth;
+  
+  /** The number of columns the terminal has, used to know when the cursor wraps */
+  private int columns;
+  
+  /** Where the cursor really is on the client's terminal, or UNKNOWN */
+  private int cursorCol = UNKNOWN;
+  private int cursorRow = UNKNOWN;
+  
+  /** 
+   * The rows of the client's scroll region, or UNKNOWN.  When the whole screen scrolls, the 
+   * bottom is Integer.MAX_VALUE.
+   */
+  private int scrollTop = 0;
+  private int scrollBottom = Integer.MAX_VALUE;
+  
+  /** Whether the client's cursor is visible, only valid if cursorVisibleKnown is true */
+  private boolean cursorVisible;
+  private boolean cursorVisibleKnown;
+  
+  /** The number of calls to beginFrame() that haven't been matched by a call to endFrame() */
+  private int frameDepth;
+  
+  /** The position of the output buffer after the sequence that began the current frame */
+  private int frameStartPosition;
+  
+  /** 
+   * The number of output buffers handed off since the current frame began.  Buffers are reused,
+   * so the frame is only empty if this is 0 and the position hasn't moved.
+   */
+  private int frameBuffersHandedOff;
+  
+  /** Set when flush() is called during a frame, the flush happens when the frame ends */
+  private boolean flushDeferred;
+  
+  /** Set when queued output was dropped, the repaint observers are notified on the next flush */
+  private boolean repaintNeeded;
+  
+  /** 
+   * All escape sequences and characters are appended to this buffer.  It is only handed to the
+   * output queue when {@link #flush()} is called or when it runs out of room.
+   */
+  private ByteBuffer outputBuffer;
+  
+  /** Reused to encode characters that are not ASCII */
+  private final CharsetEncoder encoder = charset.newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE)
+      .replaceWith("\uFFFD".getBytes(charset));
+  
+  /** Holds characters waiting to be encoded by the encoder */
+  private final CharBuffer encodeBuffer = CharBuffer.allocate(ENCODE_CHUNK_SIZE);
+  
+  /** The first half of a surrogate pair passed to putCharacter, or 0 */
+  private char highSurrogate;
+  
+  /** Used to copy characters out of a CharSequence */
+  private final char[] stringChars = new char[ENCODE_CHUNK_SIZE];
   
   public SshAnsiTerminal(InputStream inputStream, OutputStream outputStream, Environment sshEnv)
   {
-    this.outputStream = Preconditions.checkNotNull(outputStream);
-    this.sshEnv = Preconditions.checkNotNull(sshEnv);
-    this.writeChannel = Channels.newChannel(this.outputStream);
-    this.inputReader = new TerminalInputReader(inputStream, charset, (kp) -> onKeyPress(kp));
-    this.sshEnv.addSignalListener(this, Signal.WINCH);
+    this(inputStream, outputStream, sshEnv, () -> {});
   }
   
   public SshAnsiTerminal(InputStream inputStream, OutputStream outputStream, Environment sshEnv, Runnable runOnExit)
   {
-  	this(inputStream, outputStream, sshEnv);
-  	this.runOnExit = runOnExit;
+    this(inputStream, outputStream, sshEnv, runOnExit, OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY);
+  }
+  
+  /**
+   * Create a new SshAnsiTerminal.
+   * 
+   * @param inputStream The stream that the client's input is read from.
+   * @param outputStream The stream to write output to.
+   * @param sshEnv The SSH environment of the session.
+   * @param runOnExit Called when the terminal is stopped.
+   * @param overflowPolicy What to do when the client can't keep up with the output.
+   * @param outputQueueCapacity The most bytes of output that can be waiting to be sent to the client.
+   */
+  public SshAnsiTerminal(InputStream inputStream, OutputStream outputStream, Environment sshEnv, Runnable runOnExit,
+      OutputOverflowPolicy overflowPolicy, int outputQueueCapacity)
+  {
+    this(inputStream, outputStream, sshEnv, runOnExit, overflowPolicy, outputQueueCapacity, 
+        TerminalOutputQueue.newOutputExecutor());
+  }
+  
+  /**
+   * Create a new SshAnsiTerminal whose output is written by an executor.
+   * 
+   * @param inputStream The stream that the client's input is read from.
+   * @param outputStream The stream to write output to.
+   * @param sshEnv The SSH environment of the session.
+   * @param runOnExit Called when the terminal is stopped.
+   * @param overflowPolicy What to do when the client can't keep up with the output.
+   * @param outputQueueCapacity The most bytes of output that can be waiting to be sent to the client.
+   * @param outputExecutor Runs the tasks that write to the output stream.  If it is an 
+   *        ExecutorService it is shut down when the terminal is stopped.
+   */
+  protected SshAnsiTerminal(InputStream inputStream, OutputStream outputStream, Environment sshEnv, Runnable runOnExit,
+      OutputOverflowPolicy overflowPolicy, int outputQueueCapacity, Executor outputExecutor)
+  {
+    this.sshEnv = Preconditions.checkNotNull(sshEnv);
+    this.runOnExit = Preconditions.checkNotNull(runOnExit);
+    this.stats = new SessionStats(sshEnv.getEnv().get(Environment.ENV_USER));
+    this.outputQueue = new TerminalOutputQueue(outputStream, outputExecutor, OUTPUT_BUFFER_SIZE, outputQueueCapacity, 
+        overflowPolicy, this::onFramesDropped, this::onDisconnect, stats);
+    this.outputBuffer = outputQueue.getBuffer();
+    this.inputReader = new TerminalInputReader(inputStream, charset, (kp) -> onKeyPress(kp));
+    this.sshEnv.addSignalListener(this, Signal.WINCH);
+    this.columns = readColumns();
+    this.colorDepth = ColorDepth.fromEnvironment(sshEnv.getEnv());
   }
   
   public void start()
@@ -79,6 +234,16 @@ public class SshAnsiTerminal implements Terminal, SignalListener
   @Override
   public void stop()
   {
+    try
+    {
+      // Send anything that is still buffered, such as the sequence to exit private mode
+      flush();
+    }
+    catch (Throwable t)
+    {
+      t.printStackTrace();
+    }
+    
     try
     {
     	this.running = false;
@@ -89,6 +254,28 @@ public class SshAnsiTerminal implements Terminal, SignalListener
     {
       t.printStackTrace();
     }
+    finally
+    {
+      // Closing the queue shuts down the executor that writes the output
+      outputQueue.close();
+    }
+    
+    // The listeners are notified once nothing can be waiting on the output queue, so they are 
+    // free to take any lock that a thread writing output might hold
+    TerminalClosedListener[] listeners;
+    synchronized (closedListeners)
+    {
+      if (closedNotified)
+      {
+        return;
+      }
+      closedNotified = true;
+      listeners = closedListeners.toArray(new TerminalClosedListener[closedListeners.size()]);
+    }
+    for (TerminalClosedListener listener : listeners)
+    {
+      listener.onTerminalClosed(this);
+    }
   }
 
   @Override
@@ -110,164 +297,479 @@ public class SshAnsiTerminal implements Terminal, SignalListener
       resizeObservers.add(observer);
     }
   }
+  
+  @Override
+  public void registerRepaintObserver(RepaintObserver observer)
+  {
+    repaintObservers.add(observer);
+  }
+  
+  @Override
+  public void registerClosedListener(TerminalClosedListener listener)
+  {
+    synchronized (closedListeners)
+    {
+      closedListeners.add(listener);
+    }
+  }
+  
+  @Override
+  public SessionStats getSessionStats()
+  {
+    return stats;
+  }
 
+  /**
+   * Moves the cursor using the shortest sequence of bytes possible.  The terminal keeps track of
+   * where the client's cursor is, so moving to where the cursor already is writes nothing, and 
+   * short moves use relative motion (carriage return, line feed or the CUF/CUB/CUU/CUD sequences)
+   * instead of an absolute position.  CUU and CUD stop at the margins of the scroll region, so an
+   * absolute position is used for moves that cross one.
+   */
   @Override
-  public void moveCursor(int col, int row)
+  public synchronized void moveCursor(int col, int row)
   {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add(String.valueOf(row + 1))
-        .add(';')
-        .add(String.valueOf(col + 1))
-        .add('H')
-        .build();
-    writeBytes(bb);
+    if (col == cursorCol && row == cursorRow)
+    {
+      return;
+    }
+    
+    stats.recordSequence(SequenceType.CURSOR);
+    ByteBuffer out = reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH);
+    int absoluteCost = AnsiEncoder.cursorPositionLength(row + 1, col + 1);
+    
+    if (cursorRow != UNKNOWN && cursorCol != UNKNOWN)
+    {
+      int rowDelta = row - cursorRow;
+      int verticalCost = rowDelta == 0 ? 0 : AnsiEncoder.csiCountLength(Math.abs(rowDelta));
+      int horizontalCost = horizontalMotionLength(cursorCol, col);
+      int returnCost = 1 + horizontalMotionLength(0, col);
+      int relativeCost = verticalMotionReaches(row) ? verticalCost + Math.min(horizontalCost, returnCost) : Integer.MAX_VALUE;
+      
+      // A carriage return plus line feed moves to the start of the next row.  The line feed can't
+      // scroll the screen since the row being moved to is on the screen, but it would scroll the
+      // scroll region if the cursor is on the bottom row of the region.
+      boolean lineFeedMoves = scrollBottom != UNKNOWN && cursorRow != scrollBottom;
+      int newLineCost = rowDelta == 1 && lineFeedMoves ? 2 + horizontalMotionLength(0, col) : Integer.MAX_VALUE;
+      
+      if (newLineCost <= relativeCost && newLineCost < absoluteCost)
+      {
+        out.put((byte)'\r');
+        out.put((byte)'\n');
+        writeHorizontalMotion(out, 0, col);
+      }
+      else if (relativeCost < absoluteCost)
+      {
+        if (rowDelta != 0)
+        {
+          AnsiEncoder.csiCount(out, Math.abs(rowDelta), rowDelta > 0 ? 'B' : 'A');
+        }
+        if (returnCost < horizontalCost)
+        {
+          out.put((byte)'\r');
+          writeHorizontalMotion(out, 0, col);
+        }
+        else
+        {
+          writeHorizontalMotion(out, cursorCol, col);
+        }
+      }
+      else
+      {
+        AnsiEncoder.cursorPosition(out, row + 1, col + 1);
+      }
+    }
+    else
+    {
+      AnsiEncoder.cursorPosition(out, row + 1, col + 1);
+    }
+    cursorCol = col;
+    cursorRow = row;
   }
 
   @Override
-  public void setCursorVisible(boolean visible)
+  public synchronized void setCursorVisible(boolean visible)
   {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add('?')
-        .add('2')
-        .add('5')
-        .add((visible) ? 'h' : 'l')
-        .build();
-    writeBytes(bb);
+    if (!cursorVisibleKnown || cursorVisible != visible)
+    {
+      stats.recordSequence(SequenceType.MODE);
+      AnsiEncoder.privateMode(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), 25, visible);
+      cursorVisible = visible;
+      cursorVisibleKnown = true;
+    }
   }
 
   @Override
-  public void putCharacter(char c)
+  public synchronized void putCharacter(char c)
   {
-    CharBuffer buf = CharBuffer.allocate(1).put(c);
-    writeBytes(charset.encode((CharBuffer)buf.flip()));
+    if (highSurrogate != 0 && !Character.isLowSurrogate(c))
+    {
+      // The first half of a pair that never got its second half is sent as U+FFFD, the same as 
+      // a lone surrogate passed to putString
+      writeAttributes();
+      encodeBuffer.clear();
+      encodeBuffer.put(highSurrogate);
+      encodeBuffer.flip();
+      encodeChars();
+      advanceCursor(1, false);
+      highSurrogate = 0;
+    }
+    if (Character.isHighSurrogate(c))
+    {
+      // Held until the second half arrives, since the halves can't be encoded on their own
+      highSurrogate = c;
+      return;
+    }
+    writeAttributes();
+    if (c < 0x80)
+    {
+      reserve(1).put((byte)c);
+      advanceCursor(1, c < 0x20 || c == 0x7f);
+    }
+    else
+    {
+      encodeBuffer.clear();
+      if (highSurrogate != 0 && Character.isLowSurrogate(c))
+      {
+        encodeBuffer.put(highSurrogate);
+      }
+      encodeBuffer.put(c);
+      encodeBuffer.flip();
+      advanceCursor(CharacterWidth.of(encodeBuffer, 0, encodeBuffer.remaining()), false);
+      encodeChars();
+    }
+    highSurrogate = 0;
+  }
+  
+  @Override
+  public synchronized void putString(CharSequence s)
+  {
+    int length = s.length();
+    int index = 0;
+    while (index < length)
+    {
+      int count = Math.min(length - index, ENCODE_CHUNK_SIZE);
+      if (s instanceof String)
+      {
+        ((String)s).getChars(index, index + count, stringChars, 0);
+      }
+      else if (s instanceof StringBuilder)
+      {
+        ((StringBuilder)s).getChars(index, index + count, stringChars, 0);
+      }
+      else
+      {
+        for (int i = 0; i < count; i++)
+        {
+          stringChars[i] = s.charAt(index + i);
+        }
+      }
+      putChars(stringChars, 0, count);
+      index += count;
+    }
+  }
+  
+  @Override
+  public synchronized void putChars(char[] chars, int offset, int length)
+  {
+    writeAttributes();
+    int end = offset + length;
+    while (offset < end)
+    {
+      int count = Math.min(end - offset, ENCODE_CHUNK_SIZE);
+      
+      // OR all the characters together.  If no bits above the 7th are set, then every character
+      // in the chunk is ASCII and maps directly to a single byte.  The characters minus 0x20 are
+      // OR'ed together as well, the result will be negative if there is a control character.  For
+      // ASCII characters, adding one only sets the 8th bit for DEL (0x7f).
+      int bits = 0;
+      int controlBits = 0;
+      int deleteBits = 0;
+      for (int i = offset; i < offset + count; i++)
+      {
+        bits |= chars[i];
+        controlBits |= chars[i] - 0x20;
+        deleteBits |= chars[i] + 1;
+      }
+      
+      if ((bits & 0xFF80) == 0)
+      {
+        advanceCursor(count, controlBits < 0 || (deleteBits & 0x80) != 0);
+        ByteBuffer out = reserve(count);
+        byte[] dst = out.array();
+        int pos = out.arrayOffset() + out.position();
+        for (int i = offset; i < offset + count; i++)
+        {
+          dst[pos++] = (byte)chars[i];
+        }
+        out.position(pos - out.arrayOffset());
+      }
+      else
+      {
+        // Don't split a surrogate pair between two chunks
+        if (count > 1 && offset + count < end && Character.isHighSurrogate(chars[offset + count - 1]))
+        {
+          count--;
+        }
+        encodeBuffer.clear();
+        encodeBuffer.put(chars, offset, count);
+        encodeBuffer.flip();
+        encodeChars();
+        advanceCursor(CharacterWidth.of(chars, offset, offset + count), controlBits < 0 || hasDelete(chars, offset, count));
+      }
+      offset += count;
+    }
   }
 
   /**
    * Clears the screen.
    */
   @Override
-  public void clearScreen()
+  public synchronized void clearScreen()
   {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add('2')
-        .add('J')
-        .build();
-    writeBytes(bb);
+    writeAttributes();
+    stats.recordSequence(SequenceType.ERASE);
+    AnsiEncoder.csi(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), 2, 'J');
   }
 
+  /**
+   * Sets the scroll region with the DECSTBM sequence.  Nothing is written if the client is 
+   * already using the same region.
+   */
   @Override
-  public void enterPrivateMode()
-  {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add('?')
-        .add('1')
-        .add('0')
-        .add('4')
-        .add('9')
-        .add('h')
-        .build();
-    writeBytes(bb);
-    
+  public synchronized void setScrollRegion(int top, int bottom)
+  {
+    Preconditions.checkArgument(top >= 0 && bottom > top);
+    if (top != scrollTop || bottom != scrollBottom)
+    {
+      stats.recordSequence(SequenceType.SCROLL);
+      AnsiEncoder.csi(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), top + 1, bottom + 1, 'r');
+      scrollTop = top;
+      scrollBottom = bottom;
+      
+      // Setting the region moves the cursor to the top left corner of the screen
+      cursorCol = 0;
+      cursorRow = 0;
+    }
+  }
+  
+  @Override
+  public synchronized void resetScrollRegion()
+  {
+    if (scrollTop != 0 || scrollBottom != Integer.MAX_VALUE)
+    {
+      stats.recordSequence(SequenceType.SCROLL);
+      ByteBuffer out = reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH);
+      AnsiEncoder.csi(out);
+      out.put((byte)'r');
+      scrollTop = 0;
+      scrollBottom = Integer.MAX_VALUE;
+      cursorCol = 0;
+      cursorRow = 0;
+    }
+  }
+  
+  @Override
+  public synchronized void scrollUp(int numRows)
+  {
+    if (numRows > 0)
+    {
+      // The new rows are filled with the current background, the same as erasing
+      writeAttributes();
+      stats.recordSequence(SequenceType.SCROLL);
+      AnsiEncoder.csiCount(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), numRows, 'S');
+    }
+  }
+  
+  @Override
+  public synchronized void scrollDown(int numRows)
+  {
+    if (numRows > 0)
+    {
+      // The new rows are filled with the current background, the same as erasing
+      writeAttributes();
+      stats.recordSequence(SequenceType.SCROLL);
+      AnsiEncoder.csiCount(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), numRows, 'T');
+    }
   }
 
   @Override
-  public void exitPrivateMode()
+  public synchronized void enterPrivateMode()
+  {
+    invalidateCursor();
+    stats.recordSequence(SequenceType.MODE);
+    AnsiEncoder.privateMode(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), 1049, true);
+  }
+
+  @Override
+  public synchronized void exitPrivateMode()
   {
     // TODO: This is not complete
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add('?')
-        .add('1')
-        .add('0')
-        .add('4')
-        .add('9')
-        .add('l')
-        .build();
-    writeBytes(bb);
-    
+    invalidateCursor();
+    stats.recordSequence(SequenceType.MODE);
+    AnsiEncoder.privateMode(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), 1049, false);
   }
 
   /**
-   * Flushes the underlying output stream.
+   * Begins a frame using the synchronized output mode (DEC private mode 2026).  Clients that
+   * support it don't update the screen until the frame ends, so a frame is never shown half drawn.
+   * Clients that don't support it ignore the sequence.
    */
   @Override
-  public synchronized void flush()
+  public synchronized void beginFrame()
   {
-    try
+    if (frameDepth++ == 0)
+    {
+      ByteBuffer out = reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH);
+      AnsiEncoder.privateMode(out, SYNCHRONIZED_OUTPUT, true);
+      frameStartPosition = out.position();
+      frameBuffersHandedOff = 0;
+    }
+  }
+  
+  /**
+   * Ends the current frame.  If flush() was called during the frame, the output is flushed now
+   * in the same way.
+   */
+  @Override
+  public void endFrame()
+  {
+    synchronized (this)
+    {
+      if (frameDepth == 0 || --frameDepth > 0)
+      {
+        return;
+      }
+      writeFrameEnd();
+      if (flushDeferred == false)
+      {
+        return;
+      }
+      flushDeferred = false;
+    }
+    flush();
+  }
+  
+  /**
+   * Writes the sequence that ends a frame, or takes back the sequence that began it if nothing 
+   * was drawn.
+   */
+  private void writeFrameEnd()
+  {
+    if (frameBuffersHandedOff == 0 && outputBuffer.position() == frameStartPosition)
+    {
+      // Nothing was drawn in the frame, so take back the sequence that began it
+      outputBuffer.position(frameStartPosition - SYNCHRONIZED_OUTPUT_LENGTH);
+    }
+    else
+    {
+      AnsiEncoder.privateMode(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), SYNCHRONIZED_OUTPUT, false);
+      
+      // Both sequences are counted here since the first is taken back if the frame is empty
+      stats.recordSequence(SequenceType.MODE);
+      stats.recordSequence(SequenceType.MODE);
+    }
+  }
+  
+  /**
+   * Queues any buffered output to be written and flushed to the client.  This only waits for the 
+   * client if the output queue is full and the overflow policy is {@link OutputOverflowPolicy#BLOCK}.
+   * 
+   * The client won't show anything drawn during a frame until the frame ends, so flushing during
+   * a frame is put off until {@link #endFrame()}.
+   * 
+   * If queued output has been dropped since the last flush, the repaint observers are notified
+   * after the output has been queued.
+   */
+  @Override
+  public void flush()
+  {
+    boolean repaint;
+    synchronized (this)
     {
-    	if (running)
+    	if (frameDepth > 0)
     	{
-    		outputStream.flush();
+    	  flushDeferred = true;
     	}
+    	else if (running)
+    	{
+    	  outputBuffer = outputQueue.submit(outputBuffer, true);
+    	}
+    	repaint = repaintNeeded;
+    	repaintNeeded = false;
     }
-    catch (IOException e)
+    
+    // Notify the observers without holding the lock so they are free to draw from any thread 
+    if (repaint)
     {
-      throw new RuntimeException(e);
+      for (RepaintObserver obs : repaintObservers)
+      {
+        obs.onRepaintNeeded();
+      }
     }
   }
   
   @Override
-  public void bell()
+  public synchronized void bell()
   {
-    ByteBuffer bb = ByteBufferBuilder.create().add((char)7).build();
-    writeBytes(bb);
+    reserve(1).put(AnsiEncoder.BEL);
   }
   
   @Override
   public void setForegroundColor(TermColor color)
   {
-  	if (fgColor != color)
-  	{
-	    ByteBuffer bb = ByteBufferBuilder.create()
-	        .csi()
-	        .add(String.valueOf(color.getColor() + 30))
-	        .add('m')
-	        .build();
-	    writeBytes(bb);
-	    fgColor = color;
-  	}
+    setForegroundColor(color.getPackedColor());
+  }
+  
+  /**
+   * Sets the foreground color.  Nothing is sent to the client until something is drawn, at which 
+   * point all attribute changes are sent in a single sequence.
+   */
+  @Override
+  public synchronized void setForegroundColor(int color)
+  {
+    fgColor = color;
   }
 
   @Override
   public void setBackgroundColor(TermColor color)
   {
-  	if (bgColor != color)
-  	{
-	    ByteBuffer bb = ByteBufferBuilder.create()
-	        .csi()
-	        .add(String.valueOf(color.getColor() + 40))
-	        .add('m')
-	        .build();
-	    writeBytes(bb);
-	    bgColor = color;
-  	}
+    setBackgroundColor(color.getPackedColor());
+  }
+  
+  /**
+   * Sets the background color.  Nothing is sent to the client until something is drawn, at which 
+   * point all attribute changes are sent in a single sequence.
+   */
+  @Override
+  public synchronized void setBackgroundColor(int color)
+  {
+    bgColor = color;
+  }
+  
+  /**
+   * Sets the text styles.  Nothing is sent to the client until something is drawn, at which 
+   * point all attribute changes are sent in a single sequence.
+   */
+  @Override
+  public synchronized void setTextStyles(int styles)
+  {
+    this.styles = styles & TextStyle.ALL_STYLES;
   }
 
   @Override
-  public void resetAttributes()
+  public synchronized void resetAttributes()
   {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add('0')
-        .add('m')
-        .build();
-    writeBytes(bb);
+    fgColor = PackedColor.DEFAULT;
+    bgColor = PackedColor.DEFAULT;
+    styles = 0;
   }
 
   @Override
-  public void resetColorToDefaults()
+  public synchronized void resetColorToDefaults()
   {
-  	fgColor = TermColor.DEFAULT;
-  	bgColor = TermColor.DEFAULT;
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add("39;49m")
-        .build();
-    writeBytes(bb);
+  	fgColor = PackedColor.DEFAULT;
+  	bgColor = PackedColor.DEFAULT;
   }
 
   /**
@@ -277,6 +779,11 @@ public class SshAnsiTerminal implements Terminal, SignalListener
   public void signal(Signal signal)
   {
     TermSize ts = getTerminalSize();
+    synchronized (this)
+    {
+      columns = ts.getColumns();
+      invalidateCursor();
+    }
     
     for (ResizeObserver obs : resizeObservers)
     {
@@ -292,164 +799,402 @@ public class SshAnsiTerminal implements Terminal, SignalListener
   
 
   @Override
-  public void eraseLineWithCursor(CursorPosition where)
+  public synchronized void eraseLineWithCursor(CursorPosition where)
   {
-    ByteBuffer bb = ByteBufferBuilder.create()
-        .csi()
-        .add(where.equals(CursorPosition.BEFORE_CURSOR) ? '1' : where.equals(CursorPosition.AFTER_CURSOR) ? '0' : '2')
-        .add('K')
-        .build();
-    writeBytes(bb);
+    writeAttributes();
+    int param = where.equals(CursorPosition.BEFORE_CURSOR) ? 1 : where.equals(CursorPosition.AFTER_CURSOR) ? 0 : 2;
+    stats.recordSequence(SequenceType.ERASE);
+    AnsiEncoder.csi(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), param, 'K');
   }
   
   @Override
-  public void eraseCharacters(int numChars)
+  public synchronized void eraseCharacters(int numChars)
   {
   	if (numChars > 0)
   	{
-	  	ByteBuffer bb = ByteBufferBuilder.create()
-	        .csi()
-	        .add(String.valueOf(numChars))
-	        .add('X')
-	        .build();
-	    writeBytes(bb);
+  	  writeAttributes();
+  	  stats.recordSequence(SequenceType.ERASE);
+  	  AnsiEncoder.csi(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), numChars, 'X');
   	}
   }
   
   @Override
-  public void deleteCharacters(int numChars)
+  public synchronized void deleteCharacters(int numChars)
   {
   	if (numChars > 0)
   	{
-	  	ByteBuffer bb = ByteBufferBuilder.create()
-	        .csi()
-	        .add(String.valueOf(numChars))
-	        .add('P')
-	        .build();
-	    writeBytes(bb);
+  	  writeAttributes();
+  	  stats.recordSequence(SequenceType.ERASE);
+  	  AnsiEncoder.csi(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), numChars, 'P');
   	}
   }
   
   /**
-   * Write bytes to the output stream.  All writes to the output stream should happen 
-   * through this function as it is the only synchronized function.
+   * Sends the current text attributes to the client if they are different from what the client is
+   * using.  Everything that changed is combined into one SGR sequence, and if styles need to be 
+   * turned off, the shorter of turning them off one by one or resetting everything is used.  This
+   * must be called before anything is drawn since erasing uses the background color.
+   */
+  private void writeAttributes()
+  {
+    if (sentAttributesKnown && fgColor == sentFgColor && bgColor == sentBgColor && styles == sentStyles)
+    {
+      return;
+    }
+    
+    // Build the sequence that starts by resetting everything
+    int resetCount = 0;
+    sgrResetParams[resetCount++] = 0;
+    resetCount = addStyleParams(sgrResetParams, resetCount, styles, 0);
+    if (!PackedColor.isDefault(fgColor))
+    {
+      resetCount = addColorParams(sgrResetParams, resetCount, fgColor, FOREGROUND);
+    }
+    if (!PackedColor.isDefault(bgColor))
+    {
+      resetCount = addColorParams(sgrResetParams, resetCount, bgColor, BACKGROUND);
+    }
+    
+    int[] params = sgrResetParams;
+    int count = resetCount;
+    
+    if (sentAttributesKnown)
+    {
+      // Build the sequence that only changes what is different
+      int changeCount = addStyleParams(sgrParams, 0, styles, sentStyles);
+      if (fgColor != sentFgColor)
+      {
+        changeCount = addColorParams(sgrParams, changeCount, fgColor, FOREGROUND);
+      }
+      if (bgColor != sentBgColor)
+      {
+        changeCount = addColorParams(sgrParams, changeCount, bgColor, BACKGROUND);
+      }
+      
+      if (AnsiEncoder.sgrLength(sgrParams, changeCount) <= AnsiEncoder.sgrLength(sgrResetParams, resetCount))
+      {
+        params = sgrParams;
+        count = changeCount;
+      }
+    }
+    
+    stats.recordSequence(SequenceType.ATTRIBUTES);
+    AnsiEncoder.sgr(reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH), params, count);
+    sentFgColor = fgColor;
+    sentBgColor = bgColor;
+    sentStyles = styles;
+    sentAttributesKnown = true;
+  }
+  
+  /**
+   * Adds the SGR parameters to set a color.  Colors that the client can't display are converted
+   * to the nearest color that it can using precomputed tables.
    * 
-   * @param bytes An array of bytes to write to the terminal output stream.
+   * @param params Array to add the parameters to.
+   * @param count The number of parameters already in the array.
+   * @param color The {@link PackedColor} to set.
+   * @param base {@link #FOREGROUND} or {@link #BACKGROUND}.
+   * @return The new number of parameters in the array.
    */
-  private synchronized void writeBytes(ByteBuffer buf)
+  private int addColorParams(int[] params, int count, int color, int base)
   {
-    try
+    if (PackedColor.isDefault(color))
     {
-    	if (running)
-    	{
-    		writeChannel.write(buf);
-    	}
-    } 
-    catch (IOException e)
+      params[count++] = base + 9;
+      return count;
+    }
+    
+    int index;
+    if (PackedColor.isRgb(color))
     {
-      throw new RuntimeException(e);
+      int rgb = PackedColor.getRgb(color);
+      if (colorDepth == ColorDepth.TRUE_COLOR)
+      {
+        params[count++] = base + 8;
+        params[count++] = 2;
+        params[count++] = (rgb >> 16) & 0xFF;
+        params[count++] = (rgb >> 8) & 0xFF;
+        params[count++] = rgb & 0xFF;
+        return count;
+      }
+      index = ColorTables.rgbTo256(rgb);
     }
+    else
+    {
+      index = PackedColor.getIndex(color);
+    }
+    
+    if (index >= 16 && colorDepth == ColorDepth.COLORS_16)
+    {
+      index = ColorTables.indexTo16(index);
+    }
+    
+    if (index < 8)
+    {
+      params[count++] = base + index;
+    }
+    else if (index < 16)
+    {
+      // The bright colors have their own parameters, 90-97 and 100-107
+      params[count++] = base + 60 + index - 8;
+    }
+    else
+    {
+      params[count++] = base + 8;
+      params[count++] = 5;
+      params[count++] = index;
+    }
+    return count;
   }
   
   /**
-   * Called by the TerminalInputReceiver when a new key press is available.  This function is
-   * called by a separate thread.
+   * Adds the SGR parameters needed to go from one set of styles to another.
    * 
-   * @param keyPress Key press received by the terminal server.
+   * @param params Array to add the parameters to.
+   * @param count The number of parameters already in the array.
+   * @param newStyles The mask of the styles that should be in effect.
+   * @param oldStyles The mask of the styles currently in effect.
+   * @return The new number of parameters in the array.
    */
-  protected void onKeyPress(KeyPress keyPress)
+  private static int addStyleParams(int[] params, int count, int newStyles, int oldStyles)
   {
-    if (keyPressReceiver.isPresent())
+    for (TextStyle style : STYLES)
     {
-      keyPressReceiver.get().onKeyPress(keyPress);
+      int mask = style.getMask();
+      if ((newStyles & mask) != 0 && (oldStyles & mask) == 0)
+      {
+        params[count++] = style.getTermValue();
+      }
+      else if ((newStyles & mask) == 0 && (oldStyles & mask) != 0)
+      {
+        params[count++] = style.getResetTermValue();
+      }
     }
+    return count;
   }
   
   /**
-   * A class to build ByteBuffers used to write to the terminal.
+   * Returns whether CUU or CUD can move the cursor from its row to another row.  They stop at the
+   * margins of the scroll region when the cursor starts inside it, and the margins that would 
+   * stop them aren't known if the scroll region isn't.
+   * 
+   * @param row The row to move to.
+   * @return True if relative vertical motion reaches the row.
    */
-  static class ByteBufferBuilder
+  private boolean verticalMotionReaches(int row)
   {
-    ByteBuffer buffer = ByteBuffer.allocate(32);
-    
-    public ByteBufferBuilder()
+    if (row == cursorRow)
     {
+      return true;
     }
-    
-    public static ByteBufferBuilder create()
+    if (scrollTop == UNKNOWN || scrollBottom == UNKNOWN)
     {
-      return new ByteBufferBuilder();
+      return false;
     }
-    
-    /**
-     * Add the Control Sequence Initiator byte sequence to the buffer.
-     * 
-     * @return This ByteBufferBuilder for chaining.
-     */
-    public ByteBufferBuilder csi()
+    if (row > cursorRow)
     {
-      add(0x1b);
-      add('[');
-      return this;
+      return cursorRow > scrollBottom || row <= scrollBottom;
     }
-    
-    /**
-     * @param b Byte to add to the buffer
-     * @return This ByteBufferBuilder for chaining.
-     */
-    public ByteBufferBuilder add(byte b)
+    return cursorRow < scrollTop || row >= scrollTop;
+  }
+  
+  /**
+   * Updates the tracked cursor column after characters have been written.
+   * 
+   * @param count The number of columns the characters take up.
+   * @param controlChars true if there was a control character in the characters.  This means that
+   *        we no longer know where the cursor is.
+   */
+  private void advanceCursor(int count, boolean controlChars)
+  {
+    if (cursorCol != UNKNOWN)
     {
-      buffer.put(b);
-      return this;
+      cursorCol += count;
     }
     
-    /**
-     * Adds a byte (in integer form) to the byte buffer.
-     * 
-     * @param i Integer to add to the byte buffer.
-     * @return This ByteBufferBuilder for chaining.
-     */
-    public ByteBufferBuilder add(int i)
-    {
-      Preconditions.checkArgument(i < Byte.MAX_VALUE && i > Byte.MIN_VALUE);
-
-      return add((byte)i);
+    // When the last column is written to, terminals differ on where they leave the cursor, so
+    // stop tracking it until the next absolute move.
+    if (controlChars || cursorCol >= columns)
+    {
+      cursorCol = UNKNOWN;
     }
-    
-    /**
-     * Adds a ASCII character to the byte buffer.  Terminal commands use ASCII characters
-     * so it is useful to have a fast function to convert ASCII characters to bytes.  This
-     * function should not be used for user input since that may contains characters that 
-     * are not ASCII.
-     * 
-     * @param c A ASCII character to add.
-     * @return This ByteBufferBuilder for chaining.
-     */
-    public ByteBufferBuilder add(char c)
-    {
-      Preconditions.checkArgument(c < Byte.MAX_VALUE && c > Byte.MIN_VALUE);
-      return add((byte)c);
+  }
+  
+  /**
+   * Forgets where the cursor is, whether it is visible and what the scroll region is.  This is 
+   * used when the client's terminal could have changed them without us knowing.
+   */
+  private void invalidateCursor()
+  {
+    cursorCol = UNKNOWN;
+    cursorRow = UNKNOWN;
+    cursorVisibleKnown = false;
+    scrollTop = UNKNOWN;
+    scrollBottom = UNKNOWN;
+  }
+  
+  /**
+   * Returns the number of bytes needed to move the cursor from one column to another on the same row.
+   * 
+   * @param fromCol Column the cursor is in.
+   * @param toCol Column to move the cursor to.
+   * @return The number of bytes that {@link #writeHorizontalMotion(ByteBuffer, int, int)} will write.
+   */
+  private static int horizontalMotionLength(int fromCol, int toCol)
+  {
+    if (toCol > fromCol)
+    {
+      return AnsiEncoder.csiCountLength(toCol - fromCol);
     }
-    
-    /**
-     * Adds a encoded String to the buffer.  The encoding that is used is the same
-     * as what is used in the SshAnsiTerminal class.
-     * 
-     * @param s String to add to the buffer.
-     * @return This ByteBufferBuilder for chaining.
-     */
-    public ByteBufferBuilder add(String s)
-    {
-      buffer.put(s.getBytes(charset));
-      return this;
+    // Moving back one or two columns is shorter with backspaces
+    return Math.min(fromCol - toCol, AnsiEncoder.csiCountLength(fromCol - toCol));
+  }
+  
+  /**
+   * Writes the shortest sequence to move the cursor from one column to another on the same row.
+   * 
+   * @param out Buffer to write to.
+   * @param fromCol Column the cursor is in.
+   * @param toCol Column to move the cursor to.
+   */
+  private static void writeHorizontalMotion(ByteBuffer out, int fromCol, int toCol)
+  {
+    if (toCol > fromCol)
+    {
+      AnsiEncoder.csiCount(out, toCol - fromCol, 'C');
     }
-    
-    /**
-     * @return The built ByteBuffer.
-     */
-    public ByteBuffer build()
+    else if (toCol < fromCol)
+    {
+      int distance = fromCol - toCol;
+      if (distance < AnsiEncoder.csiCountLength(distance))
+      {
+        for (int i = 0; i < distance; i++)
+        {
+          out.put(BACKSPACE);
+        }
+      }
+      else
+      {
+        AnsiEncoder.csiCount(out, distance, 'D');
+      }
+    }
+  }
+  
+  /**
+   * Checks for the ASCII DEL character in a range of characters.
+   * 
+   * @param chars Characters to check.
+   * @param offset Index of the first character to check.
+   * @param count The number of characters to check.
+   * @return true if the range has a DEL character.
+   */
+  private static boolean hasDelete(char[] chars, int offset, int count)
+  {
+    for (int i = offset; i < offset + count; i++)
+    {
+      if (chars[i] == 0x7f)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Reads the number of columns from the SSH environment.
+   * 
+   * @return The number of columns, or Integer.MAX_VALUE if the client did not send it.
+   */
+  private int readColumns()
+  {
+    try
+    {
+      return Integer.parseInt(sshEnv.getEnv().get(Environment.ENV_COLUMNS));
+    }
+    catch (NumberFormatException e)
     {
-      return (ByteBuffer)buffer.flip();
+      return Integer.MAX_VALUE;
+    }
+  }
+  
+  /**
+   * Encodes the contents of the encode buffer into the output buffer.  The caller must hold the 
+   * lock on this terminal.
+   */
+  private void encodeChars()
+  {
+    encoder.reset();
+    ByteBuffer out = reserve(AnsiEncoder.MAX_SEQUENCE_LENGTH);
+    while (encoder.encode(encodeBuffer, out, true).isOverflow())
+    {
+      out = reserve(out.capacity());
+    }
+    while (encoder.flush(out).isOverflow())
+    {
+      out = reserve(out.capacity());
+    }
+  }
+  
+  /**
+   * Makes sure there is room in the output buffer for a number of bytes, queueing the current 
+   * contents to be written if needed.  All output should be written to the buffer returned
+   * by this function.  The caller must hold the lock on this terminal while writing to it.
+   * 
+   * @param numBytes The number of bytes that the caller is going to write.
+   * @return The output buffer.
+   */
+  private ByteBuffer reserve(int numBytes)
+  {
+    if (outputBuffer.remaining() < numBytes)
+    {
+      frameBuffersHandedOff++;
+      if (running)
+      {
+        outputBuffer = outputQueue.submit(outputBuffer, false);
+      }
+      else
+      {
+        // Nothing will ever be written, so just throw away what we have
+        outputBuffer.clear();
+      }
+    }
+    return outputBuffer;
+  }
+  
+  /**
+   * Called by the output queue when queued output was thrown away.  The client's screen, cursor
+   * and attributes are no longer what we think they are, so everything has to be sent again.  
+   * This is called while holding the lock on this terminal.
+   */
+  private void onFramesDropped()
+  {
+    invalidateCursor();
+    sentAttributesKnown = false;
+    repaintNeeded = true;
+  }
+  
+  /**
+   * Called by the output queue when the client has been disconnected because it couldn't keep up.
+   * This is called while holding the lock on this terminal, so the terminal is stopped from 
+   * another thread.
+   */
+  private void onDisconnect()
+  {
+    running = false;
+    CompletableFuture.runAsync(this::stop);
+  }
+  
+  /**
+   * Called by the TerminalInputReceiver when a new key press is available.  This function is
+   * called by a separate thread.
+   * 
+   * @param keyPress Key press received by the terminal server.
+   */
+  protected void onKeyPress(KeyPress keyPress)
+  {
+    if (keyPressReceiver.isPresent())
+    {
+      keyPressReceiver.get().onKeyPress(keyPress);
     }
   }
 }
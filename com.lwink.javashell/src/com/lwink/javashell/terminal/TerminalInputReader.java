@@ -19,7 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import org.slf4j.Logger;
@@ -38,7 +38,7 @@ public class TerminalInputReader
 {
   public static final Logger LOG = LoggerFactory.getLogger(TerminalInputReader.class);
   private final InputStreamReader reader;
-  private final Executor executor;
+  private final ExecutorService executor;
   private final KeyPressReceiver receiver;
   private TermInfo termInfo;
   private boolean run = false;
@@ -53,7 +53,12 @@ public class TerminalInputReader
   public TerminalInputReader(InputStream inputStream, Charset charset, KeyPressReceiver receiver)
   {
     reader = new InputStreamReader(inputStream, charset);
-    executor = Executors.newSingleThreadExecutor();
+    executor = Executors.newSingleThreadExecutor(r -> {
+      // A daemon thread, so a read that never returns doesn't keep the JVM running
+      Thread t = new Thread(r, "terminal-input");
+      t.setDaemon(true);
+      return t;
+    });
     this.receiver = Preconditions.checkNotNull(receiver);
     this.termInfo = new TermInfo(receiver);
   }
@@ -73,6 +78,7 @@ public class TerminalInputReader
   public void stop()
   {
     run = false;
+    executor.shutdown();
   }
   
   /**
@@ -0,0 +1,400 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.SessionStats;
+import com.lwink.javashell.util.Preconditions;
+
+/**
+ * A bounded queue of output waiting to be written to a terminal's output stream.  Output is 
+ * collected in fixed size buffers which are handed to a separate thread to be written, so the 
+ * thread producing the output doesn't wait on the network unless the queue is full.  What
+ * happens when the queue is full is decided by an {@link OutputOverflowPolicy}.
+ * 
+ * The buffers are recycled once they have been written, so no memory is allocated after the 
+ * queue has filled up for the first time.
+ */
+public class TerminalOutputQueue
+{
+  public static final Logger LOG = LoggerFactory.getLogger(TerminalOutputQueue.class);
+  
+  /** The default number of bytes that can be waiting to be written */
+  public static final int DEFAULT_CAPACITY = 256 * 1024;
+  
+  /** How long {@link #close()} waits for queued output to be written */
+  private static final long CLOSE_TIMEOUT_MS = 1000;
+  
+  private final OutputStream outputStream;
+  private final WritableByteChannel writeChannel;
+  private final Executor executor;
+  private final OutputOverflowPolicy policy;
+  private final int bufferSize;
+  private final int maxBuffers;
+  
+  /** Called by the producing thread when queued output has been thrown away */
+  private final Runnable onFramesDropped;
+  
+  /** Called by the producing thread when the queue has been closed because it overflowed */
+  private final Runnable onDisconnect;
+  
+  /** Buffers waiting to be written, in order */
+  private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+  
+  /** Buffers that are empty and can be filled */
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+  
+  /** The number of buffers that have been created */
+  private int allocatedBuffers;
+  
+  /** true while a task is running on the executor to write the pending buffers */
+  private boolean writing;
+  
+  /** true if the output stream should be flushed once the pending buffers are written */
+  private boolean flushRequested;
+  
+  private boolean closed;
+  
+  /** Counts the writes and how often the overflow policy is applied */
+  private final SessionStats stats;
+  
+  /**
+   * Create a new TerminalOutputQueue that writes using its own thread.
+   * 
+   * @param outputStream The stream to write to.
+   * @param bufferSize The size of each buffer output is collected in.
+   * @param capacity The most bytes that can be waiting to be written.  This is rounded up to a 
+   *        multiple of the buffer size.
+   * @param policy What to do when the queue is full.
+   * @param onFramesDropped Called when output has been thrown away because of the 
+   *        {@link OutputOverflowPolicy#DROP_FRAMES} policy.
+   * @param onDisconnect Called when the queue has been closed because of the 
+   *        {@link OutputOverflowPolicy#DISCONNECT} policy.
+   * @param stats The statistics of the session the output belongs to.
+   */
+  public TerminalOutputQueue(OutputStream outputStream, int bufferSize, int capacity, OutputOverflowPolicy policy,
+      Runnable onFramesDropped, Runnable onDisconnect, SessionStats stats)
+  {
+    this(outputStream, newOutputExecutor(), bufferSize, capacity, policy, onFramesDropped, onDisconnect, 
+        stats);
+  }
+  
+  /**
+   * @return An executor with a single daemon thread to write the output, so a session that is 
+   *         never stopped doesn't keep the JVM running.
+   */
+  static ExecutorService newOutputExecutor()
+  {
+    return Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "terminal-output");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+  
+  /**
+   * Create a new TerminalOutputQueue.
+   * 
+   * @param outputStream The stream to write to.
+   * @param executor Runs the tasks that write to the output stream.  Only one task is run at a time.
+   * @param bufferSize The size of each buffer output is collected in.
+   * @param capacity The most bytes that can be waiting to be written.  This is rounded up to a 
+   *        multiple of the buffer size.
+   * @param policy What to do when the queue is full.
+   * @param onFramesDropped Called when output has been thrown away because of the 
+   *        {@link OutputOverflowPolicy#DROP_FRAMES} policy.
+   * @param onDisconnect Called when the queue has been closed because of the 
+   *        {@link OutputOverflowPolicy#DISCONNECT} policy.
+   * @param stats The statistics of the session the output belongs to.
+   */
+  public TerminalOutputQueue(OutputStream outputStream, Executor executor, int bufferSize, int capacity, 
+      OutputOverflowPolicy policy, Runnable onFramesDropped, Runnable onDisconnect, SessionStats stats)
+  {
+    Preconditions.checkArgument(bufferSize > 0);
+    Preconditions.checkArgument(capacity > 0);
+    this.outputStream = Preconditions.checkNotNull(outputStream);
+    this.writeChannel = Channels.newChannel(outputStream);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.policy = Preconditions.checkNotNull(policy);
+    this.bufferSize = bufferSize;
+    this.maxBuffers = Math.max(1, (capacity + bufferSize - 1) / bufferSize);
+    this.onFramesDropped = Preconditions.checkNotNull(onFramesDropped);
+    this.onDisconnect = Preconditions.checkNotNull(onDisconnect);
+    this.stats = Preconditions.checkNotNull(stats);
+  }
+  
+  /**
+   * Gets an empty buffer to collect output in.  Once it has been filled, it is passed to 
+   * {@link #submit(ByteBuffer, boolean)}.
+   * 
+   * @return An empty buffer.
+   */
+  public synchronized ByteBuffer getBuffer()
+  {
+    ByteBuffer buf = free.poll();
+    if (buf == null)
+    {
+      allocatedBuffers++;
+      buf = ByteBuffer.allocate(bufferSize);
+    }
+    return buf;
+  }
+  
+  /**
+   * Queues the contents of a buffer to be written and returns an empty buffer to collect more
+   * output in.  If the queue is full, this applies the overflow policy, which may block the
+   * calling thread.
+   * 
+   * @param buffer A buffer from this queue that output has been written to.  It must not be used
+   *        after this call.
+   * @param flush If true, the output stream is flushed once everything in the queue has been 
+   *        written.
+   * @return An empty buffer.  This may be the same buffer that was passed in.
+   */
+  public ByteBuffer submit(ByteBuffer buffer, boolean flush)
+  {
+    boolean startWriter = false;
+    synchronized (this)
+    {
+      if (closed)
+      {
+        buffer.clear();
+        return buffer;
+      }
+      
+      if (buffer.position() > 0)
+      {
+        buffer.flip();
+        pending.add(buffer);
+        buffer = null;
+      }
+      flushRequested |= flush;
+      
+      if (!writing && (!pending.isEmpty() || flushRequested))
+      {
+        writing = true;
+        startWriter = true;
+      }
+    }
+    
+    if (startWriter)
+    {
+      executor.execute(this::writePending);
+    }
+    
+    return buffer != null ? buffer : nextBuffer();
+  }
+  
+  /**
+   * Stops accepting output.  Output that is already queued is still written, this waits a short
+   * time for that to happen.
+   */
+  public void close()
+  {
+    synchronized (this)
+    {
+      closed = true;
+      notifyAll();
+      
+      long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+      long remaining;
+      while (writing && (remaining = deadline - System.currentTimeMillis()) > 0)
+      {
+        try
+        {
+          wait(remaining);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    
+    if (executor instanceof ExecutorService)
+    {
+      ((ExecutorService)executor).shutdown();
+    }
+  }
+  
+  /**
+   * Gets an empty buffer, applying the overflow policy if all the buffers are in use.
+   * 
+   * @return An empty buffer.
+   */
+  private ByteBuffer nextBuffer()
+  {
+    boolean dropped = false;
+    boolean disconnect = false;
+    ByteBuffer buf;
+    
+    synchronized (this)
+    {
+      if (free.isEmpty() && allocatedBuffers >= maxBuffers && !closed)
+      {
+        switch (policy)
+        {
+        case BLOCK:
+          stats.recordBlocked();
+          while (free.isEmpty() && !closed)
+          {
+            try
+            {
+              wait();
+            }
+            catch (InterruptedException e)
+            {
+              // Give up on waiting, the output will be lost
+              Thread.currentThread().interrupt();
+              break;
+            }
+          }
+          break;
+        case DROP_FRAMES:
+          stats.recordDroppedFrames(discardPending());
+          dropped = true;
+          break;
+        case DISCONNECT:
+          stats.recordDisconnect();
+          discardPending();
+          closed = true;
+          disconnect = true;
+          break;
+        }
+      }
+      
+      buf = free.poll();
+      if (buf == null)
+      {
+        // Either there is room for another buffer, or the queue has been closed or interrupted 
+        // and whatever is written to this buffer will be thrown away.
+        allocatedBuffers++;
+        buf = ByteBuffer.allocate(bufferSize);
+      }
+    }
+    
+    if (dropped)
+    {
+      LOG.debug("Output queue is full, dropping queued output");
+      onFramesDropped.run();
+    }
+    if (disconnect)
+    {
+      LOG.info("Output queue is full, disconnecting the client");
+      onDisconnect.run();
+    }
+    return buf;
+  }
+  
+  /**
+   * Throws away all the buffers that are waiting to be written.  The caller must hold the lock on
+   * this queue.
+   * 
+   * @return The number of bytes that were thrown away.
+   */
+  private long discardPending()
+  {
+    long numBytes = 0;
+    ByteBuffer buf;
+    while ((buf = pending.poll()) != null)
+    {
+      numBytes += buf.remaining();
+      buf.clear();
+      free.add(buf);
+    }
+    return numBytes;
+  }
+  
+  /**
+   * Writes the pending buffers to the output stream until there are none left.  This runs on the
+   * executor.
+   */
+  private void writePending()
+  {
+    while (true)
+    {
+      ByteBuffer buf;
+      synchronized (this)
+      {
+        buf = pending.poll();
+        if (buf == null)
+        {
+          if (!flushRequested)
+          {
+            writing = false;
+            notifyAll();
+            return;
+          }
+          flushRequested = false;
+        }
+      }
+      
+      try
+      {
+        if (buf != null)
+        {
+          while (buf.hasRemaining())
+          {
+            stats.recordWrite(writeChannel.write(buf));
+          }
+        }
+        else
+        {
+          outputStream.flush();
+          stats.recordFlush();
+        }
+      }
+      catch (IOException e)
+      {
+        LOG.warn("Failed to write terminal output", e);
+        synchronized (this)
+        {
+          closed = true;
+          discardPending();
+          writing = false;
+          notifyAll();
+        }
+        return;
+      }
+      finally
+      {
+        if (buf != null)
+        {
+          synchronized (this)
+          {
+            buf.clear();
+            free.add(buf);
+            notifyAll();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal.api;
+
+/**
+ * What a terminal does when a client can't keep up with the output being sent to it and the
+ * terminal's output queue is full.
+ */
+public enum OutputOverflowPolicy
+{
+  /** 
+   * The thread writing to the terminal waits until there is room in the queue.  Nothing is lost, 
+   * but a slow client slows down whoever is writing to it.
+   */
+  BLOCK,
+  
+  /**
+   * Output that is waiting in the queue is thrown away and the terminal's 
+   * {@link RepaintObserver}s are asked to redraw the whole screen.  Only the most recent state 
+   * of the screen is sent to the client.
+   */
+  DROP_FRAMES,
+  
+  /**
+   * The client is disconnected.
+   */
+  DISCONNECT
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal.api;
+
+import com.lwink.javashell.terminal.ColorTables;
+
+/**
+ * Helper functions for colors that are packed into an int.  Packed colors are used wherever
+ * colors need to be stored or passed around without creating objects, such as in the cells of
+ * a display buffer.
+ * 
+ * Packed color format is as follows:
+ * [xxxxxxKKVVVVVVVVVVVVVVVVVVVVVVVV]
+ * x = Not used.
+ * K = Kind of color.  0 is the terminal's default color, 1 is an indexed color and 2 is RGB.
+ * V = Value.  The palette index (0-255) for indexed colors or 0xRRGGBB for RGB colors.
+ * 
+ * The first 8 indexed colors are the same as the basic {@link TermColor} colors, 8-15 are
+ * their bright versions, 16-231 are a 6x6x6 color cube and 232-255 are a gray ramp.
+ */
+public final class PackedColor
+{
+  /** The terminal's default color */
+  public static final int DEFAULT = 0;
+  
+  private static final int KIND_SHIFT = 24;
+  private static final int KIND_MASK = 0x03000000;
+  private static final int KIND_INDEXED = 1 << KIND_SHIFT;
+  private static final int KIND_RGB = 2 << KIND_SHIFT;
+  private static final int VALUE_MASK = 0x00FFFFFF;
+  
+  private static final TermColor[] TERM_COLORS = TermColor.values();
+  
+  private PackedColor()
+  {
+  }
+  
+  /**
+   * Creates a color from the 256 color palette.
+   * 
+   * @param index Index into the palette, from 0 to 255.
+   * @return The packed color.
+   */
+  public static int indexed(int index)
+  {
+    if (index < 0 || index > 255)
+    {
+      throw new IllegalArgumentException("Invalid color index: " + index);
+    }
+    return KIND_INDEXED | index;
+  }
+  
+  /**
+   * Creates a 24 bit color.
+   * 
+   * @param red Red component, from 0 to 255.
+   * @param green Green component, from 0 to 255.
+   * @param blue Blue component, from 0 to 255.
+   * @return The packed color.
+   */
+  public static int rgb(int red, int green, int blue)
+  {
+    if ((red | green | blue) < 0 || (red | green | blue) > 255)
+    {
+      throw new IllegalArgumentException("Invalid color: " + red + "," + green + "," + blue);
+    }
+    return KIND_RGB | (red << 16) | (green << 8) | blue;
+  }
+  
+  /**
+   * Creates a 24 bit color.
+   * 
+   * @param rgb The color in 0xRRGGBB form.
+   * @return The packed color.
+   */
+  public static int rgb(int rgb)
+  {
+    return KIND_RGB | (rgb & VALUE_MASK);
+  }
+  
+  /**
+   * Converts one of the basic colors to a packed color.
+   * 
+   * @param color The color to convert.
+   * @return The packed color.
+   */
+  public static int of(TermColor color)
+  {
+    return color == TermColor.DEFAULT ? DEFAULT : KIND_INDEXED | color.getColor();
+  }
+  
+  /**
+   * Converts a packed color back to a basic color.
+   * 
+   * @param color A packed color.
+   * @return The basic color, or null if the color is not the default or one of the 8 basic colors.
+   */
+  public static TermColor toTermColor(int color)
+  {
+    if (isDefault(color))
+    {
+      return TermColor.DEFAULT;
+    }
+    if (isIndexed(color) && getIndex(color) < 8)
+    {
+      return TERM_COLORS[getIndex(color)];
+    }
+    return null;
+  }
+  
+  /**
+   * Converts a packed color to the nearest basic color.  Bright colors (palette indexes 8-15)
+   * become their basic version and any other color becomes the basic color closest to it.
+   * 
+   * @param color A packed color.
+   * @return The basic color, never null.
+   */
+  public static TermColor toNearestTermColor(int color)
+  {
+    TermColor exact = toTermColor(color);
+    if (exact != null)
+    {
+      return exact;
+    }
+    int index = isRgb(color) ? ColorTables.rgbTo8(getRgb(color)) : ColorTables.indexTo8(getIndex(color));
+    return TERM_COLORS[index];
+  }
+  
+  public static boolean isDefault(int color)
+  {
+    return (color & KIND_MASK) == 0;
+  }
+  
+  public static boolean isIndexed(int color)
+  {
+    return (color & KIND_MASK) == KIND_INDEXED;
+  }
+  
+  public static boolean isRgb(int color)
+  {
+    return (color & KIND_MASK) == KIND_RGB;
+  }
+  
+  /**
+   * @param color An indexed packed color.
+   * @return The palette index of the color.
+   */
+  public static int getIndex(int color)
+  {
+    return color & 0xFF;
+  }
+  
+  /**
+   * @param color A RGB packed color.
+   * @return The color in 0xRRGGBB form.
+   */
+  public static int getRgb(int color)
+  {
+    return color & VALUE_MASK;
+  }
+}
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.terminal.api;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the output of a single terminal session.  The counters are updated on the
+ * threads that draw to the terminal and write to the client, so they are kept in LongAdders
+ * which cost next to nothing to update and can be read from any thread at any time.
+ */
+public class SessionStats
+{
+  /** The kinds of escape sequences that are counted */
+  public enum SequenceType
+  {
+    /** Moving the cursor */
+    CURSOR,
+    /** Setting colors and text styles */
+    ATTRIBUTES,
+    /** Erasing or deleting characters, lines or the screen */
+    ERASE,
+    /** Setting the scroll region or scrolling */
+    SCROLL,
+    /** Setting or resetting terminal modes, such as the cursor visibility or synchronized output */
+    MODE
+  }
+  
+  private static final SequenceType[] SEQUENCE_TYPES = SequenceType.values();
+  
+  private final String user;
+  private final long startTime = System.currentTimeMillis();
+  
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder channelWrites = new LongAdder();
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder[] sequences = new LongAdder[SEQUENCE_TYPES.length];
+  private final LongAdder framesRendered = new LongAdder();
+  private final LongAdder renderNanos = new LongAdder();
+  private final LongAccumulator maxRenderNanos = new LongAccumulator(Math::max, 0);
+  private final LongAdder blockedCount = new LongAdder();
+  private final LongAdder droppedFrameCount = new LongAdder();
+  private final LongAdder droppedBytes = new LongAdder();
+  private final LongAdder disconnectCount = new LongAdder();
+  
+  public SessionStats()
+  {
+    this(null);
+  }
+  
+  /**
+   * @param user The name of the user that the session belongs to, or null if it isn't known.
+   */
+  public SessionStats(String user)
+  {
+    this.user = user;
+    for (int i = 0; i < sequences.length; i++)
+    {
+      sequences[i] = new LongAdder();
+    }
+  }
+  
+  /**
+   * @param numBytes The number of bytes written to the client by a single write.
+   */
+  public void recordWrite(int numBytes)
+  {
+    channelWrites.increment();
+    bytesWritten.add(numBytes);
+  }
+  
+  public void recordFlush()
+  {
+    flushes.increment();
+  }
+  
+  /**
+   * @param type The type of escape sequence that was written.
+   */
+  public void recordSequence(SequenceType type)
+  {
+    sequences[type.ordinal()].increment();
+  }
+  
+  /**
+   * @param nanos How long it took to draw the frame, in nanoseconds.
+   */
+  public void recordFrame(long nanos)
+  {
+    framesRendered.increment();
+    renderNanos.add(nanos);
+    maxRenderNanos.accumulate(nanos);
+  }
+  
+  /**
+   * Records that a thread had to wait because the output queue was full.
+   */
+  public void recordBlocked()
+  {
+    blockedCount.increment();
+  }
+  
+  /**
+   * @param numBytes The number of bytes of queued output that were thrown away.
+   */
+  public void recordDroppedFrames(long numBytes)
+  {
+    droppedFrameCount.increment();
+    droppedBytes.add(numBytes);
+  }
+  
+  /**
+   * Records that the client was disconnected because it couldn't keep up.
+   */
+  public void recordDisconnect()
+  {
+    disconnectCount.increment();
+  }
+  
+  /**
+   * @return The name of the user the session belongs to, or null if it isn't known.
+   */
+  public String getUser()
+  {
+    return user;
+  }
+  
+  /**
+   * @return When the session started, in milliseconds since the epoch.
+   */
+  public long getStartTime()
+  {
+    return startTime;
+  }
+  
+  /**
+   * @return The number of bytes written to the client.
+   */
+  public long getBytesWritten()
+  {
+    return bytesWritten.sum();
+  }
+  
+  /**
+   * @return The number of writes to the client's channel.
+   */
+  public long getChannelWrites()
+  {
+    return channelWrites.sum();
+  }
+  
+  /**
+   * @return The number of times the client's output stream was flushed.
+   */
+  public long getFlushes()
+  {
+    return flushes.sum();
+  }
+  
+  /**
+   * @param type A type of escape sequence.
+   * @return The number of escape sequences of the type that were written.
+   */
+  public long getSequenceCount(SequenceType type)
+  {
+    return sequences[type.ordinal()].sum();
+  }
+  
+  /**
+   * @return The number of escape sequences of all types that were written.
+   */
+  public long getSequenceCount()
+  {
+    long count = 0;
+    for (LongAdder adder : sequences)
+    {
+      count += adder.sum();
+    }
+    return count;
+  }
+  
+  /**
+   * @return The number of frames drawn by the shell.
+   */
+  public long getFramesRendered()
+  {
+    return framesRendered.sum();
+  }
+  
+  /**
+   * @return The total time spent drawing frames, in nanoseconds.
+   */
+  public long getRenderNanos()
+  {
+    return renderNanos.sum();
+  }
+  
+  /**
+   * @return The average time spent drawing a frame, in nanoseconds.
+   */
+  public long getAverageRenderNanos()
+  {
+    long frames = framesRendered.sum();
+    return frames == 0 ? 0 : renderNanos.sum() / frames;
+  }
+  
+  /**
+   * @return The longest time spent drawing a single frame, in nanoseconds.
+   */
+  public long getMaxRenderNanos()
+  {
+    return maxRenderNanos.get();
+  }
+  
+  /**
+   * @return The number of times a thread had to wait because the output queue was full.
+   */
+  public long getBlockedCount()
+  {
+    return blockedCount.sum();
+  }
+  
+  /**
+   * @return The number of times queued output was thrown away because the output queue was full.
+   */
+  public long getDroppedFrameCount()
+  {
+    return droppedFrameCount.sum();
+  }
+  
+  /**
+   * @return The total number of bytes of output that were thrown away.
+   */
+  public long getDroppedBytes()
+  {
+    return droppedBytes.sum();
+  }
+  
+  /**
+   * @return The number of times the client was disconnected because the output queue was full.
+   */
+  public long getDisconnectCount()
+  {
+    return disconnectCount.sum();
+  }
+  
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("user: ").append(user);
+    sb.append(", bytes: ").append(getBytesWritten());
+    sb.append(", writes: ").append(getChannelWrites());
+    sb.append(", flushes: ").append(getFlushes());
+    for (SequenceType type : SEQUENCE_TYPES)
+    {
+      sb.append(", ").append(type.name().toLowerCase()).append(": ").append(getSequenceCount(type));
+    }
+    sb.append(", frames: ").append(getFramesRendered());
+    sb.append(", avg render ns: ").append(getAverageRenderNanos());
+    sb.append(", max render ns: ").append(getMaxRenderNanos());
+    sb.append(", blocked: ").append(getBlockedCount());
+    sb.append(", dropped frames: ").append(getDroppedFrameCount());
+    sb.append(", disconnects: ").append(getDisconnectCount());
+    return sb.toString();
+  }
+}
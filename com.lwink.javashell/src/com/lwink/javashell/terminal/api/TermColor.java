@@ -38,4 +38,12 @@ public enum TermColor
   {
     return color;
   }
+  
+  /**
+   * @return This color as a {@link PackedColor}.
+   */
+  public int getPackedColor()
+  {
+    return PackedColor.of(this);
+  }
 }
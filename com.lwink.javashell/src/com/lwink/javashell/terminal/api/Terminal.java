@@ -15,6 +15,8 @@
  **/
 package com.lwink.javashell.terminal.api;
 
+import com.lwink.javashell.server.api.TerminalClosedListener;
+
 public interface Terminal
 {
   
@@ -23,6 +25,13 @@ public interface Terminal
    */
   public void stop();
   
+  /**
+   * Gets the counters that describe the output of this terminal's session.
+   * 
+   * @return The session's statistics.
+   */
+  public SessionStats getSessionStats();
+  
   /**
    * Get the size of the terminal.
    * 
@@ -37,6 +46,14 @@ public interface Terminal
    */
   public void registerResizeObserver(ResizeObserver observer);
   
+  /**
+   * Register a callback to be notified when the whole screen needs to be drawn again, for
+   * example because output was dropped for a client that couldn't keep up with it.
+   * 
+   * @param observer Callback to be notified.
+   */
+  public void registerRepaintObserver(RepaintObserver observer);
+  
   /**
    * Register an interface to receive key presses from the terminal's input stream.
    * 
@@ -44,6 +61,14 @@ public interface Terminal
    */
   void registerKeyPressReceiver(KeyPressReceiver keyPressReceiver);
   
+  /**
+   * Register a callback to be notified once the terminal has stopped, for example because the 
+   * client disconnected.  Anything held for the terminal can be released then.
+   * 
+   * @param listener Callback to be notified.
+   */
+  public void registerClosedListener(TerminalClosedListener listener);
+  
   /**
    * Moves the terminal's cursor.
    * 
@@ -67,6 +92,26 @@ public interface Terminal
    */
   public void putCharacter(char c);
   
+  /**
+   * Puts a string of characters on the terminal starting at the current cursor position.  This
+   * is equivalent to calling {@link #putCharacter(char)} for each character in the string, but
+   * is much more efficient for most terminals.
+   * 
+   * @param s The characters to be written.
+   */
+  public void putString(CharSequence s);
+  
+  /**
+   * Puts a range of characters from an array on the terminal starting at the current cursor 
+   * position.  This is equivalent to calling {@link #putCharacter(char)} for each character in
+   * the range.
+   * 
+   * @param chars Array holding the characters to be written.
+   * @param offset Index of the first character in the array to write.
+   * @param length The number of characters to write.
+   */
+  public void putChars(char[] chars, int offset, int length);
+  
   /**
    * Clears the terminal screen of any visible characters.
    */
@@ -84,6 +129,18 @@ public interface Terminal
    */
   public void exitPrivateMode();
   
+  /**
+   * Marks the start of a frame.  Terminals that support it will not show anything drawn until
+   * the matching call to {@link #endFrame()}, and then show the whole frame at once.  Frames can
+   * be nested, only the outermost pair has any effect.
+   */
+  public void beginFrame();
+  
+  /**
+   * Marks the end of a frame started by {@link #beginFrame()}.
+   */
+  public void endFrame();
+  
   /**
    * Flushes the underlying output stream.
    */
@@ -117,6 +174,38 @@ public interface Terminal
    */
   public void deleteCharacters(int numChars);
   
+  /**
+   * Limits scrolling to a range of rows.  Scrolling, and line feeds on the bottom row of the
+   * region, only move the rows inside the region.  The cursor position is undefined after this
+   * is called, so the cursor must be moved before drawing.
+   * 
+   * @param top The first row of the region.
+   * @param bottom The last row of the region.
+   */
+  public void setScrollRegion(int top, int bottom);
+  
+  /**
+   * Makes the whole screen scroll again after a call to {@link #setScrollRegion(int, int)}.  The 
+   * cursor position is undefined after this is called.
+   */
+  public void resetScrollRegion();
+  
+  /**
+   * Scrolls the rows in the scroll region up, the rows at the bottom of the region are left blank.
+   * The cursor does not move.
+   * 
+   * @param numRows The number of rows to scroll.
+   */
+  public void scrollUp(int numRows);
+  
+  /**
+   * Scrolls the rows in the scroll region down, the rows at the top of the region are left blank.
+   * The cursor does not move.
+   * 
+   * @param numRows The number of rows to scroll.
+   */
+  public void scrollDown(int numRows);
+  
   /**
    * Sets the foreground color that will be used for characters drawn in the future.
    * 
@@ -131,6 +220,32 @@ public interface Terminal
    */
   public void setBackgroundColor(TermColor color);
   
+  /**
+   * Sets the foreground color that will be used for characters drawn in the future.  This allows
+   * colors from the 256 color palette and 24 bit colors.  If the terminal can't display the color,
+   * the nearest color that it can display is used.
+   * 
+   * @param color A {@link PackedColor}.
+   */
+  public void setForegroundColor(int color);
+  
+  /**
+   * Sets the background color that will be used for characters drawn in the future.  This allows
+   * colors from the 256 color palette and 24 bit colors.  If the terminal can't display the color,
+   * the nearest color that it can display is used.
+   * 
+   * @param color A {@link PackedColor}.
+   */
+  public void setBackgroundColor(int color);
+  
+  /**
+   * Sets the text styles that will be used for characters drawn in the future.  Any styles that
+   * are not in the mask are turned off.
+   * 
+   * @param styles A mask of {@link TextStyle#getMask()} values.
+   */
+  public void setTextStyles(int styles);
+  
   /**
    * Reset all text attributes.
    */
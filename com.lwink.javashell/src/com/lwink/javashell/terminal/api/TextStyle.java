@@ -15,24 +15,72 @@
  **/
 package com.lwink.javashell.terminal.api;
 
+import java.util.Collection;
+
 public enum TextStyle
 {
-	NORMAL(0),
-	BOLD(1),
-	UNDERLINED(4),
-	BLINK(5),
-	INVERSE(7),
-	INVISIBLE(8);
+	NORMAL(0, 0, 0),
+	BOLD(1, 22, 0x01),
+	UNDERLINED(4, 24, 0x02),
+	BLINK(5, 25, 0x04),
+	INVERSE(7, 27, 0x08),
+	INVISIBLE(8, 28, 0x10);
+	
+	/** A mask with the bits of every style set */
+	public static final int ALL_STYLES = 0x1F;
 	
 	private int termValue;
+	private int resetTermValue;
+	private int mask;
 	
-	TextStyle(int termValue)
+	TextStyle(int termValue, int resetTermValue, int mask)
 	{
 		this.termValue = termValue;
+		this.resetTermValue = resetTermValue;
+		this.mask = mask;
 	}
 	
+	/**
+	 * @return The SGR parameter that turns this style on.
+	 */
 	public int getTermValue()
 	{
 		return termValue;
 	}
+	
+	/**
+	 * @return The SGR parameter that turns this style off without affecting other styles.
+	 */
+	public int getResetTermValue()
+	{
+		return resetTermValue;
+	}
+	
+	/**
+	 * Gets the bit that represents this style in a style mask.  Style masks are used where a set of
+	 * styles needs to be stored compactly, such as in the cells of a display buffer.  NORMAL has no
+	 * bits set since it is the absence of any other style.
+	 * 
+	 * @return The bit for this style.
+	 */
+	public int getMask()
+	{
+		return mask;
+	}
+	
+	/**
+	 * Converts a collection of styles to a style mask.
+	 * 
+	 * @param styles The styles to convert.
+	 * @return A mask with the bit of each style set.
+	 */
+	public static int toMask(Collection<TextStyle> styles)
+	{
+		int mask = 0;
+		for (TextStyle style : styles)
+		{
+			mask |= style.mask;
+		}
+		return mask;
+	}
 }
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The number of terminal columns that characters take up.  East Asian wide and fullwidth 
+ * characters and most emoji take up two columns, combining marks and other characters that are
+ * drawn on top of the character before them take up none, and everything else takes up one.
+ * 
+ * The widths are looked up in a two level table that is built once, so finding the width of a
+ * character is two array reads.  The code points are split into blocks of 256, and the first 
+ * level maps each block to where its widths are in the second level.  Most blocks are all the 
+ * same width, so blocks with the same widths share the same entries, which keeps the table to 
+ * a few tens of kilobytes.
+ */
+public class CharacterWidth
+{
+	private static final int BLOCK_SHIFT = 8;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+	
+	/** The last code point that isn't in a supplementary plane with only wide or unassigned characters */
+	private static final int LAST_MIXED_CODE_POINT = 0x1FFFF;
+	
+	/** The planes of tags and variation selectors */
+	private static final int FIRST_TAG_CODE_POINT = 0xE0000;
+	private static final int LAST_TAG_CODE_POINT = 0xE0FFF;
+	
+	/** The first and last code point of each range of wide characters, in order */
+	private static final int[] WIDE_RANGES = {
+		0x1100, 0x115F, 0x231A, 0x231B, 0x2329, 0x232A, 0x23E9, 0x23EC, 0x23F0, 0x23F0, 0x23F3, 0x23F3,
+		0x25FD, 0x25FE, 0x2614, 0x2615, 0x2648, 0x2653, 0x267F, 0x267F, 0x2693, 0x2693, 0x26A1, 0x26A1,
+		0x26AA, 0x26AB, 0x26BD, 0x26BE, 0x26C4, 0x26C5, 0x26CE, 0x26CE, 0x26D4, 0x26D4, 0x26EA, 0x26EA,
+		0x26F2, 0x26F3, 0x26F5, 0x26F5, 0x26FA, 0x26FA, 0x26FD, 0x26FD, 0x2705, 0x2705, 0x270A, 0x270B,
+		0x2728, 0x2728, 0x274C, 0x274C, 0x274E, 0x274E, 0x2753, 0x2755, 0x2757, 0x2757, 0x2795, 0x2797,
+		0x27B0, 0x27B0, 0x27BF, 0x27BF, 0x2B1B, 0x2B1C, 0x2B50, 0x2B50, 0x2B55, 0x2B55, 0x2E80, 0x303E,
+		0x3041, 0x33FF, 0x3400, 0x4DBF, 0x4E00, 0x9FFF, 0xA000, 0xA4CF, 0xA960, 0xA97F, 0xAC00, 0xD7A3,
+		0xF900, 0xFAFF, 0xFE10, 0xFE19, 0xFE30, 0xFE6F, 0xFF00, 0xFF60, 0xFFE0, 0xFFE6, 0x16FE0, 0x16FE4,
+		0x17000, 0x18AFF, 0x1B000, 0x1B2FF, 0x1F004, 0x1F004, 0x1F0CF, 0x1F0CF, 0x1F18E, 0x1F18E,
+		0x1F191, 0x1F19A, 0x1F200, 0x1F202, 0x1F210, 0x1F23B, 0x1F240, 0x1F248, 0x1F250, 0x1F251,
+		0x1F260, 0x1F265, 0x1F300, 0x1F320, 0x1F32D, 0x1F335, 0x1F337, 0x1F37C, 0x1F37E, 0x1F393,
+		0x1F3A0, 0x1F3CA, 0x1F3CF, 0x1F3D3, 0x1F3E0, 0x1F3F0, 0x1F3F4, 0x1F3F4, 0x1F3F8, 0x1F43E,
+		0x1F440, 0x1F440, 0x1F442, 0x1F4FC, 0x1F4FF, 0x1F53D, 0x1F54B, 0x1F54E, 0x1F550, 0x1F567,
+		0x1F57A, 0x1F57A, 0x1F595, 0x1F596, 0x1F5A4, 0x1F5A4, 0x1F5FB, 0x1F64F, 0x1F680, 0x1F6C5,
+		0x1F6CC, 0x1F6CC, 0x1F6D0, 0x1F6D2, 0x1F6D5, 0x1F6D7, 0x1F6EB, 0x1F6EC, 0x1F6F4, 0x1F6FC,
+		0x1F7E0, 0x1F7EB, 0x1F90C, 0x1F93A, 0x1F93C, 0x1F945, 0x1F947, 0x1F9FF, 0x1FA70, 0x1FAFF,
+		0x20000, 0x2FFFD, 0x30000, 0x3FFFD
+	};
+	
+	/** For each block, the index of its first width in WIDTHS, shifted right by BLOCK_SHIFT */
+	private static final char[] BLOCKS;
+	private static final byte[] WIDTHS;
+	
+	static
+	{
+		BLOCKS = new char[(Character.MAX_CODE_POINT + 1) >>> BLOCK_SHIFT];
+		Map<ByteBuffer, Integer> uniqueBlocks = new HashMap<>();
+		byte[] widths = new byte[BLOCK_SIZE * 64];
+		int range = 0;
+		for (int block = 0; block < BLOCKS.length; block++)
+		{
+			byte[] blockWidths = new byte[BLOCK_SIZE];
+			for (int i = 0; i < BLOCK_SIZE; i++)
+			{
+				int codePoint = (block << BLOCK_SHIFT) | i;
+				while (range < WIDE_RANGES.length && WIDE_RANGES[range + 1] < codePoint)
+				{
+					range += 2;
+				}
+				boolean wide = range < WIDE_RANGES.length && WIDE_RANGES[range] <= codePoint;
+				blockWidths[i] = (byte)(isZeroWidth(codePoint) ? 0 : wide ? 2 : 1);
+			}
+			
+			Integer index = uniqueBlocks.get(ByteBuffer.wrap(blockWidths));
+			if (index == null)
+			{
+				index = uniqueBlocks.size();
+				if (widths.length < (index + 1) << BLOCK_SHIFT)
+				{
+					widths = Arrays.copyOf(widths, widths.length * 2);
+				}
+				System.arraycopy(blockWidths, 0, widths, index << BLOCK_SHIFT, BLOCK_SIZE);
+				uniqueBlocks.put(ByteBuffer.wrap(blockWidths), index);
+			}
+			BLOCKS[block] = (char)(int)index;
+		}
+		WIDTHS = Arrays.copyOf(widths, uniqueBlocks.size() << BLOCK_SHIFT);
+	}
+	
+	/**
+	 * Returns the number of columns that a character takes up.
+	 * 
+	 * @param codePoint The code point of the character.
+	 * @return 0, 1 or 2.  Control characters take up no columns, and values that aren't code 
+	 *         points take up one.
+	 */
+	public static int of(int codePoint)
+	{
+		if (codePoint < 0 || codePoint > Character.MAX_CODE_POINT)
+		{
+			return 1;
+		}
+		return WIDTHS[(BLOCKS[codePoint >>> BLOCK_SHIFT] << BLOCK_SHIFT) | (codePoint & BLOCK_MASK)];
+	}
+	
+	/**
+	 * Returns the number of columns that some text takes up.
+	 * 
+	 * @param text The text.
+	 * @param start The index of the first char of the text to measure.
+	 * @param end The index after the last char of the text to measure.
+	 * @return The number of columns.
+	 */
+	public static int of(CharSequence text, int start, int end)
+	{
+		int columns = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = text.charAt(i);
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1)))
+			{
+				columns += of(Character.toCodePoint(c, text.charAt(++i)));
+			}
+			else
+			{
+				columns += of(c);
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Returns the number of columns that a range of chars takes up.
+	 * 
+	 * @param chars The chars.
+	 * @param start The index of the first char to measure.
+	 * @param end The index after the last char to measure.
+	 * @return The number of columns.
+	 */
+	public static int of(char[] chars, int start, int end)
+	{
+		int columns = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = chars[i];
+			if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1]))
+			{
+				columns += of(Character.toCodePoint(c, chars[++i]));
+			}
+			else
+			{
+				columns += of(c);
+			}
+		}
+		return columns;
+	}
+	
+	/**
+	 * Returns how much of some text fits in a number of columns.
+	 * 
+	 * @param text The text.
+	 * @param start The index of the first char of the text.
+	 * @param end The index after the last char of the text.
+	 * @param columns The number of columns.
+	 * @return The index after the last character that fits, or start if none do.
+	 */
+	public static int fit(CharSequence text, int start, int end, int columns)
+	{
+		int index = start;
+		while (index < end)
+		{
+			int codePoint = Character.codePointAt(text, index);
+			int next = index + Character.charCount(codePoint);
+			columns -= of(codePoint);
+			if (columns < 0 || next > end)
+			{
+				break;
+			}
+			index = next;
+		}
+		return index;
+	}
+	
+	private static boolean isZeroWidth(int codePoint)
+	{
+		if (codePoint < 0x20 || (codePoint >= 0x7F && codePoint < 0xA0))
+		{
+			return true;
+		}
+		if ((codePoint >= 0x1160 && codePoint <= 0x11FF) || codePoint == 0x200B)
+		{
+			// Hangul vowels and final consonants that join the syllable before them, and the zero width space
+			return true;
+		}
+		if (codePoint > LAST_MIXED_CODE_POINT && (codePoint < FIRST_TAG_CODE_POINT || codePoint > LAST_TAG_CODE_POINT))
+		{
+			return false;
+		}
+		switch (Character.getType(codePoint))
+		{
+		case Character.NON_SPACING_MARK:
+		case Character.ENCLOSING_MARK:
+			return true;
+		case Character.FORMAT:
+			// The soft hyphen is shown as a hyphen
+			return codePoint != 0xAD;
+		default:
+			return false;
+		}
+	}
+}
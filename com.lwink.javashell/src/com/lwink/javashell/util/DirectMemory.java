@@ -0,0 +1,91 @@
+/**
+ * Copyright 2016 Luke Winkenbach
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License. 
+ **/
+package com.lwink.javashell.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct buffers without waiting for them to be garbage collected.  The JDK only frees the
+ * memory behind a direct buffer once the buffer is collected, which for long lived buffers can 
+ * be a long time after they are last used.  There is no public API to free it sooner, so this 
+ * uses the JDK's cleaner through reflection, and does nothing if the cleaner can't be found.
+ */
+public class DirectMemory
+{
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	
+	static
+	{
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try
+		{
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		}
+		catch (Exception | LinkageError e)
+		{
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	
+	/**
+	 * Frees the memory behind a direct buffer.  The buffer, and any views of it, must not be used
+	 * afterwards.
+	 * 
+	 * @param buffer The buffer to free.  Heap buffers are ignored.
+	 * @return true if the memory was freed, false if it will only be freed when the buffer is 
+	 *         garbage collected.
+	 */
+	public static boolean free(ByteBuffer buffer)
+	{
+		if (buffer == null || !buffer.isDirect())
+		{
+			return false;
+		}
+		try
+		{
+			if (INVOKE_CLEANER != null)
+			{
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+				return true;
+			}
+			// Java 8
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner == null)
+			{
+				return false;
+			}
+			cleaner.getClass().getMethod("clean").invoke(cleaner);
+			return true;
+		}
+		catch (Exception | LinkageError e)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.lwink.javashell.shell;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+import com.lwink.javashell.shell.window.TestTerminal;
+
+public class InputOutputShellTest
+{
+	@Test
+	public void testOutputIsCoalesced()
+	{
+		TestTerminal terminal = new TestTerminal(20, 5);
+		ManualScheduler scheduler = new ManualScheduler();
+		InputOutputShell shell = new InputOutputShell(terminal, 10, ScrollbackLimit.DEFAULT, scheduler);
+		int flushes = terminal.getFlushCount();
+		long frames = terminal.getSessionStats().getFramesRendered();
+
+		for (int i = 0; i < 1000; i++)
+		{
+			shell.addOutput("line " + i);
+		}
+
+		// Nothing is drawn by the thread adding output, and a single redraw is scheduled for all of it
+		Assert.assertEquals(flushes, terminal.getFlushCount());
+		Assert.assertEquals(1, scheduler.tasks.size());
+
+		scheduler.runTasks();
+		Assert.assertEquals(frames + 1, terminal.getSessionStats().getFramesRendered());
+		Assert.assertEquals("line 999            ", terminal.getRowString(3));
+		shell.close();
+	}
+
+	@Test
+	public void testAddingOutputDoesNotWaitForRender() throws InterruptedException
+	{
+		CountDownLatch flushStarted = new CountDownLatch(1);
+		CountDownLatch finishFlush = new CountDownLatch(1);
+		boolean[] blockFlush = new boolean[1];
+		TestTerminal terminal = new TestTerminal(20, 5)
+		{
+			@Override
+			public void flush()
+			{
+				if (blockFlush[0])
+				{
+					// Stands in for a client that isn't reading its output
+					flushStarted.countDown();
+					try
+					{
+						finishFlush.await();
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+				}
+				super.flush();
+			}
+		};
+		ManualScheduler scheduler = new ManualScheduler();
+		InputOutputShell shell = new InputOutputShell(terminal, 10, ScrollbackLimit.DEFAULT, scheduler);
+
+		shell.addOutput("first");
+		blockFlush[0] = true;
+		Thread render = new Thread(scheduler::runTasks);
+		render.start();
+		Assert.assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+
+		// The render thread is stuck writing to the client, but output can still be added
+		shell.addOutput("second");
+		Assert.assertEquals(1, scheduler.tasks.size());
+
+		blockFlush[0] = false;
+		finishFlush.countDown();
+		render.join();
+		scheduler.runTasks();
+		Assert.assertEquals("first               ", terminal.getRowString(2));
+		Assert.assertEquals("second              ", terminal.getRowString(3));
+		shell.close();
+	}
+
+	@Test
+	public void testTerminalStopClosesShell()
+	{
+		TestTerminal terminal = new TestTerminal(20, 5);
+		ManualScheduler scheduler = new ManualScheduler();
+		InputOutputShell shell = new InputOutputShell(terminal, 10, ScrollbackLimit.DEFAULT.offHeap(), scheduler);
+		shell.addOutput("line");
+
+		// The client went away without the shell being closed
+		terminal.stop();
+		Assert.assertTrue(scheduler.isShutdown());
+		try
+		{
+			shell.addOutput("too late");
+			Assert.fail("Output was added after the terminal stopped");
+		}
+		catch (RuntimeException e)
+		{
+			// expected
+		}
+		shell.close();
+	}
+
+	/**
+	 * Holds on to the redraws scheduled by the shell until the test runs them.
+	 */
+	static class ManualScheduler extends ScheduledThreadPoolExecutor
+	{
+		List<Runnable> tasks = new ArrayList<>();
+
+		ManualScheduler()
+		{
+			super(1);
+		}
+
+		@Override
+		public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+		{
+			tasks.add(command);
+			return null;
+		}
+
+		void runTasks()
+		{
+			List<Runnable> toRun;
+			synchronized (this)
+			{
+				toRun = tasks;
+				tasks = new ArrayList<>();
+			}
+			toRun.forEach(Runnable::run);
+		}
+	}
+}
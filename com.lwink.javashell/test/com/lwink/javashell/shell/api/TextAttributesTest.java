@@ -0,0 +1,28 @@
+package com.lwink.javashell.shell.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lwink.javashell.terminal.api.PackedColor;
+import com.lwink.javashell.terminal.api.TermColor;
+
+public class TextAttributesTest
+{
+	@Test
+	public void testColorGettersMapToNearestBasicColor()
+	{
+		TextAttributes attributes = new TextAttributes();
+		Assert.assertEquals(TermColor.DEFAULT, attributes.getFgColor());
+		Assert.assertEquals(TermColor.DEFAULT, attributes.getBgColor());
+		
+		attributes.setFgColor(PackedColor.indexed(9)).setBgColor(PackedColor.indexed(196));
+		Assert.assertEquals(TermColor.RED, attributes.getFgColor());
+		Assert.assertEquals(TermColor.RED, attributes.getBgColor());
+		Assert.assertEquals(PackedColor.indexed(196), attributes.getPackedBgColor());
+		
+		attributes.setFgColor(PackedColor.rgb(10, 20, 230)).setBgColor(PackedColor.rgb(250, 250, 250));
+		Assert.assertEquals(TermColor.BLUE, attributes.getFgColor());
+		Assert.assertEquals(TermColor.WHITE, attributes.getBgColor());
+		Assert.assertEquals(PackedColor.rgb(10, 20, 230), attributes.getPackedFgColor());
+	}
+}
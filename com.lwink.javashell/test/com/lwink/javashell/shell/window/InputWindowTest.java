@@ -97,6 +97,21 @@ public class InputWindowTest
 		verify("abcde", "123abcde  ", 8);
 	}
 	
+	@Test
+	public void testWideCharacters()
+	{
+		// Each of these characters takes up two columns
+		addChars("\u4E2D\u6587");
+		verify("\u4E2D\u6587", 4);
+		addChars("\u4E2D\u6587\u4E2D");
+		verify("\u4E2D\u6587\u4E2D\u6587\u4E2D", "\u6587\u4E2D\u6587\u4E2D      ", 8);
+		w.cursorLeft();
+		verify("\u4E2D\u6587\u4E2D\u6587\u4E2D", "\u6587\u4E2D\u6587\u4E2D      ", 6);
+		w.deleteCharBehindCursorPos();
+		w.refresh();
+		verify("\u4E2D\u6587\u4E2D\u4E2D", "\u6587\u4E2D\u4E2D       ", 4);
+	}
+	
 	public void addChars(String chars)
 	{
 		for (int i = 0; i < chars.length(); i++)
@@ -2,9 +2,12 @@ package com.lwink.javashell.shell.window;
 
 import org.junit.Assert;
 
+import com.lwink.javashell.server.api.TerminalClosedListener;
 import com.lwink.javashell.terminal.api.CursorPosition;
 import com.lwink.javashell.terminal.api.KeyPressReceiver;
+import com.lwink.javashell.terminal.api.RepaintObserver;
 import com.lwink.javashell.terminal.api.ResizeObserver;
+import com.lwink.javashell.terminal.api.SessionStats;
 import com.lwink.javashell.terminal.api.TermColor;
 import com.lwink.javashell.terminal.api.TermSize;
 import com.lwink.javashell.terminal.api.Terminal;
@@ -16,12 +19,18 @@ public class TestTerminal implements Terminal
 	int cursorCol = 0;
 	int cursorRow = 0;
 	char[][] charArray;
+	int scrollTop = 0;
+	int scrollBottom;
+	int flushCount = 0;
+	SessionStats stats = new SessionStats();
+	TerminalClosedListener closedListener;
 	
 	public TestTerminal(int width, int height)
 	{
 		this.width = width;
 		this.height = height;
 		charArray = new char[width][height];
+		scrollBottom = height - 1;
 		clearScreen();
 	}
 	
@@ -38,6 +47,12 @@ public class TestTerminal implements Terminal
 	@Override
 	public void stop()
 	{
+		if (closedListener != null)
+		{
+			TerminalClosedListener listener = closedListener;
+			closedListener = null;
+			listener.onTerminalClosed(this);
+		}
 	}
 
 	@Override
@@ -50,12 +65,29 @@ public class TestTerminal implements Terminal
 	public void registerResizeObserver(ResizeObserver observer)
 	{
 	}
+	
+	@Override
+	public SessionStats getSessionStats()
+	{
+		return stats;
+	}
+	
+	@Override
+	public void registerRepaintObserver(RepaintObserver observer)
+	{
+	}
 
 	@Override
 	public void registerKeyPressReceiver(KeyPressReceiver keyPressReceiver)
 	{
 	}
 
+	@Override
+	public void registerClosedListener(TerminalClosedListener listener)
+	{
+		closedListener = listener;
+	}
+
 	@Override
 	public void moveCursor(int col, int row)
 	{
@@ -75,6 +107,24 @@ public class TestTerminal implements Terminal
 	{
 		charArray[cursorCol++][cursorRow] = c;
 	}
+	
+	@Override
+	public void putString(CharSequence s)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			putCharacter(s.charAt(i));
+		}
+	}
+	
+	@Override
+	public void putChars(char[] chars, int offset, int length)
+	{
+		for (int i = offset; i < offset + length; i++)
+		{
+			putCharacter(chars[i]);
+		}
+	}
 
 	@Override
 	public void clearScreen()
@@ -98,9 +148,64 @@ public class TestTerminal implements Terminal
 	{
 	}
 
+	@Override
+	public void setScrollRegion(int top, int bottom)
+	{
+		scrollTop = top;
+		scrollBottom = bottom;
+		cursorCol = 0;
+		cursorRow = 0;
+	}
+
+	@Override
+	public void resetScrollRegion()
+	{
+		setScrollRegion(0, height - 1);
+	}
+
+	@Override
+	public void scrollUp(int numRows)
+	{
+		for (int row = scrollTop; row <= scrollBottom; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				charArray[col][row] = row + numRows <= scrollBottom ? charArray[col][row + numRows] : ' ';
+			}
+		}
+	}
+
+	@Override
+	public void scrollDown(int numRows)
+	{
+		for (int row = scrollBottom; row >= scrollTop; row--)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				charArray[col][row] = row - numRows >= scrollTop ? charArray[col][row - numRows] : ' ';
+			}
+		}
+	}
+
+	@Override
+	public void beginFrame()
+	{
+	}
+	
+	@Override
+	public void endFrame()
+	{
+	}
+
 	@Override
 	public void flush()
 	{
+		flushCount++;
+	}
+	
+	public int getFlushCount()
+	{
+		return flushCount;
 	}
 
 	@Override
@@ -144,6 +249,21 @@ public class TestTerminal implements Terminal
 	{
 	}
 
+	@Override
+	public void setForegroundColor(int color)
+	{
+	}
+
+	@Override
+	public void setBackgroundColor(int color)
+	{
+	}
+
+	@Override
+	public void setTextStyles(int styles)
+	{
+	}
+
 	@Override
 	public void resetAttributes()
 	{
@@ -0,0 +1,347 @@
+package com.lwink.javashell.shell.window;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.lwink.javashell.shell.api.ScrollbackLimit;
+import com.lwink.javashell.shell.api.TextAttributes;
+import com.lwink.javashell.terminal.api.TermColor;
+
+public class WindowTest
+{
+	int width = 20;
+	int height = 5;
+	
+	@Test
+	public void testAppendMatchesRefresh()
+	{
+		// The window is updated incrementally on one terminal and completely redrawn on the other
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		TestTerminal expectedTerminal = new TestTerminal(width, height + 1);
+		Window w = new Window(terminal, width, height, 0, 0);
+		Window expected = new Window(expectedTerminal, width, height, 0, 0);
+		w.refresh();
+		
+		String[] text = { "one\n", "two\n", "three", " and more\n", "a line long enough to wrap onto another row\n",
+				"x\n", "y\nz\n", "1\n2\n3\n4\n5\n6\n7\n", "last" };
+		for (String s : text)
+		{
+			w.addText(s, null, true);
+			expected.addText(s, null, false);
+			expected.refresh();
+			verify(expectedTerminal, terminal, "After adding \"" + s + "\"");
+		}
+	}
+	
+	@Test
+	public void testScrollMatchesRefresh()
+	{
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		TestTerminal expectedTerminal = new TestTerminal(width, height + 1);
+		Window w = new Window(terminal, width, height, 0, 0);
+		Window expected = new Window(expectedTerminal, width, height, 0, 0);
+		for (int i = 0; i < 20; i++)
+		{
+			w.addText("row " + i + "\n", null, false);
+			expected.addText("row " + i + "\n", null, false);
+		}
+		w.refresh();
+		
+		int[] scrolls = { 1, 1, 3, -2, 5, -1, -7, 4 };
+		for (int scroll : scrolls)
+		{
+			if (scroll > 0)
+			{
+				w.scrollUp(scroll);
+				expected.scrollUp(scroll);
+			}
+			else
+			{
+				w.scrollDown(-scroll);
+				expected.scrollDown(-scroll);
+			}
+			expected.refresh();
+			verify(expectedTerminal, terminal, "After scrolling " + scroll);
+			
+			// Text added while scrolled back is not drawn until the window is drawn again
+			w.addText("more\n", null, true);
+			expected.addText("more\n", null, false);
+		}
+		w.pageUp();
+		expected.pageUp();
+		expected.refresh();
+		verify(expectedTerminal, terminal, "After paging up");
+	}
+	
+	@Test
+	public void testAppendToFullBufferMatchesRefresh()
+	{
+		// The buffer only holds 64 cells, so old rows are thrown away while text is added
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		TestTerminal expectedTerminal = new TestTerminal(width, height + 1);
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, 0, 64);
+		Window w = new Window(terminal, buffer, width, height, 0, 0);
+		Window expected = new Window(expectedTerminal, new ArrayDisplayBuffer(width, 0, 64), width, height, 0, 0);
+		w.refresh();
+		
+		for (int i = 0; i < 40; i++)
+		{
+			String s = i % 7 == 0 ? "a longer row number " + i + " that wraps\n" : "row " + i + "\n";
+			w.addText(s, null, true);
+			expected.addText(s, null, false);
+			expected.refresh();
+			verify(expectedTerminal, terminal, "After adding \"" + s + "\"");
+		}
+		Assert.assertTrue(buffer.getDiscardedRows() > 0);
+		Assert.assertEquals("row 39", terminal.getRowString(height - 1).trim());
+	}
+	
+	@Test
+	public void testLineLimit()
+	{
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, ScrollbackLimit.lines(3));
+		for (int i = 0; i < 10; i++)
+		{
+			buffer.addText("row " + i + "\n", null);
+		}
+		Assert.assertEquals(3, buffer.getNumberOfRowsWithContent());
+		Assert.assertEquals(7, buffer.getDiscardedRows());
+		
+		TestTerminal terminal = new TestTerminal(width, 1);
+		buffer.drawLine(terminal, 0);
+		Assert.assertEquals("row 7", terminal.getRowString(0).trim());
+	}
+	
+	@Test
+	public void testResizeMatchesNewBuffer()
+	{
+		// Enough lines of different lengths to fill several blocks of the wrap cache
+		String[] text = new String[1000];
+		for (int i = 0; i < text.length - 6; i++)
+		{
+			text[i] = i % 97 == 0 ? "a line long enough to wrap onto another row and a third\n" : "line " + i + "\n";
+		}
+		String[] end = { "exactly twenty chars\n", "\n", "a line long enough to wrap onto another row and a third\n", 
+				"short\n", "\n", "and a last line that is not finished" };
+		System.arraycopy(end, 0, text, text.length - end.length, end.length);
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, 0);
+		for (String s : text)
+		{
+			buffer.addText(s, null);
+		}
+		for (int newWidth : new int[] { 7, 1, 33, 20 })
+		{
+			buffer.resizeWidth(newWidth);
+			ArrayDisplayBuffer expected = new ArrayDisplayBuffer(newWidth, 0);
+			for (String s : text)
+			{
+				expected.addText(s, null);
+			}
+			TestTerminal terminal = new TestTerminal(newWidth, 1);
+			TestTerminal expectedTerminal = new TestTerminal(newWidth, 1);
+			
+			// Rows counted back from the end are found before the rows above them are wrapped
+			int expectedRows = expected.getNumberOfRowsWithContent();
+			Assert.assertEquals(100, buffer.getNumberOfRowsWithContent(100));
+			for (int row = 0; row < 100; row++)
+			{
+				terminal.moveCursor(0, 0);
+				expectedTerminal.moveCursor(0, 0);
+				buffer.drawLineFromEnd(terminal, row);
+				expected.drawLine(expectedTerminal, expectedRows - 1 - row);
+				Assert.assertEquals("Row " + row + " from the end at width " + newWidth, expectedTerminal.getRowString(0), terminal.getRowString(0));
+			}
+			
+			Assert.assertEquals(expectedRows, buffer.getNumberOfRowsWithContent());
+			Assert.assertEquals(expectedRows, buffer.getNumberOfRowsWithContent(expectedRows + 1));
+			for (int row = expected.getNumberOfRowsWithContent() - 1; row >= 0; row--)
+			{
+				terminal.moveCursor(0, 0);
+				expectedTerminal.moveCursor(0, 0);
+				buffer.drawLine(terminal, row);
+				expected.drawLine(expectedTerminal, row);
+				Assert.assertEquals("Row " + row + " at width " + newWidth, expectedTerminal.getRowString(0), terminal.getRowString(0));
+			}
+		}
+		Assert.assertEquals(1025, buffer.getNumberOfRowsWithContent());
+	}
+	
+	@Test
+	public void testResizeOnlyWrapsTheScreen()
+	{
+		// Every line wraps at the new width, so no block of lines can be counted without wrapping it
+		int[] rowsWrapped = new int[1];
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, 0, 1 << 22)
+		{
+			@Override
+			protected int getRowsInLine(int line)
+			{
+				rowsWrapped[0]++;
+				return super.getRowsInLine(line);
+			}
+		};
+		for (int i = 0; i < 100000; i++)
+		{
+			buffer.addText(String.format("line %014d\n", i), null);
+		}
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		Window w = new Window(terminal, buffer, width, height, 0, 0);
+		w.refresh();
+		
+		rowsWrapped[0] = 0;
+		w.resize(width / 2, height);
+		Assert.assertTrue("Wrapped " + rowsWrapped[0] + " lines", rowsWrapped[0] < 1000);
+		Assert.assertEquals("line 00000000099999", rowText(terminal, height - 2) + rowText(terminal, height - 1));
+		
+		// Scrolling back only wraps the rows that come into view
+		rowsWrapped[0] = 0;
+		w.pageUp();
+		Assert.assertTrue("Wrapped " + rowsWrapped[0] + " lines", rowsWrapped[0] < 1000);
+		Assert.assertEquals("line 00000000099995", rowText(terminal, 0) + rowText(terminal, 1));
+	}
+	
+	/**
+	 * @return The text of a row in the left half of the terminal.
+	 */
+	private String rowText(TestTerminal terminal, int row)
+	{
+		return terminal.getRowString(row).substring(0, width / 2).trim();
+	}
+	
+	@Test
+	public void testDirectBufferMatchesArrayBuffer()
+	{
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		TestTerminal expectedTerminal = new TestTerminal(width, height + 1);
+		DirectDisplayBuffer buffer = new DirectDisplayBuffer(width, 0, 1 << 13);
+		Window w = new Window(terminal, buffer, width, height, 0, 0);
+		Window expected = new Window(expectedTerminal, new ArrayDisplayBuffer(width, 0, 1 << 13), width, height, 0, 0);
+		for (int i = 0; i < 1000; i++)
+		{
+			String s = i % 7 == 0 ? "a longer row number " + i + " that wraps\n" : "row " + i + "\n";
+			w.addText(s, null, false);
+			expected.addText(s, null, false);
+		}
+		w.resize(width / 2, height);
+		expected.resize(width / 2, height);
+		w.scrollUp(3);
+		expected.scrollUp(3);
+		verify(expectedTerminal, terminal, "After scrolling");
+		Assert.assertTrue(buffer.getDiscardedRows() > 0);
+		buffer.release();
+	}
+	
+	@Test
+	public void testCompressedBufferMatchesArrayBuffer()
+	{
+		TestTerminal terminal = new TestTerminal(width, height + 1);
+		TestTerminal expectedTerminal = new TestTerminal(width, height + 1);
+		CompressedDisplayBuffer buffer = new CompressedDisplayBuffer(width, 0, 1 << 16);
+		Window w = new Window(terminal, buffer, width, height, 0, 0);
+		Window expected = new Window(expectedTerminal, new ArrayDisplayBuffer(width, 0, 1 << 16), width, height, 0, 0);
+		TextAttributes red = TextAttributes.fgColor(TermColor.RED);
+		long cells = 0;
+		for (int i = 0; i < 5000; i++)
+		{
+			String s = "log line " + i + (i % 10 == 0 ? " has a longer message\n" : "\n");
+			w.addText(s, i % 3 == 0 ? red : null, false);
+			expected.addText(s, i % 3 == 0 ? red : null, false);
+			cells += s.length();
+		}
+		Assert.assertTrue(buffer.getDiscardedRows() > 0);
+		
+		// Compare the oldest rows, which are in sealed chunks, and the newest
+		w.scrollUp(Integer.MAX_VALUE);
+		expected.scrollUp(Integer.MAX_VALUE);
+		verify(expectedTerminal, terminal, "At the top");
+		w.setScrollPosition(0);
+		expected.setScrollPosition(0);
+		verify(expectedTerminal, terminal, "At the bottom");
+		
+		// An ArrayDisplayBuffer uses 4 bytes for every cell that is kept
+		Assert.assertTrue(buffer.getStoredBytes() < Math.min(cells, 1 << 16) * 4 / 4);
+		buffer.release();
+	}
+	
+	@Test
+	public void testSupplementaryCharacterTakesOneCell()
+	{
+		// U+1D400 is a single character that takes two chars in UTF-16
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(3, 0);
+		buffer.addText("a\uD835\uDC00bc\n", null);
+		Assert.assertEquals(2, buffer.getNumberOfRowsWithContent());
+		
+		TestTerminal terminal = new TestTerminal(4, 2);
+		buffer.drawLine(terminal, 0);
+		terminal.moveCursor(0, 1);
+		buffer.drawLine(terminal, 1);
+		Assert.assertEquals("a\uD835\uDC00b", terminal.getRowString(0));
+		Assert.assertEquals("c   ", terminal.getRowString(1));
+	}
+	
+	@Test
+	public void testWideCharactersWrapByColumn()
+	{
+		// The CJK characters take two columns each and the accent is drawn on the e before it
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(5, 0);
+		buffer.addText("ab\u4E2D\u6587e\u0301x\n", null);
+		Assert.assertEquals(2, buffer.getNumberOfRowsWithContent());
+		
+		TestTerminal terminal = new TestTerminal(6, 2);
+		buffer.drawLine(terminal, 0);
+		terminal.moveCursor(0, 1);
+		buffer.drawLine(terminal, 1);
+		Assert.assertEquals("ab\u4E2D   ", terminal.getRowString(0));
+		Assert.assertEquals("\u6587e\u0301x  ", terminal.getRowString(1));
+		
+		buffer.resizeWidth(3);
+		Assert.assertEquals(4, buffer.getNumberOfRowsWithContent());
+	}
+	
+	@Test
+	public void testTabsAndControlCharacters()
+	{
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, 0);
+		char[] chars = "xxa\tbc\td\r\u0007\u009Be\nyy".toCharArray();
+		buffer.addText(chars, 2, chars.length - 4, null);
+		buffer.addTextLine("f", null);
+		Assert.assertEquals(2, buffer.getNumberOfRowsWithContent());
+		
+		TestTerminal terminal = new TestTerminal(width, 2);
+		buffer.drawLine(terminal, 0);
+		terminal.moveCursor(0, 1);
+		buffer.drawLine(terminal, 1);
+		Assert.assertEquals("a       bc      de  ", terminal.getRowString(0));
+		Assert.assertEquals("f                   ", terminal.getRowString(1));
+	}
+	
+	@Test
+	public void testAttributesAreSetOncePerSpan()
+	{
+		int[] colorChanges = new int[1];
+		TestTerminal terminal = new TestTerminal(width, 1)
+		{
+			@Override
+			public void setForegroundColor(int color)
+			{
+				colorChanges[0]++;
+			}
+		};
+		ArrayDisplayBuffer buffer = new ArrayDisplayBuffer(width, 0);
+		TextAttributes red = TextAttributes.fgColor(TermColor.RED);
+		buffer.addText("red ", red);
+		buffer.addText("text ", red);
+		buffer.addText("plain", null);
+		buffer.drawLine(terminal, 0);
+		Assert.assertEquals("red text plain      ", terminal.getRowString(0));
+		Assert.assertEquals(2, colorChanges[0]);
+	}
+	
+	private void verify(TestTerminal expectedTerminal, TestTerminal terminal, String message)
+	{
+		for (int row = 0; row < height + 1; row++)
+		{
+			Assert.assertEquals(message, expectedTerminal.getRowString(row), terminal.getRowString(row));
+		}
+	}
+}
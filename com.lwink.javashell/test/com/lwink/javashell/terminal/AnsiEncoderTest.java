@@ -0,0 +1,54 @@
+package com.lwink.javashell.terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AnsiEncoderTest
+{
+	ByteBuffer buffer = ByteBuffer.allocate(AnsiEncoder.MAX_SEQUENCE_LENGTH);
+	
+	@Test
+	public void testPutInt()
+	{
+		int[] values = { 0, 7, 9, 10, 42, 99, 100, 101, 999, 1000, 1049, 65535, 1234567, Integer.MAX_VALUE };
+		for (int value : values)
+		{
+			buffer.clear();
+			AnsiEncoder.putInt(buffer, value);
+			Assert.assertEquals(String.valueOf(value), contents());
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegative()
+	{
+		AnsiEncoder.putInt(buffer, -1);
+	}
+	
+	@Test
+	public void testSequences()
+	{
+		AnsiEncoder.cursorPosition(buffer, 12, 140);
+		Assert.assertEquals("\u001b[12;140H", contents());
+		
+		buffer.clear();
+		AnsiEncoder.privateMode(buffer, 25, false);
+		Assert.assertEquals("\u001b[?25l", contents());
+		
+		buffer.clear();
+		AnsiEncoder.sgr(buffer, 31);
+		Assert.assertEquals("\u001b[31m", contents());
+		
+		buffer.clear();
+		AnsiEncoder.csi(buffer, 5, 'X');
+		Assert.assertEquals("\u001b[5X", contents());
+	}
+	
+	private String contents()
+	{
+		return new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII);
+	}
+}
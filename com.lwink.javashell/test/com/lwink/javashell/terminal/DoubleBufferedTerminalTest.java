@@ -0,0 +1,217 @@
+package com.lwink.javashell.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lwink.javashell.terminal.SshAnsiTerminalTest.TestEnvironment;
+import com.lwink.javashell.terminal.api.CursorPosition;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.TermColor;
+import com.lwink.javashell.terminal.api.TermSize;
+
+public class DoubleBufferedTerminalTest
+{
+	ByteArrayOutputStream output;
+	SshAnsiTerminal ansiTerminal;
+	DoubleBufferedTerminal terminal;
+	
+	@Before
+	public void before()
+	{
+		output = new ByteArrayOutputStream();
+		ansiTerminal = new SshAnsiTerminal(new ByteArrayInputStream(new byte[0]), output, new TestEnvironment(20, 5), 
+				() -> {}, OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY, Runnable::run);
+		ansiTerminal.start();
+		terminal = new DoubleBufferedTerminal(ansiTerminal);
+		
+		// The first flush draws the whole screen since nothing is known about the client
+		terminal.clearScreen();
+		terminal.moveCursor(0, 0);
+		terminal.putString("hello world");
+		terminal.flush();
+		Assert.assertTrue(sent().contains("hello world"));
+	}
+	
+	@After
+	public void after()
+	{
+		ansiTerminal.stop();
+	}
+	
+	@Test
+	public void testUnchangedScreenSendsNothing()
+	{
+		terminal.clearScreen();
+		terminal.moveCursor(0, 0);
+		terminal.putString("hello world");
+		terminal.flush();
+		
+		Assert.assertEquals("", sent());
+		
+		// Drawing blanks over a few cells is cheaper than clearing the screen and drawing it again
+		terminal.clearScreen();
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\r           \u001b[?2026l", sent());
+		
+		for (int row = 0; row < 3; row++)
+		{
+			terminal.moveCursor(0, row);
+			terminal.putString("0123456789");
+		}
+		terminal.flush();
+		sent();
+		terminal.clearScreen();
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\u001b[2J\u001b[?2026l", sent());
+	}
+	
+	@Test
+	public void testOnlyChangedRunsAreDrawn()
+	{
+		terminal.moveCursor(0, 0);
+		terminal.putString("jello world");
+		terminal.moveCursor(0, 3);
+		terminal.putString("x");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\rj\u001b[3B\bx\u001b[?2026l", sent());
+		
+		// A short gap of unchanged cells is drawn over instead of moved past
+		terminal.moveCursor(0, 0);
+		terminal.putString("hellO wOrld");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\u001b[3A\bhellO wO\u001b[3C\u001b[?2026l", sent());
+	}
+	
+	@Test
+	public void testAttributesAreDiffed()
+	{
+		terminal.moveCursor(6, 0);
+		terminal.setForegroundColor(TermColor.RED);
+		terminal.putString("world");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\u001b[5D\u001b[31mworld\u001b[?2026l", sent());
+	}
+	
+	@Test
+	public void testWideCharacters()
+	{
+		// Each CJK character takes two cells, and the accent is joined with the e before it
+		terminal.moveCursor(0, 2);
+		terminal.putString("\u65E5\u672Ce\u0301\uD83D\uDE00");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\u001b[2B\r\u65E5\u672C\u00E9\uD83D\uDE00\u001b[?2026l", sent());
+		
+		// Drawing over the second half of a wide character blanks the first half
+		terminal.moveCursor(1, 2);
+		terminal.putString("x");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\r x\u001b[?2026l", sent());
+		
+		// The cursor is known to be two columns further along after a wide character is drawn
+		terminal.moveCursor(2, 2);
+		terminal.putString("\u6708y");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026h\u6708y\u001b[?2026l", sent());
+		
+		// Drawing over the first half of a wide character blanks the second half
+		terminal.moveCursor(5, 2);
+		terminal.putString("z");
+		terminal.flush();
+		Assert.assertEquals("\u001b[?2026hz \b\u001b[?2026l", sent());
+	}
+	
+	@Test
+	public void testEditing()
+	{
+		terminal.moveCursor(0, 0);
+		terminal.deleteCharacters(6);
+		terminal.moveCursor(4, 0);
+		terminal.eraseLineWithCursor(CursorPosition.AFTER_CURSOR);
+		terminal.flush();
+		Assert.assertTrue(sent().contains("worl"));
+	}
+	
+	@Test
+	public void testControlCharactersAreNotStored()
+	{
+		// A tab fills up to the next tab stop and the other control characters are dropped
+		terminal.moveCursor(0, 1);
+		terminal.putString("a\tb\r\n\u001b[c");
+		terminal.flush();
+		// The spaces were already blank on the client, so the cursor is moved over them
+		Assert.assertTrue(sent().endsWith("a\u001b[7Cb[c\u001b[?2026l"));
+	}
+	
+	@Test
+	public void testScrollDetection()
+	{
+		terminal.clearScreen();
+		for (int row = 0; row < 5; row++)
+		{
+			terminal.moveCursor(0, row);
+			terminal.putString("line " + row);
+		}
+		terminal.flush();
+		sent();
+		
+		// Everything moved up a row and a new line was added at the bottom, so the client is 
+		// scrolled and only the new line is drawn
+		for (int row = 0; row < 5; row++)
+		{
+			terminal.moveCursor(0, row);
+			terminal.putString("line " + (row + 1));
+		}
+		terminal.flush();
+		String s = sent();
+		Assert.assertTrue(s, s.startsWith("\u001b[?2026h\u001b[S"));
+		Assert.assertTrue(s.contains("line 5"));
+		Assert.assertFalse(s.contains("line 2"));
+		
+		// Moving part of the screen down uses a scroll region
+		for (int row = 2; row < 5; row++)
+		{
+			terminal.moveCursor(0, row);
+			terminal.putString("line " + row);
+		}
+		terminal.moveCursor(0, 1);
+		terminal.putString("other ");
+		terminal.flush();
+		s = sent();
+		Assert.assertTrue(s, s.startsWith("\u001b[?2026h\u001b[2;5r\u001b[T\u001b[r"));
+		Assert.assertFalse(s.contains("line 3"));
+	}
+	
+	@Test
+	public void testResizeKeepsVisibleCells()
+	{
+		terminal.moveCursor(0, 1);
+		terminal.putString("second row");
+		terminal.flush();
+		sent();
+		
+		// Narrower, then wider again, the cells that stayed on the screen are drawn again
+		terminal.onResize(new TermSize(8, 5));
+		terminal.onResize(new TermSize(30, 6));
+		terminal.flush();
+		String s = sent();
+		Assert.assertTrue(s, s.contains("hello wo   "));
+		Assert.assertTrue(s, s.contains("second r   "));
+		Assert.assertFalse(s, s.contains("world"));
+	}
+	
+	/**
+	 * Returns what was written to the client since the last call.
+	 */
+	String sent()
+	{
+		String s = new String(output.toByteArray(), StandardCharsets.UTF_8);
+		output.reset();
+		return s;
+	}
+}
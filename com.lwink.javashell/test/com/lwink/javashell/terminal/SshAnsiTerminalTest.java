@@ -0,0 +1,416 @@
+package com.lwink.javashell.terminal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.sshd.common.channel.PtyMode;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.Signal;
+import org.apache.sshd.server.SignalListener;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lwink.javashell.shell.window.InputWindow;
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.PackedColor;
+import com.lwink.javashell.terminal.api.SessionStats;
+import com.lwink.javashell.terminal.api.SessionStats.SequenceType;
+import com.lwink.javashell.terminal.api.TermColor;
+import com.lwink.javashell.terminal.api.TextStyle;
+
+public class SshAnsiTerminalTest
+{
+	ByteArrayOutputStream output;
+	SshAnsiTerminal terminal;
+	
+	@Before
+	public void before()
+	{
+		output = new ByteArrayOutputStream();
+		terminal = createTerminal(new TestEnvironment(80, 24));
+		terminal.start();
+		
+		// The terminal resets the client's attributes before the first thing it draws
+		terminal.putCharacter(' ');
+		terminal.flush();
+		Assert.assertEquals("\u001b[0m ", flushed());
+		output.reset();
+	}
+	
+	@After
+	public void after()
+	{
+		terminal.stop();
+	}
+	
+	@Test
+	public void testOutputIsBufferedUntilFlush()
+	{
+		terminal.putString("abc");
+		Assert.assertEquals("", flushed());
+		terminal.flush();
+		Assert.assertEquals("abc", flushed());
+	}
+	
+	@Test
+	public void testPutString()
+	{
+		terminal.putString("ascii only");
+		terminal.putString(new StringBuilder("/caf\u00e9/"));
+		terminal.putChars("xx\u65e5\u672c\ud83d\ude00xx".toCharArray(), 2, 4);
+		terminal.putCharacter('\u00fc');
+		terminal.flush();
+		Assert.assertEquals("ascii only/caf\u00e9/\u65e5\u672c\ud83d\ude00\u00fc", flushed());
+	}
+	
+	@Test
+	public void testLongString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40000; i++)
+		{
+			sb.append(i % 7 == 0 ? '\u00e9' : (char)('a' + i % 26));
+		}
+		terminal.putString(sb);
+		terminal.flush();
+		Assert.assertEquals(sb.toString(), flushed());
+	}
+	
+	@Test
+	public void testFrames()
+	{
+		terminal.beginFrame();
+		terminal.beginFrame();
+		terminal.putString("ab");
+		terminal.endFrame();
+		
+		// Flushing is put off until the outermost frame ends
+		terminal.flush();
+		Assert.assertEquals("", flushed());
+		terminal.endFrame();
+		Assert.assertEquals("\u001b[?2026hab\u001b[?2026l", flushed());
+		output.reset();
+		
+		// An empty frame writes nothing
+		terminal.beginFrame();
+		terminal.endFrame();
+		Assert.assertEquals("", sent());
+	}
+	
+	@Test
+	public void testFrameThatFillsABuffer()
+	{
+		// The output buffer is reused, so after exactly one buffer of output the frame is back at 
+		// the same buffer and position that it started at
+		int bufferSize = 16 * 1024;
+		terminal.beginFrame();
+		for (int i = 0; i < bufferSize; i++)
+		{
+			terminal.putCharacter('a');
+		}
+		terminal.endFrame();
+		String s = sent();
+		Assert.assertEquals(8 + bufferSize + 8, s.length());
+		Assert.assertTrue(s.startsWith("\u001b[?2026haaaa"));
+		Assert.assertTrue(s.endsWith("aaaa\u001b[?2026l"));
+	}
+	
+	@Test
+	public void testScrollRegion()
+	{
+		terminal.setScrollRegion(0, 9);
+		terminal.setScrollRegion(0, 9);
+		terminal.scrollUp(3);
+		Assert.assertEquals("\u001b[1;10r\u001b[3S", sent());
+		
+		// A line feed on the bottom row of the region would scroll instead of moving the cursor, and
+		// CUD would stop at the bottom row, so leaving the region takes an absolute position
+		terminal.moveCursor(0, 9);
+		terminal.moveCursor(0, 10);
+		Assert.assertEquals("\u001b[9B\u001b[11;1H", sent());
+		terminal.moveCursor(0, 11);
+		Assert.assertEquals("\r\n", sent());
+		terminal.moveCursor(0, 5);
+		Assert.assertEquals("\u001b[6A", sent());
+		
+		terminal.setScrollRegion(3, 9);
+		terminal.moveCursor(0, 5);
+		terminal.moveCursor(0, 1);
+		Assert.assertEquals("\u001b[4;10r\u001b[5B\u001b[2;1H", sent());
+		
+		terminal.resetScrollRegion();
+		Assert.assertEquals("\u001b[r", sent());
+	}
+	
+	@Test
+	public void testSessionStats()
+	{
+		SessionStats stats = terminal.getSessionStats();
+		terminal.moveCursor(0, 5);
+		terminal.setForegroundColor(TermColor.RED);
+		terminal.putString("abc");
+		terminal.eraseCharacters(3);
+		terminal.flush();
+		Assert.assertEquals(1, stats.getSequenceCount(SequenceType.CURSOR));
+		Assert.assertEquals(1, stats.getSequenceCount(SequenceType.ERASE));
+		
+		// The attributes were also reset when the terminal was primed in before()
+		Assert.assertEquals(2, stats.getSequenceCount(SequenceType.ATTRIBUTES));
+		Assert.assertEquals(output.size() + 5, stats.getBytesWritten());
+	}
+	
+	@Test
+	public void testCursorMotion()
+	{
+		terminal.moveCursor(4, 2);
+		Assert.assertEquals("\u001b[3;5H", sent());
+		terminal.moveCursor(4, 2);
+		Assert.assertEquals("", sent());
+		terminal.putString("abc");
+		terminal.moveCursor(10, 2);
+		Assert.assertEquals("abc\u001b[3C", sent());
+		terminal.moveCursor(9, 2);
+		Assert.assertEquals("\b", sent());
+		terminal.moveCursor(0, 3);
+		Assert.assertEquals("\r\n", sent());
+		terminal.moveCursor(2, 3);
+		Assert.assertEquals("\u001b[2C", sent());
+		terminal.moveCursor(2, 13);
+		Assert.assertEquals("\u001b[10B", sent());
+		terminal.moveCursor(1, 12);
+		Assert.assertEquals("\u001b[A\b", sent());
+		terminal.moveCursor(70, 0);
+		Assert.assertEquals("\u001b[1;71H", sent());
+	}
+	
+	@Test
+	public void testCursorUnknownAfterWrap()
+	{
+		terminal.moveCursor(78, 0);
+		terminal.putString("ab");
+		sent();
+		terminal.moveCursor(0, 1);
+		Assert.assertEquals("\u001b[2;1H", sent());
+		terminal.putString("a\tb");
+		sent();
+		terminal.moveCursor(3, 1);
+		Assert.assertEquals("\u001b[2;4H", sent());
+	}
+	
+	@Test
+	public void testCursorAfterWideCharacters()
+	{
+		// The CJK characters take two columns each and the accent takes none
+		terminal.moveCursor(0, 2);
+		terminal.putString("\u65E5\u672Ce\u0301");
+		terminal.moveCursor(7, 2);
+		Assert.assertEquals("\u001b[3;1H\u65E5\u672Ce\u0301\u001b[2C", sent());
+		
+		// The halves of a surrogate pair are sent together
+		terminal.putCharacter('\uD83D');
+		terminal.putCharacter('\uDE00');
+		terminal.moveCursor(11, 2);
+		Assert.assertEquals("\uD83D\uDE00\u001b[2C", sent());
+		
+		// A first half without a second half is replaced, the same as in a string
+		terminal.putCharacter('\uD83D');
+		terminal.putCharacter('a');
+		terminal.putCharacter('\uD83D');
+		terminal.putCharacter('\uD83D');
+		terminal.putCharacter('\uDE00');
+		terminal.putString("\uD83Db");
+		terminal.moveCursor(19, 2);
+		Assert.assertEquals("\uFFFDa\uFFFD\uD83D\uDE00\uFFFDb\u001b[C", sent());
+	}
+	
+	@Test
+	public void testInputWindowWithWideCharacters()
+	{
+		InputWindow window = new InputWindow(terminal, 10, 5);
+		window.addChar('\u65E5');
+		window.addChar('\u672C');
+		window.refresh();
+		sent();
+		
+		// The cursor is already after the two characters, so moving it there sends nothing
+		terminal.moveCursor(4, 5);
+		Assert.assertEquals("", sent());
+		window.cursorLeft();
+		terminal.moveCursor(2, 5);
+		Assert.assertEquals("\b\b", sent());
+	}
+	
+	@Test
+	public void testOutputThreadDoesNotKeepJvmRunning() throws InterruptedException
+	{
+		SshAnsiTerminal sessionTerminal = new SshAnsiTerminal(new ByteArrayInputStream(new byte[0]), output, 
+				new TestEnvironment(80, 24), () -> {}, OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY);
+		sessionTerminal.start();
+		sessionTerminal.putString("abc");
+		sessionTerminal.flush();
+		
+		Thread outputThread = null;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+		{
+			if (t.getName().equals("terminal-output"))
+			{
+				outputThread = t;
+			}
+		}
+		Assert.assertNotNull(outputThread);
+		Assert.assertTrue(outputThread.isDaemon());
+		
+		// Stopping the terminal shuts down the executor, so the thread ends
+		sessionTerminal.stop();
+		outputThread.join(5000);
+		Assert.assertFalse(outputThread.isAlive());
+	}
+	
+	@Test
+	public void testCursorVisibility()
+	{
+		terminal.setCursorVisible(false);
+		terminal.setCursorVisible(false);
+		terminal.setCursorVisible(true);
+		terminal.setCursorVisible(true);
+		Assert.assertEquals("\u001b[?25l\u001b[?25h", sent());
+	}
+	
+	@Test
+	public void testAttributes()
+	{
+		terminal.setForegroundColor(TermColor.RED);
+		terminal.setBackgroundColor(TermColor.GREEN);
+		terminal.setTextStyles(TextStyle.BOLD.getMask());
+		Assert.assertEquals("", sent());
+		terminal.putCharacter('a');
+		Assert.assertEquals("\u001b[1;31;42ma", sent());
+		
+		// Nothing changed
+		terminal.setForegroundColor(TermColor.RED);
+		terminal.putCharacter('b');
+		Assert.assertEquals("b", sent());
+		
+		// Turning one style off is shorter than resetting everything
+		terminal.setTextStyles(TextStyle.UNDERLINED.getMask());
+		terminal.putCharacter('c');
+		Assert.assertEquals("\u001b[22;4mc", sent());
+		
+		// Resetting is shorter than turning everything off
+		terminal.resetAttributes();
+		terminal.eraseCharacters(2);
+		Assert.assertEquals("\u001b[0m\u001b[2X", sent());
+		
+		// Scrolling fills the new rows with the background, so it is written first
+		terminal.setBackgroundColor(TermColor.BLUE);
+		terminal.scrollUp(1);
+		Assert.assertEquals("\u001b[44m\u001b[S", sent());
+	}
+	
+	@Test
+	public void testColorDepth()
+	{
+		// Without a TERM variable only 16 colors are assumed
+		terminal.setForegroundColor(PackedColor.rgb(250, 10, 0));
+		terminal.setBackgroundColor(PackedColor.indexed(21));
+		terminal.putCharacter('a');
+		Assert.assertEquals("\u001b[91;44ma", sent());
+		
+		TestEnvironment env = new TestEnvironment(80, 24);
+		env.env.put(Environment.ENV_TERM, "xterm-256color");
+		Assert.assertEquals("\u001b[0;38;5;196;48;5;21ma", drawWithColors(env));
+		
+		env.env.put("COLORTERM", "truecolor");
+		Assert.assertEquals("\u001b[0;38;2;250;10;0;48;5;21ma", drawWithColors(env));
+	}
+	
+	private String drawWithColors(TestEnvironment env)
+	{
+		terminal.stop();
+		output.reset();
+		terminal = createTerminal(env);
+		terminal.start();
+		terminal.setForegroundColor(PackedColor.rgb(250, 10, 0));
+		terminal.setBackgroundColor(PackedColor.indexed(21));
+		terminal.putCharacter('a');
+		return sent();
+	}
+	
+	/**
+	 * Creates a terminal that writes its output on the calling thread, so it can be checked as 
+	 * soon as the terminal is flushed.
+	 */
+	private SshAnsiTerminal createTerminal(TestEnvironment env)
+	{
+		return new SshAnsiTerminal(new ByteArrayInputStream(new byte[0]), output, env, () -> {}, 
+				OutputOverflowPolicy.BLOCK, TerminalOutputQueue.DEFAULT_CAPACITY, Runnable::run);
+	}
+	
+	/**
+	 * Flushes the terminal and returns what was written since the last call.
+	 */
+	String sent()
+	{
+		terminal.flush();
+		String s = flushed();
+		output.reset();
+		return s;
+	}
+	
+	String flushed()
+	{
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * A minimal SSH environment that reports a fixed terminal size.
+	 */
+	static class TestEnvironment implements Environment
+	{
+		Map<String, String> env = new HashMap<>();
+		
+		TestEnvironment(int columns, int lines)
+		{
+			env.put(ENV_COLUMNS, String.valueOf(columns));
+			env.put(ENV_LINES, String.valueOf(lines));
+		}
+		
+		@Override
+		public Map<String, String> getEnv()
+		{
+			return env;
+		}
+
+		@Override
+		public Map<PtyMode, Integer> getPtyModes()
+		{
+			return new HashMap<>();
+		}
+
+		@Override
+		public void addSignalListener(SignalListener listener, Signal... signal)
+		{
+		}
+
+		@Override
+		public void addSignalListener(SignalListener listener, Collection<Signal> signals)
+		{
+		}
+
+		@Override
+		public void addSignalListener(SignalListener listener)
+		{
+		}
+
+		@Override
+		public void removeSignalListener(SignalListener listener)
+		{
+		}
+	}
+}
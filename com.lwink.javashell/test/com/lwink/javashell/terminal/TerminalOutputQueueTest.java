@@ -0,0 +1,147 @@
+package com.lwink.javashell.terminal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lwink.javashell.terminal.api.OutputOverflowPolicy;
+import com.lwink.javashell.terminal.api.SessionStats;
+
+public class TerminalOutputQueueTest
+{
+	ByteArrayOutputStream output;
+	
+	/** Writer tasks are only run when the test says so, like a client that isn't reading */
+	List<Runnable> tasks;
+	int dropCount;
+	int disconnectCount;
+	SessionStats stats;
+	
+	@Before
+	public void before()
+	{
+		output = new ByteArrayOutputStream();
+		tasks = new ArrayList<>();
+		dropCount = 0;
+		disconnectCount = 0;
+		stats = new SessionStats();
+	}
+	
+	@Test
+	public void testWritesInOrder()
+	{
+		TerminalOutputQueue queue = createQueue(OutputOverflowPolicy.BLOCK);
+		ByteBuffer buf = queue.getBuffer();
+		buf = queue.submit(put(buf, "abcd"), false);
+		runTasks();
+		buf = queue.submit(put(buf, "ef"), true);
+		Assert.assertEquals("abcd", written());
+		runTasks();
+		Assert.assertEquals("abcdef", written());
+		Assert.assertEquals(6, stats.getBytesWritten());
+		Assert.assertEquals(2, stats.getChannelWrites());
+		Assert.assertEquals(1, stats.getFlushes());
+	}
+	
+	@Test
+	public void testDropFrames()
+	{
+		TerminalOutputQueue queue = createQueue(OutputOverflowPolicy.DROP_FRAMES);
+		ByteBuffer buf = queue.getBuffer();
+		buf = queue.submit(put(buf, "abcd"), false);
+		Assert.assertEquals(0, dropCount);
+		
+		// Both buffers are waiting to be written, so they are thrown away
+		buf = queue.submit(put(buf, "efgh"), false);
+		Assert.assertEquals(1, dropCount);
+		Assert.assertEquals(1, stats.getDroppedFrameCount());
+		Assert.assertEquals(8, stats.getDroppedBytes());
+		
+		buf = queue.submit(put(buf, "ij"), true);
+		runTasks();
+		Assert.assertEquals("ij", written());
+		Assert.assertEquals(0, stats.getBlockedCount());
+	}
+	
+	@Test
+	public void testDisconnect()
+	{
+		TerminalOutputQueue queue = createQueue(OutputOverflowPolicy.DISCONNECT);
+		ByteBuffer buf = queue.getBuffer();
+		buf = queue.submit(put(buf, "abcd"), false);
+		buf = queue.submit(put(buf, "efgh"), false);
+		Assert.assertEquals(1, disconnectCount);
+		Assert.assertEquals(1, stats.getDisconnectCount());
+		
+		// Nothing is written once the queue has been closed
+		buf = queue.submit(put(buf, "ij"), true);
+		runTasks();
+		Assert.assertEquals("", written());
+	}
+	
+	@Test
+	public void testBlock() throws InterruptedException
+	{
+		TerminalOutputQueue queue = createQueue(OutputOverflowPolicy.BLOCK);
+		Thread producer = new Thread(() -> {
+			ByteBuffer buf = queue.getBuffer();
+			buf = queue.submit(put(buf, "abcd"), false);
+			buf = queue.submit(put(buf, "efgh"), false);
+			queue.submit(put(buf, "ij"), true);
+		});
+		producer.start();
+		
+		for (int i = 0; i < 500 && stats.getBlockedCount() == 0; i++)
+		{
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, stats.getBlockedCount());
+		Assert.assertTrue(producer.isAlive());
+		
+		synchronized (this)
+		{
+			runTasks();
+		}
+		producer.join(5000);
+		Assert.assertFalse(producer.isAlive());
+		runTasks();
+		Assert.assertEquals("abcdefghij", written());
+	}
+	
+	private TerminalOutputQueue createQueue(OutputOverflowPolicy policy)
+	{
+		// Two buffers of four bytes each
+		return new TerminalOutputQueue(output, this::addTask, 4, 8, policy, () -> dropCount++, () -> disconnectCount++, 
+				stats);
+	}
+	
+	private synchronized void addTask(Runnable task)
+	{
+		tasks.add(task);
+	}
+	
+	private synchronized void runTasks()
+	{
+		while (!tasks.isEmpty())
+		{
+			tasks.remove(0).run();
+		}
+	}
+	
+	private static ByteBuffer put(ByteBuffer buf, String s)
+	{
+		buf.put(s.getBytes(StandardCharsets.US_ASCII));
+		return buf;
+	}
+	
+	private String written()
+	{
+		return new String(output.toByteArray(), StandardCharsets.US_ASCII);
+	}
+}